@@ -0,0 +1,284 @@
+package com.jostens.hudson.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author blaisj1
+ * @brief Copies a configuration tree over a Tomcat root, replacing xcopy.
+ *        Only files whose content differs are written, so unchanged files
+ *        keep their timestamps and Tomcat has no reason to reload anything.
+ *
+ *        A target file differs if it is missing, its size differs, or (same
+ *        size) its SHA-1 differs. Files are compared and copied by a pool of
+ *        threads, since the target is usually a share where each file costs
+ *        a round trip. Written files keep the source's modified time, as
+ *        xcopy's copies did, whether copied or rendered; the one exception is
+ *        a file rendered anew from an unchanged source (a password changed),
+ *        which takes the time written so Tomcat still sees it change.
+ *
+ *        With a password substituter, .xml and .properties files are compared
+ *        and written with their passwords already in place; otherwise the
+ *        substituted file in Tomcat would never match its source. They are
+ *        rendered from compiled templates (see ConfigTemplate) and streamed
+ *        to disk, never held whole in memory.
+ *
+ *        Nothing is ever deleted from the target, which also holds webapps,
+ *        logs and Tomcat's own files.
+ */
+public class ConfigSync {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int threads;
+	private final PasswordSubstituter substituter;
+	private final AtomicInteger copied = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicLong copiedBytes = new AtomicLong();
+
+	/**
+	 * @param substituter replaces password tokens on the way, or null.
+	 */
+	public ConfigSync(int threads, PasswordSubstituter substituter) {
+		this.threads = Math.max(1, threads);
+		this.substituter = substituter;
+	}
+
+	/**
+	 * Bring every file under source up to date under target.
+	 *
+	 * @return the relative paths of the files written.
+	 */
+	public List<String> sync(File source, File target) throws IOException, InterruptedException {
+		final List<String> files = new ArrayList<String>();
+		ConfigSync.list(source, "", files);
+		final List<String> written = new ArrayList<String>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (final String path : files) {
+				final File from = new File(source, path);
+				final File to = new File(target, path);
+				results.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws IOException {
+						return ConfigSync.this.syncFile(from, to);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				if (results.get(i).get()) {
+					written.add(files.get(i));
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Unable to sync " + source + ": " + cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		return written;
+	}
+
+	public int getCopied() {
+		return copied.get();
+	}
+
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	public long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+
+	private boolean syncFile(File from, File to) throws IOException {
+		String name = from.getName().toLowerCase();
+		if (this.substituter != null && (name.endsWith(".xml") || name.endsWith(".properties"))) {
+			// Rendering a compiled template is cheap, so render once to compare and again to write.
+			HashingOutputStream rendered = new HashingOutputStream();
+			this.substituter.render(from, rendered);
+			if (to.isFile() && to.length() == rendered.getCount() && rendered.getHash().equals(ConfigSync.hash(to))) {
+				this.skipped.incrementAndGet();
+				return false;
+			}
+			ConfigSync.render(this.substituter, from, to);
+			this.copied.incrementAndGet();
+			this.copiedBytes.addAndGet(rendered.getCount());
+			return true;
+		}
+
+		if (to.isFile() && to.length() == from.length() && ConfigSync.hash(from).equals(ConfigSync.hash(to))) {
+			this.skipped.incrementAndGet();
+			return false;
+		}
+		ConfigSync.copy(from, to);
+		this.copied.incrementAndGet();
+		this.copiedBytes.addAndGet(from.length());
+		return true;
+	}
+
+	private static void list(File dir, String prefix, List<String> files) throws IOException {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			throw new IOException("Unable to list " + dir);
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				ConfigSync.list(child, prefix + child.getName() + File.separator, files);
+			} else {
+				files.add(prefix + child.getName());
+			}
+		}
+	}
+
+	// Through a temporary name, so Tomcat never reads half a file.
+	private static void copy(File from, File to) throws IOException {
+		File temp = ConfigSync.prepare(to);
+		FileChannel in = new FileInputStream(from).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(temp).getChannel();
+			try {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		temp.setLastModified(from.lastModified());
+		ConfigSync.replace(temp, to);
+	}
+
+	private static void render(PasswordSubstituter substituter, File from, File to) throws IOException {
+		File temp = ConfigSync.prepare(to);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+			try {
+				substituter.render(from, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		if (!to.isFile() || to.lastModified() != from.lastModified()) {
+			temp.setLastModified(from.lastModified());
+		}
+		ConfigSync.replace(temp, to);
+	}
+
+	private static File prepare(File to) throws IOException {
+		File dir = to.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Unable to create directory " + dir);
+		}
+		return new File(to.getPath() + ".sync");
+	}
+
+	// Rename over the target, so readers see the old file or the new one and never neither.
+	private static void replace(File temp, File to) throws IOException {
+		if (temp.renameTo(to)) {
+			return;
+		}
+		// Windows will not rename over an existing file.
+		if (to.exists() && !to.delete()) {
+			temp.delete();
+			throw new IOException("Unable to replace " + to);
+		}
+		if (!temp.renameTo(to)) {
+			temp.delete();
+			throw new IOException("Unable to move " + temp + " to " + to);
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return ConfigSync.hash(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hash(InputStream in) throws IOException {
+		HashingOutputStream out = new HashingOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.getHash();
+	}
+
+	/**
+	 * Hashes and counts what is written to it, keeping none of it.
+	 */
+	private static class HashingOutputStream extends OutputStream {
+
+		private final MessageDigest sha1;
+		private long count;
+
+		public HashingOutputStream() throws IOException {
+			try {
+				this.sha1 = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("Checksum algorithm unavailable: SHA-1");
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			this.sha1.update((byte) b);
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.sha1.update(b, off, len);
+			this.count += len;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		public String getHash() {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : this.sha1.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author blaisj1
+ * @brief A configuration file compiled into literal segments and ${name}
+ *        slots, so it can be rendered for any number of servers by writing
+ *        segments and values in turn, without scanning it again. The only
+ *        values are the passwords, the same for every server, so what this
+ *        saves is the reading and scanning, not the rendering.
+ *
+ *        Compiled templates are cached in the node's JVM by the SHA-1 of
+ *        their content, and files are mapped to that hash by path, size and
+ *        modified time, so an unchanged template file is neither re-read nor
+ *        re-scanned by later builds on the same node. Both caches are bounded
+ *        by the bytes they hold rather than by a count, since one template
+ *        may be a few hundred bytes or several megabytes.
+ */
+public class ConfigTemplate {
+
+	// Longer "${..." runs are not slots, just text.
+	private static final int MAX_SLOT = 256;
+	private static final long MAX_TEMPLATE_BYTES = 32L * 1024 * 1024;
+	private static final long MAX_FILE_BYTES = 1024 * 1024;
+	// Rough cost of an object or array header and its reference.
+	private static final int OVERHEAD = 32;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Content hash to compiled template, and "path|size|modified" to content hash.
+	private static final Cache<ConfigTemplate> TEMPLATES = new Cache<ConfigTemplate>(MAX_TEMPLATE_BYTES);
+	private static final Cache<String> FILES = new Cache<String>(MAX_FILE_BYTES);
+
+	private final byte[][] literals;
+	private final String[] slots;
+	private final long bytes;
+
+	private ConfigTemplate(byte[][] literals, String[] slots) {
+		this.literals = literals;
+		this.slots = slots;
+		long bytes = OVERHEAD;
+		for (byte[] literal : literals) {
+			bytes += literal.length + OVERHEAD;
+		}
+		for (String slot : slots) {
+			bytes += 2 * slot.length() + OVERHEAD;
+		}
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return the compiled form of a template file, from the cache when the
+	 *         file (or another with the same content) was compiled before.
+	 */
+	public static ConfigTemplate forFile(File file) throws IOException {
+		String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+		String hash = FILES.get(key);
+		if (hash != null) {
+			ConfigTemplate template = TEMPLATES.get(hash);
+			if (template != null) {
+				return template;
+			}
+		}
+
+		byte[] content = ConfigTemplate.read(file);
+		hash = ConfigTemplate.hash(content);
+		ConfigTemplate template = TEMPLATES.get(hash);
+		if (template == null) {
+			template = ConfigTemplate.compile(content);
+			TEMPLATES.put(hash, template, template.bytes);
+		}
+		FILES.put(key, hash, 2 * (key.length() + hash.length()) + OVERHEAD);
+		return template;
+	}
+
+	/**
+	 * Split content into literals and ${name} slots. An unterminated "${",
+	 * or one running on past a "$" or the length limit, is literal text.
+	 */
+	public static ConfigTemplate compile(byte[] content) {
+		List<byte[]> literals = new ArrayList<byte[]>();
+		List<String> slots = new ArrayList<String>();
+		int literalStart = 0;
+		int i = 0;
+		while (i < content.length - 1) {
+			if (content[i] != '$' || content[i + 1] != '{') {
+				i++;
+				continue;
+			}
+			int end = i + 2;
+			while (end < content.length && end - i - 2 <= MAX_SLOT && content[end] != '}' && content[end] != '$') {
+				end++;
+			}
+			if (end >= content.length || content[end] != '}' || end - i - 2 > MAX_SLOT) {
+				// Not a slot; carry on from the byte that ended it.
+				i = Math.max(end, i + 1);
+				continue;
+			}
+			literals.add(ConfigTemplate.slice(content, literalStart, i));
+			slots.add(ConfigTemplate.ascii(content, i + 2, end));
+			literalStart = end + 1;
+			i = literalStart;
+		}
+		literals.add(ConfigTemplate.slice(content, literalStart, content.length));
+		return new ConfigTemplate(literals.toArray(new byte[literals.size()][]), slots.toArray(new String[slots.size()]));
+	}
+
+	/**
+	 * Write the template with every slot that has a value filled in; the
+	 * others are written back as ${name}.
+	 *
+	 * @param missing collects slots with no value, or null.
+	 * @return the number of slots filled.
+	 */
+	public int render(Map<String, byte[]> values, OutputStream out, Set<String> missing) throws IOException {
+		int filled = 0;
+		for (int i = 0; i < this.slots.length; i++) {
+			out.write(this.literals[i]);
+			byte[] value = values.get(this.slots[i]);
+			if (value != null) {
+				out.write(value);
+				filled++;
+			} else {
+				if (missing != null) {
+					missing.add(this.slots[i]);
+				}
+				out.write('$');
+				out.write('{');
+				out.write(this.slots[i].getBytes("ISO-8859-1"));
+				out.write('}');
+			}
+		}
+		out.write(this.literals[this.slots.length]);
+		return filled;
+	}
+
+	public String[] getSlots() {
+		return this.slots.clone();
+	}
+
+	static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			content.write(buffer, 0, read);
+		}
+		return content.toByteArray();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return ConfigTemplate.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] slice(byte[] content, int start, int end) {
+		byte[] slice = new byte[end - start];
+		System.arraycopy(content, start, slice, 0, slice.length);
+		return slice;
+	}
+
+	private static String ascii(byte[] content, int start, int end) {
+		try {
+			return new String(content, start, end - start, "ISO-8859-1");
+		} catch (IOException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	private static String hash(byte[] content) throws IOException {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Checksum algorithm unavailable: SHA-1");
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha1.digest(content)) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Least recently used entries, dropped once the bytes they hold pass the
+	 * cap. The entry just added is kept even when it alone is over the cap.
+	 */
+	static final class Cache<V> {
+
+		private final Map<String, Sized<V>> entries = new LinkedHashMap<String, Sized<V>>(16, 0.75f, true);
+		private final long maxBytes;
+		private long bytes;
+
+		Cache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized V get(String key) {
+			Sized<V> entry = this.entries.get(key);
+			return entry == null ? null : entry.value;
+		}
+
+		synchronized void put(String key, V value, long size) {
+			Sized<V> old = this.entries.put(key, new Sized<V>(value, size));
+			this.bytes += size - (old == null ? 0 : old.bytes);
+			for (Iterator<Map.Entry<String, Sized<V>>> eldest = this.entries.entrySet().iterator(); this.bytes > this.maxBytes && eldest.hasNext();) {
+				Map.Entry<String, Sized<V>> entry = eldest.next();
+				if (!entry.getKey().equals(key)) {
+					this.bytes -= entry.getValue().bytes;
+					eldest.remove();
+				}
+			}
+		}
+
+		synchronized long getBytes() {
+			return this.bytes;
+		}
+	}
+
+	private static final class Sized<V> {
+		final V value;
+		final long bytes;
+
+		Sized(V value, long bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.jostens.hudson.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * @author blaisj1
+ * @brief Replaces ${password.*} tokens in Tomcat configuration files with
+ *        the values from a password properties file, in one pass per file.
+ *
+ *        Every token starts with "${" and ends with "}", so rather than
+ *        searching for each password in turn, the file is compiled once into
+ *        a ConfigTemplate and each token's name is looked up in a map of all
+ *        the passwords. Tokens with no password are left as they are.
+ *
+ *        A file is only rewritten if it holds at least one token. The new
+ *        content is written beside it and swapped in by rename, keeping the
+ *        original as {file}.bak.
+ */
+public class PasswordSubstituter {
+
+	public static final String PREFIX = "password.";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Map<String, byte[]> passwords = new HashMap<String, byte[]>();
+	// Files may be substituted on several threads at once.
+	private final Set<String> missing = Collections.synchronizedSet(new TreeSet<String>());
+
+	/**
+	 * @param properties every property whose name starts with password. is
+	 *        a replacement; the rest are ignored.
+	 */
+	public PasswordSubstituter(Properties properties) {
+		for (Enumeration<?> names = properties.propertyNames(); names.hasMoreElements();) {
+			String name = (String) names.nextElement();
+			if (name.startsWith(PREFIX)) {
+				// Written in the platform encoding, as Ant's replace task did.
+				this.passwords.put(name, properties.getProperty(name).getBytes());
+			}
+		}
+	}
+
+	/**
+	 * Load a password properties file. The location has always been a URL
+	 * (as Ant's loadproperties took it), but a plain path works too.
+	 */
+	public static Properties load(String location) throws IOException {
+		InputStream in;
+		try {
+			in = new URL(location).openStream();
+		} catch (MalformedURLException e) {
+			in = new FileInputStream(location);
+		}
+		Properties properties = new Properties();
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	public int getPasswordCount() {
+		return this.passwords.size();
+	}
+
+	/**
+	 * @return the password.* tokens found so far that had no password.
+	 */
+	public Set<String> getMissing() {
+		return this.missing;
+	}
+
+	/**
+	 * Replace the tokens in a file, keeping the original as {file}.bak.
+	 *
+	 * @return the number of tokens replaced; 0 leaves the file untouched.
+	 */
+	public int substitute(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		int replaced;
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+			try {
+				replaced = this.substitute(in, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+
+		if (replaced == 0) {
+			temp.delete();
+			return 0;
+		}
+		File backup = new File(file.getPath() + ".bak");
+		if (backup.exists() && !backup.delete()) {
+			temp.delete();
+			throw new IOException("Unable to replace " + backup);
+		}
+		if (!file.renameTo(backup)) {
+			temp.delete();
+			throw new IOException("Unable to back up " + file);
+		}
+		if (!temp.renameTo(file)) {
+			// Put the original back rather than leave no file at all.
+			backup.renameTo(file);
+			temp.delete();
+			throw new IOException("Unable to replace " + file);
+		}
+		return replaced;
+	}
+
+	/**
+	 * Copy the stream, replacing every ${password.*} token that has a
+	 * password.
+	 *
+	 * @return the number of tokens replaced.
+	 */
+	public int substitute(InputStream in, OutputStream out) throws IOException {
+		return this.render(ConfigTemplate.compile(ConfigTemplate.read(in)), out);
+	}
+
+	/**
+	 * Write a template file with its passwords in place. The file is compiled
+	 * once per node and content, so rendering it for server after server only
+	 * writes its segments and passwords in turn.
+	 *
+	 * @return the number of tokens replaced.
+	 */
+	public int render(File template, OutputStream out) throws IOException {
+		return this.render(ConfigTemplate.forFile(template), out);
+	}
+
+	private int render(ConfigTemplate template, OutputStream out) throws IOException {
+		Set<String> unresolved = new TreeSet<String>();
+		int replaced = template.render(this.passwords, out, unresolved);
+		for (String token : unresolved) {
+			if (token.startsWith(PREFIX)) {
+				this.missing.add(token);
+			}
+		}
+		return replaced;
+	}
+}
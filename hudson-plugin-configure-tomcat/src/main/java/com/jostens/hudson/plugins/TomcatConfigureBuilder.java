@@ -7,123 +7,242 @@ import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
-import hudson.tasks.Ant;
-import hudson.tasks.Ant.AntInstallation;
-import hudson.tasks.BatchFile;
+import hudson.remoting.Callable;
 import hudson.tasks.Builder;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
-import antlr.actions.cpp.ActionLexer;
 
 public class TomcatConfigureBuilder extends Builder {
 
-	private static final String ANT_BUILD = "ant-replace-password.xml";
-	private static final String copyFiles = "xcopy \"{configFilePath}\" \"{tomcatRootDirectory}\" /S /Y /F /E";
-
 	private final String configFilePath;
 	private final String tomcatRootDirectory;
 	private final String passwordFilePath;
 	private EnvVars environmentVariables;
 	private final boolean deployConfiguration;
 	private final boolean replacePasswords;
+	private final String parallelism;
 
 	@DataBoundConstructor
-	public TomcatConfigureBuilder(String tomcatRootDirectory, String configFilePath, String passwordFilePath, String deployConfiguration, String replacePasswords) {
+	public TomcatConfigureBuilder(String tomcatRootDirectory, String configFilePath, String passwordFilePath, String deployConfiguration, String replacePasswords, String parallelism) {
 		this.tomcatRootDirectory = tomcatRootDirectory;
 		this.configFilePath = configFilePath;
 		this.passwordFilePath = passwordFilePath;
 		this.deployConfiguration = Boolean.parseBoolean(deployConfiguration);
 		this.replacePasswords = Boolean.parseBoolean(replacePasswords);
+		this.parallelism = parallelism;
 	}
 
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
-		boolean successFlag = false;
 		try {
-			List<BatchFile> commands = new ArrayList<BatchFile>();
 			this.environmentVariables = build.getEnvironment(listener);
-
-			if (deployConfiguration) {
-				String copyFileCommand = generateCopyFileScript();
-				commands.add(new BatchFile(copyFileCommand));
-
-				for (BatchFile command : commands) {
-					successFlag = command.perform(build, launcher, listener);
-					if (!successFlag) {
-						break;
-					}
-				}
+			List<String> tomcatRoots = TomcatConfigureBuilder.split(this.environmentVariables.expand(this.tomcatRootDirectory));
+			if (tomcatRoots.isEmpty()) {
+				listener.fatalError("No Tomcat root directory given.");
+				return false;
 			}
-
-			if (replacePasswords) {
-
-				// Get build file from class-path, and write to workspace.
-				String antBuildFilePath = this.environmentVariables.expand("${WORKSPACE}") + "\\" + ANT_BUILD;
-				File antBuild = new File(antBuildFilePath);
-				this.writeToFile(this.getClass().getClassLoader().getResourceAsStream(ANT_BUILD), antBuild);
-
-				// Create Ant properties.
-				String passwordAntProperty = "password.properties=" + (this.environmentVariables.expand(this.passwordFilePath)).replace("\\", "\\\\");
-				String serverConfigAntProperty = "server.configuration.path=" + (this.environmentVariables.expand(this.tomcatRootDirectory)).replace("\\", "\\\\") + "\\\\conf";
-				String antProps = passwordAntProperty + System.getProperty("line.separator") + serverConfigAntProperty;
-
-				// Determine Ant Installation.
-				String antName = null;
-				//TODO: Find a better way to get at the ant installations.
-				Ant antInstall = new Ant(null, null, null, null, null);
-				AntInstallation antInstallation = antInstall.getDescriptor().getInstallations()[0];
-				if(antInstallation != null) {
-					antName = antInstallation.getName();
-				}
-				
-				// Call Ant.
-				listener.getLogger().println("Using Ant Installation: " + antName);
-				Ant ant = new Ant("replace-passwords", antName, null, antBuild.getAbsolutePath(), antProps);
-               
-				successFlag = ant.perform(build, launcher, listener);
-
+			if (!deployConfiguration && !replacePasswords) {
+				return false;
 			}
 
+			// xcopy took "dir\*" as well as "dir"; both mean the directory's contents.
+			String configPath = deployConfiguration ? this.environmentVariables.expand(this.configFilePath).replaceAll("[\\\\/]\\*(\\.\\*)?$", "") : null;
+			String passwords = replacePasswords ? this.environmentVariables.expand(this.passwordFilePath) : null;
+			int workers = (int) TomcatConfigureBuilder.parseLong(this.environmentVariables.expand(this.parallelism));
+			// Run on the node, which holds the configuration and reaches the Tomcat roots.
+			launcher.getChannel().call(new ConfigureTomcats(configPath, passwords, tomcatRoots, workers, listener));
 		} catch (IOException e) {
 			Util.displayIOException(e, listener);
 			e.printStackTrace(listener.fatalError("Unable to complete build step."));
 			return false;
 		}
 
-		return successFlag;
+		return true;
 	}
 
-	private String generateCopyFileScript() {
-		String command = TomcatConfigureBuilder.copyFiles;
-		command = command.replace("{configFilePath}", this.configFilePath);
-		command = command.replace("{tomcatRootDirectory}", this.tomcatRootDirectory);
+	// One value per line, or comma separated.
+	private static List<String> split(String values) {
+		List<String> list = new ArrayList<String>();
+		if (values == null) {
+			return list;
+		}
+		for (String value : values.split("[\\r\\n,]+")) {
+			if (value.trim().length() > 0) {
+				list.add(value.trim());
+			}
+		}
+		return list;
+	}
 
-		return this.environmentVariables.expand(command);
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (Exception e) {
+			return 0;
+		}
 	}
 
-	private void writeToFile(InputStream input, File file) throws IOException {
+	/**
+	 * Runs on the node: copies the configuration files that differ into each
+	 * Tomcat root, with passwords substituted, then replaces the password
+	 * tokens left in each root's conf. Several roots are configured at once;
+	 * a failed root does not stop the others, but fails the step.
+	 */
+	private static final class ConfigureTomcats implements Callable<Void, IOException> {
+
+		private static final long serialVersionUID = 1L;
+		// Most of the time goes to round trips to the share, not to the CPU.
+		private static final int THREADS = 8;
+		// Copy threads shared by all the roots configured at once.
+		private static final int MAX_THREADS = 32;
+
+		private final String configPath;
+		private final String passwordFilePath;
+		private final List<String> tomcatRoots;
+		private final int parallelism;
+		private final BuildListener listener;
+
+		/**
+		 * @param configPath the configuration to copy, or null to copy none.
+		 * @param passwordFilePath the passwords to substitute, or null.
+		 * @param parallelism the most roots configured at once, or 0 for all.
+		 */
+		ConfigureTomcats(String configPath, String passwordFilePath, List<String> tomcatRoots, int parallelism, BuildListener listener) {
+			this.configPath = configPath;
+			this.passwordFilePath = passwordFilePath;
+			this.tomcatRoots = tomcatRoots;
+			this.parallelism = parallelism;
+			this.listener = listener;
+		}
 
-		// write the inputStream to a FileOutputStream
-		OutputStream out = new FileOutputStream(file);
+		public Void call() throws IOException {
+			final PrintStream logger = this.listener.getLogger();
+			// Read the passwords once for every root.
+			final Properties passwords = this.passwordFilePath == null ? null : PasswordSubstituter.load(this.passwordFilePath);
+			if (passwords != null) {
+				logger.println("Loaded " + new PasswordSubstituter(passwords).getPasswordCount() + " passwords from " + this.passwordFilePath);
+			}
+			if (this.tomcatRoots.size() == 1) {
+				try {
+					this.configure(this.tomcatRoots.get(0), passwords, THREADS, logger);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted configuring " + this.tomcatRoots);
+				}
+				return null;
+			}
 
-		int read = 0;
-		byte[] bytes = new byte[1024];
+			int workers = this.parallelism <= 0 ? this.tomcatRoots.size() : Math.min(this.parallelism, this.tomcatRoots.size());
+			final int threads = Math.min(THREADS, Math.max(2, MAX_THREADS / workers));
+			logger.println("Configuring " + this.tomcatRoots.size() + " Tomcat roots, " + workers + " at a time.");
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			try {
+				CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+				Map<Future<String>, String> targets = new HashMap<Future<String>, String>();
+				for (final String tomcatRoot : this.tomcatRoots) {
+					targets.put(completion.submit(new java.util.concurrent.Callable<String>() {
+						public String call() throws IOException, InterruptedException {
+							// Buffer each root's log so concurrent roots do not interleave.
+							ByteArrayOutputStream log = new ByteArrayOutputStream();
+							PrintStream out = new PrintStream(log, true);
+							try {
+								return ConfigureTomcats.this.configure(tomcatRoot, passwords, threads, out);
+							} finally {
+								synchronized (logger) {
+									logger.println("[" + tomcatRoot + "]");
+									logger.print(log.toString());
+								}
+							}
+						}
+					}), tomcatRoot);
+				}
 
-		while ((read = input.read(bytes)) != -1) {
-			out.write(bytes, 0, read);
+				List<String> results = new ArrayList<String>();
+				int failures = 0;
+				for (int i = 0; i < targets.size(); i++) {
+					Future<String> future = completion.take();
+					try {
+						results.add(future.get());
+					} catch (ExecutionException e) {
+						failures++;
+						results.add(targets.get(future) + ": FAILED - " + e.getCause());
+					}
+				}
+				logger.println("Configuration results:");
+				for (String result : results) {
+					logger.println("  " + result);
+				}
+				if (failures > 0) {
+					throw new IOException(failures + " of " + targets.size() + " Tomcat roots failed.");
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted configuring " + this.tomcatRoots);
+			} finally {
+				executor.shutdownNow();
+			}
+			return null;
 		}
 
-		input.close();
-		out.flush();
-		out.close();
+		/**
+		 * @return a one line summary of what was done to the root.
+		 */
+		private String configure(String tomcatRoot, Properties passwords, int threads, PrintStream logger) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			StringBuilder summary = new StringBuilder(tomcatRoot + ":");
+			if (this.configPath != null) {
+				ConfigSync sync = new ConfigSync(threads, passwords == null ? null : new PasswordSubstituter(passwords));
+				for (String path : sync.sync(new File(this.configPath), new File(tomcatRoot))) {
+					logger.println("Copied " + path);
+				}
+				logger.println("Configuration sync: " + sync.getCopied() + " copied (" + sync.getCopiedBytes() + " bytes), " + sync.getSkipped() + " unchanged and skipped, in " + (System.currentTimeMillis() - start) + "ms.");
+				summary.append(" " + sync.getCopied() + " copied, " + sync.getSkipped() + " unchanged,");
+			}
+			if (passwords != null) {
+				PasswordSubstituter substituter = new PasswordSubstituter(passwords);
+				int replaced = ConfigureTomcats.substitute(substituter, new File(tomcatRoot, "conf"), logger);
+				if (!substituter.getMissing().isEmpty()) {
+					logger.println("No password given for " + substituter.getMissing());
+				}
+				logger.println("Replaced " + replaced + " password tokens in " + tomcatRoot + "\\conf.");
+				summary.append(" " + replaced + " passwords replaced,");
+			}
+			return summary.append(" in " + (System.currentTimeMillis() - start) + "ms").toString();
+		}
 
+		private static int substitute(PasswordSubstituter substituter, File dir, PrintStream logger) throws IOException {
+			File[] children = dir.listFiles();
+			if (children == null) {
+				throw new IOException("Unable to list " + dir);
+			}
+			int replaced = 0;
+			for (File child : children) {
+				String name = child.getName().toLowerCase();
+				if (child.isDirectory()) {
+					replaced += ConfigureTomcats.substitute(substituter, child, logger);
+				} else if (name.endsWith(".xml") || name.endsWith(".properties")) {
+					int count = substituter.substitute(child);
+					if (count > 0) {
+						logger.println("Replaced " + count + " password tokens in " + child);
+					}
+					replaced += count;
+				}
+			}
+			return replaced;
+		}
 	}
 
 	/**
@@ -176,6 +295,13 @@ public class TomcatConfigureBuilder extends Builder {
 		return replacePasswords;
 	}
 
+	/**
+	 * @return the parallelism
+	 */
+	public String getParallelism() {
+		return parallelism;
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends Descriptor<Builder> {
 		public DescriptorImpl() {
@@ -187,7 +313,7 @@ public class TomcatConfigureBuilder extends Builder {
 		}
 
 		public TomcatConfigureBuilder newInstance(StaplerRequest req) throws Descriptor.FormException {
-			return new TomcatConfigureBuilder(req.getParameter("tomcatRootDirectory"), req.getParameter("configFilePath"), req.getParameter("passwordFilePath"), req.getParameter("deployConfiguration"), req.getParameter("replacePasswords"));
+			return new TomcatConfigureBuilder(req.getParameter("tomcatRootDirectory"), req.getParameter("configFilePath"), req.getParameter("passwordFilePath"), req.getParameter("deployConfiguration"), req.getParameter("replacePasswords"), req.getParameter("parallelism"));
 		}
 
 		public TomcatConfigureBuilder newInstance(StaplerRequest req, JSONObject formData) throws Descriptor.FormException {
@@ -0,0 +1,81 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Syncs a configuration tree over a Tomcat root under a temporary
+ *        directory.
+ */
+public class ConfigSyncTest extends TestCase {
+
+	private File source;
+	private File target;
+
+	protected void setUp() throws Exception {
+		this.source = PasswordSubstituterTest.createTempDir("source");
+		this.target = PasswordSubstituterTest.createTempDir("target");
+		PasswordSubstituterTest.write(new File(this.source, "conf/server.xml"), "<Server port=\"8005\"/>");
+		PasswordSubstituterTest.write(new File(this.source, "conf/context.xml"), "<Resource password=\"${password.db}\"/>");
+		PasswordSubstituterTest.write(new File(this.source, "lib/driver.jar"), "jar bytes");
+	}
+
+	protected void tearDown() throws Exception {
+		PasswordSubstituterTest.deleteRecursive(this.source);
+		PasswordSubstituterTest.deleteRecursive(this.target);
+	}
+
+	public void testCopiesMissingFilesKeepingModifiedTime() throws Exception {
+		File jar = new File(this.source, "lib/driver.jar");
+		jar.setLastModified(jar.lastModified() - 60000);
+		ConfigSync sync = new ConfigSync(4, null);
+		assertEquals(3, sync.sync(this.source, this.target).size());
+		assertEquals(3, sync.getCopied());
+		assertEquals("jar bytes", PasswordSubstituterTest.read(new File(this.target, "lib/driver.jar")));
+		assertEquals(jar.lastModified(), new File(this.target, "lib/driver.jar").lastModified());
+	}
+
+	public void testSkipsUnchangedAndReplacesChanged() throws Exception {
+		new ConfigSync(4, null).sync(this.source, this.target);
+		File server = new File(this.target, "conf/server.xml");
+		long modified = server.lastModified() - 60000;
+		server.setLastModified(modified);
+		// Same size, different content.
+		PasswordSubstituterTest.write(new File(this.target, "lib/driver.jar"), "jar BYTES");
+		File logs = new File(this.target, "logs/catalina.out");
+		PasswordSubstituterTest.write(logs, "log");
+
+		ConfigSync sync = new ConfigSync(4, null);
+		assertEquals(Arrays.asList("lib" + File.separator + "driver.jar"), sync.sync(this.source, this.target));
+		assertEquals(2, sync.getSkipped());
+		assertEquals(modified, server.lastModified());
+		assertEquals("jar bytes", PasswordSubstituterTest.read(new File(this.target, "lib/driver.jar")));
+		assertFalse(new File(this.target, "lib/driver.jar.sync").exists());
+		// Nothing is deleted from the target.
+		assertTrue(logs.isFile());
+	}
+
+	public void testComparesWithPasswordsInPlace() throws Exception {
+		Properties passwords = new Properties();
+		passwords.setProperty("password.db", "s3cret");
+		File context = new File(this.source, "conf/context.xml");
+		context.setLastModified(context.lastModified() - 60000);
+		assertEquals(3, new ConfigSync(2, new PasswordSubstituter(passwords)).sync(this.source, this.target).size());
+		assertEquals("<Resource password=\"s3cret\"/>", PasswordSubstituterTest.read(new File(this.target, "conf/context.xml")));
+		// Rendered files keep the source's modified time, as copies do.
+		assertEquals(context.lastModified(), new File(this.target, "conf/context.xml").lastModified());
+
+		// The substituted copy matches its rendered source, so nothing is written.
+		assertEquals(Collections.<String> emptyList(), new ConfigSync(2, new PasswordSubstituter(passwords)).sync(this.source, this.target));
+
+		passwords.setProperty("password.db", "rotated");
+		assertEquals(Arrays.asList("conf" + File.separator + "context.xml"), new ConfigSync(2, new PasswordSubstituter(passwords)).sync(this.source, this.target));
+		assertEquals("<Resource password=\"rotated\"/>", PasswordSubstituterTest.read(new File(this.target, "conf/context.xml")));
+		// Same source time, so it takes the time written or Tomcat would not notice.
+		assertTrue(new File(this.target, "conf/context.xml").lastModified() > context.lastModified());
+	}
+}
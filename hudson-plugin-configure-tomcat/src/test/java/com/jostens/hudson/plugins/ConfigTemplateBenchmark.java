@@ -0,0 +1,157 @@
+package com.jostens.hudson.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Times configuring 50 servers from a tree of 200 templates: reading
+ *        and scanning every file again for every server, as the step did
+ *        before templates were compiled, against rendering compiled templates
+ *        from the cache, both discarding the output and writing it to disk;
+ *        and a full ConfigSync of every root, first into empty roots and
+ *        then into roots that are already up to date.
+ *
+ *        The name keeps it out of the unit tests; run it on its own with
+ *        mvn test -Dtest=ConfigTemplateBenchmark. -Dbenchmark.servers,
+ *        -Dbenchmark.files and -Dbenchmark.rounds change the defaults. Each
+ *        time is the best of its rounds.
+ */
+public class ConfigTemplateBenchmark extends TestCase {
+
+	private static final int PASSWORDS = 50;
+
+	private File dir;
+	private File source;
+	private int servers;
+	private int files;
+	private int rounds;
+	private PasswordSubstituter substituter;
+
+	protected void setUp() throws Exception {
+		this.dir = PasswordSubstituterTest.createTempDir("benchmark");
+		this.source = new File(this.dir, "config");
+		this.servers = Integer.getInteger("benchmark.servers", 50);
+		this.files = Integer.getInteger("benchmark.files", 200);
+		this.rounds = Integer.getInteger("benchmark.rounds", 3);
+
+		Properties passwords = new Properties();
+		for (int i = 0; i < PASSWORDS; i++) {
+			passwords.setProperty(PasswordSubstituter.PREFIX + i, "secret-" + i);
+		}
+		this.substituter = new PasswordSubstituter(passwords);
+		for (int i = 0; i < this.files; i++) {
+			StringBuilder text = new StringBuilder("<Context>\n");
+			for (int line = 0; line < 100; line++) {
+				text.append("  <Resource name=\"jdbc/r").append(line).append("\" url=\"jdbc:oracle:thin:@db").append(line % 5).append(":1521:app\" password=\"${password.").append((i + line) % PASSWORDS).append("}\"/>\n");
+			}
+			PasswordSubstituterTest.write(new File(this.source, "conf/d" + (i % 10) + "/file" + i + (i % 4 == 0 ? ".properties" : ".xml")), text.append("</Context>\n").toString());
+		}
+		System.out.println(this.servers + " servers x " + this.files + " files, best of " + this.rounds);
+	}
+
+	protected void tearDown() throws Exception {
+		PasswordSubstituterTest.deleteRecursive(this.dir);
+	}
+
+	public void testRenderForEveryServer() throws Exception {
+		File[] templates = this.templates();
+		File targets = new File(this.dir, "render");
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round < this.rounds; round++) {
+			best[0] = Math.min(best[0], this.render(templates, null, false));
+			best[1] = Math.min(best[1], this.render(templates, null, true));
+			best[2] = Math.min(best[2], this.render(templates, targets, false));
+			best[3] = Math.min(best[3], this.render(templates, targets, true));
+
+			File roots = new File(this.dir, "roots");
+			PasswordSubstituterTest.deleteRecursive(roots);
+			long start = System.nanoTime();
+			this.syncAll(roots, this.files);
+			best[4] = Math.min(best[4], System.nanoTime() - start);
+			start = System.nanoTime();
+			this.syncAll(roots, 0);
+			best[5] = Math.min(best[5], System.nanoTime() - start);
+		}
+		System.out.println("Re-read and re-scan per server, discarded:  " + best[0] / 1000000 + "ms");
+		System.out.println("Compiled, cached templates, discarded:      " + best[1] / 1000000 + "ms");
+		System.out.println("Re-read and re-scan per server, to disk:    " + best[2] / 1000000 + "ms");
+		System.out.println("Compiled, cached templates, to disk:        " + best[3] / 1000000 + "ms");
+		System.out.println("ConfigSync into empty roots:                " + best[4] / 1000000 + "ms");
+		System.out.println("ConfigSync, roots up to date:               " + best[5] / 1000000 + "ms");
+	}
+
+	/**
+	 * @param targets where each server's files are written, or null to
+	 *        discard them and time only the reading and rendering.
+	 * @return the nanoseconds taken to render every template for every
+	 *         server.
+	 */
+	private long render(File[] templates, File targets, boolean compiled) throws IOException {
+		if (targets != null) {
+			PasswordSubstituterTest.deleteRecursive(targets);
+		}
+		long start = System.nanoTime();
+		for (int server = 0; server < this.servers; server++) {
+			for (int i = 0; i < templates.length; i++) {
+				OutputStream out = targets == null ? new NullOutputStream() : ConfigTemplateBenchmark.create(new File(targets, server + "/" + i));
+				try {
+					if (compiled) {
+						this.substituter.render(templates[i], out);
+						continue;
+					}
+					InputStream in = new BufferedInputStream(new FileInputStream(templates[i]));
+					try {
+						this.substituter.substitute(in, out);
+					} finally {
+						in.close();
+					}
+				} finally {
+					out.close();
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void syncAll(File roots, int written) throws Exception {
+		for (int server = 0; server < this.servers; server++) {
+			ConfigSync sync = new ConfigSync(8, this.substituter);
+			assertEquals(written, sync.sync(this.source, new File(roots, String.valueOf(server))).size());
+		}
+	}
+
+	private File[] templates() {
+		File[] templates = new File[this.files];
+		for (int i = 0; i < this.files; i++) {
+			templates[i] = new File(this.source, "conf/d" + (i % 10) + "/file" + i + (i % 4 == 0 ? ".properties" : ".xml"));
+		}
+		return templates;
+	}
+
+	private static OutputStream create(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+	}
+
+	private static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Compiles and renders configuration templates, and checks that an
+ *        unchanged template file is compiled once per node.
+ */
+public class ConfigTemplateTest extends TestCase {
+
+	private File dir;
+
+	protected void setUp() throws Exception {
+		this.dir = PasswordSubstituterTest.createTempDir("templates");
+	}
+
+	protected void tearDown() throws Exception {
+		PasswordSubstituterTest.deleteRecursive(this.dir);
+	}
+
+	public void testSplitsSlotsAndLiterals() throws Exception {
+		ConfigTemplate template = ConfigTemplate.compile("${a}-x-${b}${a}".getBytes("ISO-8859-1"));
+		assertEquals(Arrays.asList("a", "b", "a"), Arrays.asList(template.getSlots()));
+		assertEquals("1-x-221", ConfigTemplateTest.render(template, "a", "1", "b", "22"));
+	}
+
+	public void testLeavesMalformedSlotsAsText() throws Exception {
+		String text = "cost $5, ${unterminated ${a} $ {b} ${x$y} $";
+		ConfigTemplate template = ConfigTemplate.compile(text.getBytes("ISO-8859-1"));
+		assertEquals(Arrays.asList("a"), Arrays.asList(template.getSlots()));
+		assertEquals(text.replace("${a}", "A"), ConfigTemplateTest.render(template, "a", "A"));
+	}
+
+	public void testOverlongSlotIsText() throws Exception {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			name.append('n');
+		}
+		String text = "${" + name + "}";
+		assertEquals(0, ConfigTemplate.compile(text.getBytes("ISO-8859-1")).getSlots().length);
+	}
+
+	public void testMissingValuesAreWrittenBackAndCollected() throws Exception {
+		ConfigTemplate template = ConfigTemplate.compile("${a} ${b} ${c}".getBytes("ISO-8859-1"));
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		values.put("b", "B".getBytes("ISO-8859-1"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Set<String> missing = new TreeSet<String>();
+		assertEquals(1, template.render(values, out, missing));
+		assertEquals("${a} B ${c}", out.toString("ISO-8859-1"));
+		assertEquals(new TreeSet<String>(Arrays.asList("a", "c")), missing);
+	}
+
+	public void testUnchangedFileIsCompiledOnce() throws Exception {
+		File file = new File(this.dir, "context.xml");
+		PasswordSubstituterTest.write(file, "<Resource password=\"${password.db}\"/>");
+		ConfigTemplate first = ConfigTemplate.forFile(file);
+		assertSame(first, ConfigTemplate.forFile(file));
+
+		// Another file with the same content shares the compiled template.
+		File copy = new File(this.dir, "copy.xml");
+		PasswordSubstituterTest.write(copy, "<Resource password=\"${password.db}\"/>");
+		assertSame(first, ConfigTemplate.forFile(copy));
+
+		PasswordSubstituterTest.write(file, "<Resource user=\"${user}\" password=\"${password.db}\"/>");
+		file.setLastModified(file.lastModified() + 2000);
+		ConfigTemplate changed = ConfigTemplate.forFile(file);
+		assertNotSame(first, changed);
+		assertEquals(Arrays.asList("user", "password.db"), Arrays.asList(changed.getSlots()));
+	}
+
+	public void testCacheIsBoundedByBytes() throws Exception {
+		ConfigTemplate.Cache<String> cache = new ConfigTemplate.Cache<String>(100);
+		cache.put("a", "A", 40);
+		cache.put("b", "B", 40);
+		// Used since b, so b is the least recently used.
+		assertEquals("A", cache.get("a"));
+		cache.put("c", "C", 40);
+		assertNull(cache.get("b"));
+		assertEquals("A", cache.get("a"));
+		assertEquals(80, cache.getBytes());
+
+		// Replacing an entry counts only its new size.
+		cache.put("c", "C2", 10);
+		assertEquals(50, cache.getBytes());
+
+		// Kept even alone over the cap, at the cost of everything else.
+		cache.put("big", "BIG", 500);
+		assertEquals("BIG", cache.get("big"));
+		assertNull(cache.get("a"));
+		assertNull(cache.get("c"));
+		assertEquals(500, cache.getBytes());
+	}
+
+	/**
+	 * Renders a large file for many servers, as the multi-root configure step
+	 * does, and checks it against replacing each token in turn.
+	 */
+	public void testRendersLargeTemplateLikeReplace() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			text.append("<Connector port=\"${port}\" address=\"${server}\" secret=\"${password.").append(i % 50).append("}\"/> $ {not} ${unset}\n");
+		}
+		ConfigTemplate template = ConfigTemplate.compile(text.toString().getBytes("ISO-8859-1"));
+		assertEquals(8000, template.getSlots().length);
+
+		for (int server = 0; server < 20; server++) {
+			Map<String, byte[]> values = new HashMap<String, byte[]>();
+			String expected = text.toString().replace("${port}", String.valueOf(8080 + server)).replace("${server}", "web" + server);
+			values.put("port", String.valueOf(8080 + server).getBytes("ISO-8859-1"));
+			values.put("server", ("web" + server).getBytes("ISO-8859-1"));
+			for (int i = 0; i < 50; i++) {
+				values.put("password." + i, ("pw" + i + "-" + server).getBytes("ISO-8859-1"));
+				expected = expected.replace("${password." + i + "}", "pw" + i + "-" + server);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(6000, template.render(values, out, null));
+			assertEquals(expected, out.toString("ISO-8859-1"));
+		}
+	}
+
+	private static String render(ConfigTemplate template, String... namesAndValues) throws Exception {
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			values.put(namesAndValues[i], namesAndValues[i + 1].getBytes("ISO-8859-1"));
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		template.render(values, out, null);
+		return out.toString("ISO-8859-1");
+	}
+}
@@ -0,0 +1,124 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Substitutes passwords into configuration files under a temporary
+ *        directory.
+ */
+public class PasswordSubstituterTest extends TestCase {
+
+	private File dir;
+	private PasswordSubstituter substituter;
+
+	protected void setUp() throws Exception {
+		this.dir = PasswordSubstituterTest.createTempDir("conf");
+		Properties passwords = new Properties();
+		passwords.setProperty("password.db", "s3cret");
+		passwords.setProperty("password.ldap", "ld$p{pw}");
+		passwords.setProperty("db.user", "ignored");
+		this.substituter = new PasswordSubstituter(passwords);
+	}
+
+	protected void tearDown() throws Exception {
+		PasswordSubstituterTest.deleteRecursive(this.dir);
+	}
+
+	public void testOnlyPasswordPropertiesAreReplacements() {
+		assertEquals(2, this.substituter.getPasswordCount());
+	}
+
+	public void testSubstitutesStream() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int replaced = this.substituter.substitute(new ByteArrayInputStream("db=${password.db} ldap=${password.ldap} user=${db.user} again=${password.db}".getBytes("UTF-8")), out);
+		assertEquals(3, replaced);
+		// A replacement is never scanned for tokens itself.
+		assertEquals("db=s3cret ldap=ld$p{pw} user=${db.user} again=s3cret", out.toString("UTF-8"));
+		assertTrue(this.substituter.getMissing().isEmpty());
+	}
+
+	public void testUnknownPasswordIsLeftAndReported() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, this.substituter.substitute(new ByteArrayInputStream("${password.jms} ${other}".getBytes("UTF-8")), out));
+		assertEquals("${password.jms} ${other}", out.toString("UTF-8"));
+		assertEquals(1, this.substituter.getMissing().size());
+		assertTrue(this.substituter.getMissing().contains("password.jms"));
+	}
+
+	public void testSubstitutesFileKeepingBackup() throws Exception {
+		File file = new File(this.dir, "context.xml");
+		PasswordSubstituterTest.write(file, "<Resource password=\"${password.db}\"/>");
+		assertEquals(1, this.substituter.substitute(file));
+		assertEquals("<Resource password=\"s3cret\"/>", PasswordSubstituterTest.read(file));
+		assertEquals("<Resource password=\"${password.db}\"/>", PasswordSubstituterTest.read(new File(this.dir, "context.xml.bak")));
+		assertFalse(new File(this.dir, "context.xml.tmp").exists());
+
+		// Run again on the substituted file: nothing left to replace, backup kept.
+		assertEquals(0, this.substituter.substitute(file));
+		assertEquals("<Resource password=\"${password.db}\"/>", PasswordSubstituterTest.read(new File(this.dir, "context.xml.bak")));
+	}
+
+	public void testFileWithoutTokensIsUntouched() throws Exception {
+		File file = new File(this.dir, "server.xml");
+		PasswordSubstituterTest.write(file, "<Server port=\"8005\"/>");
+		long modified = file.lastModified() - 60000;
+		file.setLastModified(modified);
+		assertEquals(0, this.substituter.substitute(file));
+		assertEquals(modified, file.lastModified());
+		assertFalse(new File(this.dir, "server.xml.bak").exists());
+	}
+
+	public void testLoadsFromPathOrUrl() throws Exception {
+		File file = new File(this.dir, "passwords.properties");
+		PasswordSubstituterTest.write(file, "password.db=s3cret\n");
+		assertEquals("s3cret", PasswordSubstituter.load(file.getPath()).getProperty("password.db"));
+		assertEquals("s3cret", PasswordSubstituter.load(file.toURI().toURL().toString()).getProperty("password.db"));
+	}
+
+	static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return dir;
+	}
+
+	static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				PasswordSubstituterTest.deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+
+	static void write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return new String(ConfigTemplate.read(in), "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * @author blaisj1
+ * @brief Deploys an artifact and its POM to a Maven repository using the
+ *        standard repository layout, the same way maven-deploy-plugin's
+ *        deploy-file goal does: checksums are uploaded alongside each file,
+ *        SNAPSHOT versions get a unique timestamped file name, and the
+ *        maven-metadata.xml files are updated.
+ */
+public class MavenArtifactDeployer {
+
+	private static final String METADATA = "maven-metadata.xml";
+	private static final String SNAPSHOT = "SNAPSHOT";
+
+	private final String repositoryUrl;
+	private final NexusUploader uploader;
+	private final PrintStream logger;
+
+	public MavenArtifactDeployer(String repositoryUrl, NexusUploader uploader, PrintStream logger) {
+		this.repositoryUrl = repositoryUrl.endsWith("/") ? repositoryUrl.substring(0, repositoryUrl.length() - 1) : repositoryUrl;
+		this.uploader = uploader;
+		this.logger = logger;
+	}
+
+	public void deploy(File artifact, File pom, String groupId, String artifactId, String version, String extension) throws IOException, InterruptedException {
+		String artifactPath = this.repositoryUrl + "/" + groupId.replace('.', '/') + "/" + artifactId;
+		String versionPath = artifactPath + "/" + version;
+		String fileVersion = version;
+		Date now = new Date();
+
+		Document versionMetadata = null;
+		if (version.endsWith(SNAPSHOT)) {
+			// Unique snapshot versions replace SNAPSHOT with timestamp-buildNumber.
+			versionMetadata = this.fetchMetadata(versionPath + "/" + METADATA);
+			int buildNumber = 1;
+			if (versionMetadata != null) {
+				buildNumber = MavenArtifactDeployer.parseInt(MavenArtifactDeployer.getText(versionMetadata, "buildNumber"), 0) + 1;
+			} else {
+				versionMetadata = MavenArtifactDeployer.createMetadata(groupId, artifactId, version);
+			}
+			String timestamp = MavenArtifactDeployer.format("yyyyMMdd.HHmmss", now);
+			fileVersion = version.substring(0, version.length() - SNAPSHOT.length()) + timestamp + "-" + buildNumber;
+
+			Element versioning = MavenArtifactDeployer.getOrCreate(versionMetadata, versionMetadata.getDocumentElement(), "versioning");
+			Element snapshot = MavenArtifactDeployer.getOrCreate(versionMetadata, versioning, "snapshot");
+			MavenArtifactDeployer.getOrCreate(versionMetadata, snapshot, "timestamp").setTextContent(timestamp);
+			MavenArtifactDeployer.getOrCreate(versionMetadata, snapshot, "buildNumber").setTextContent(String.valueOf(buildNumber));
+			String updated = MavenArtifactDeployer.format("yyyyMMddHHmmss", now);
+			MavenArtifactDeployer.getOrCreate(versionMetadata, versioning, "lastUpdated").setTextContent(updated);
+			// Maven 3 clients resolve through snapshotVersions and prefer it over snapshot.
+			Element snapshotVersions = MavenArtifactDeployer.getOrCreate(versionMetadata, versioning, "snapshotVersions");
+			MavenArtifactDeployer.setSnapshotVersion(versionMetadata, snapshotVersions, extension, fileVersion, updated);
+			MavenArtifactDeployer.setSnapshotVersion(versionMetadata, snapshotVersions, "pom", fileVersion, updated);
+		}
+
+		String fileBase = versionPath + "/" + artifactId + "-" + fileVersion;
+		this.uploadWithChecksums(artifact, fileBase + "." + extension);
+		this.uploadWithChecksums(pom, fileBase + ".pom");
+		if (versionMetadata != null) {
+			this.uploadWithChecksums(MavenArtifactDeployer.serialize(versionMetadata), versionPath + "/" + METADATA);
+		}
+
+		// Register the version in the artifact level metadata.
+		Document artifactMetadata = this.fetchMetadata(artifactPath + "/" + METADATA);
+		if (artifactMetadata == null) {
+			artifactMetadata = MavenArtifactDeployer.createMetadata(groupId, artifactId, null);
+		}
+		Element versioning = MavenArtifactDeployer.getOrCreate(artifactMetadata, artifactMetadata.getDocumentElement(), "versioning");
+		Element versions = MavenArtifactDeployer.getOrCreate(artifactMetadata, versioning, "versions");
+		boolean listed = false;
+		NodeList existing = versions.getElementsByTagName("version");
+		for (int i = 0; i < existing.getLength(); i++) {
+			if (version.equals(existing.item(i).getTextContent().trim())) {
+				listed = true;
+			}
+		}
+		if (!listed) {
+			Element element = artifactMetadata.createElement("version");
+			element.setTextContent(version);
+			versions.appendChild(element);
+		}
+		MavenArtifactDeployer.getOrCreate(artifactMetadata, versioning, "latest").setTextContent(version);
+		if (!version.endsWith(SNAPSHOT)) {
+			MavenArtifactDeployer.getOrCreate(artifactMetadata, versioning, "release").setTextContent(version);
+		}
+		MavenArtifactDeployer.getOrCreate(artifactMetadata, versioning, "lastUpdated").setTextContent(MavenArtifactDeployer.format("yyyyMMddHHmmss", now));
+		this.uploadWithChecksums(MavenArtifactDeployer.serialize(artifactMetadata), artifactPath + "/" + METADATA);
+	}
+
+	private void uploadWithChecksums(File file, String url) throws IOException, InterruptedException {
+		this.logger.println("Uploading " + file.getName() + " (" + file.length() + " bytes) to " + url);
+		long start = System.currentTimeMillis();
+		this.uploader.upload(file, url);
+		this.logger.println("Uploaded " + file.getName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+
+		InputStream in = new FileInputStream(file);
+		try {
+			this.uploadChecksums(in, url);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void uploadWithChecksums(byte[] bytes, String url) throws IOException, InterruptedException {
+		this.logger.println("Uploading " + url);
+		this.uploader.upload(bytes, METADATA, url);
+		this.uploadChecksums(new ByteArrayInputStream(bytes), url);
+	}
+
+	private void uploadChecksums(InputStream in, String url) throws IOException, InterruptedException {
+		MessageDigest md5;
+		MessageDigest sha1;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Checksum algorithm unavailable: " + e.getMessage());
+		}
+
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			md5.update(buffer, 0, read);
+			sha1.update(buffer, 0, read);
+		}
+		this.uploader.upload(MavenArtifactDeployer.toHex(md5.digest()).getBytes("US-ASCII"), "md5", url + ".md5");
+		this.uploader.upload(MavenArtifactDeployer.toHex(sha1.digest()).getBytes("US-ASCII"), "sha1", url + ".sha1");
+	}
+
+	// Returns null when the repository has no metadata at the given location yet.
+	private Document fetchMetadata(String url) throws IOException {
+		HttpURLConnection connection = this.uploader.open(url, "GET");
+		try {
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+				return null;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server returned HTTP " + status + " for " + url);
+			}
+			InputStream in = connection.getInputStream();
+			try {
+				return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Unable to parse " + url + ": " + e.getMessage());
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static Document createMetadata(String groupId, String artifactId, String version) throws IOException {
+		try {
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			Element metadata = doc.createElement("metadata");
+			doc.appendChild(metadata);
+			MavenArtifactDeployer.getOrCreate(doc, metadata, "groupId").setTextContent(groupId);
+			MavenArtifactDeployer.getOrCreate(doc, metadata, "artifactId").setTextContent(artifactId);
+			if (version != null) {
+				MavenArtifactDeployer.getOrCreate(doc, metadata, "version").setTextContent(version);
+			}
+			return doc;
+		} catch (Exception e) {
+			throw new IOException("Unable to create repository metadata: " + e.getMessage());
+		}
+	}
+
+	private static byte[] serialize(Document doc) throws IOException {
+		try {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			transformer.transform(new DOMSource(doc), new StreamResult(out));
+			return out.toByteArray();
+		} catch (Exception e) {
+			throw new IOException("Unable to write repository metadata: " + e.getMessage());
+		}
+	}
+
+	// Update the unclassified entry for the extension, or add one.
+	private static void setSnapshotVersion(Document doc, Element snapshotVersions, String extension, String value, String updated) {
+		Element entry = null;
+		NodeList children = snapshotVersions.getChildNodes();
+		for (int i = 0; i < children.getLength() && entry == null; i++) {
+			if (!"snapshotVersion".equals(children.item(i).getNodeName())) {
+				continue;
+			}
+			Element candidate = (Element) children.item(i);
+			String classifier = MavenArtifactDeployer.getChildText(candidate, "classifier");
+			if (extension.equals(MavenArtifactDeployer.getChildText(candidate, "extension")) && (classifier == null || classifier.length() == 0)) {
+				entry = candidate;
+			}
+		}
+		if (entry == null) {
+			entry = doc.createElement("snapshotVersion");
+			snapshotVersions.appendChild(entry);
+			MavenArtifactDeployer.getOrCreate(doc, entry, "extension").setTextContent(extension);
+		}
+		MavenArtifactDeployer.getOrCreate(doc, entry, "value").setTextContent(value);
+		MavenArtifactDeployer.getOrCreate(doc, entry, "updated").setTextContent(updated);
+	}
+
+	private static String getChildText(Element parent, String name) {
+		NodeList children = parent.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			if (name.equals(children.item(i).getNodeName())) {
+				return children.item(i).getTextContent().trim();
+			}
+		}
+		return null;
+	}
+
+	private static Element getOrCreate(Document doc, Element parent, String name) {
+		NodeList children = parent.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			if (name.equals(children.item(i).getNodeName())) {
+				return (Element) children.item(i);
+			}
+		}
+		Element child = doc.createElement(name);
+		parent.appendChild(child);
+		return child;
+	}
+
+	private static String getText(Document doc, String tag) {
+		NodeList nodes = doc.getElementsByTagName(tag);
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static String format(String pattern, Date date) {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
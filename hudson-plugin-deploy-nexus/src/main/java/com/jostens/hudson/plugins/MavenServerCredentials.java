@@ -0,0 +1,59 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * @author blaisj1
+ * @brief Looks up the username and password of a repository server in the
+ *        user's Maven settings.xml, so a native upload authenticates with the
+ *        same repositoryId that mvn deploy-file used. The settings.xml read is
+ *        the one of the JVM this runs in, so callers run it on the node.
+ */
+public class MavenServerCredentials {
+
+	private final String username;
+	private final String password;
+
+	private MavenServerCredentials(String username, String password) {
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * @return the credentials for the server, or null if settings.xml does not
+	 *         define the server.
+	 */
+	public static MavenServerCredentials lookup(String serverId) throws Exception {
+		File settings = new File(System.getProperty("user.home"), ".m2" + File.separator + "settings.xml");
+		if (serverId == null || !settings.isFile()) {
+			return null;
+		}
+
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(settings);
+		NodeList servers = doc.getElementsByTagName("server");
+		for (int i = 0; i < servers.getLength(); i++) {
+			Element server = (Element) servers.item(i);
+			if (serverId.equals(MavenServerCredentials.getText(server, "id"))) {
+				return new MavenServerCredentials(MavenServerCredentials.getText(server, "username"), MavenServerCredentials.getText(server, "password"));
+			}
+		}
+		return null;
+	}
+
+	private static String getText(Element parent, String tag) {
+		NodeList nodes = parent.getElementsByTagName(tag);
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+}
@@ -18,11 +18,13 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.AbstractBuild;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.Builder;
 import hudson.tasks.BatchFile;
 
@@ -37,8 +39,10 @@ public class NexusDeploymentBuilder extends Builder {
 	private static final String renameArtifact = "cd {dir} \nrename {artifactId}*.{ext} {artifactId}-{version}.{ext}";
 	// Maven command to set the version tag located in the pom.xml.
 	private static final String mavenChangePomVersion = "cd {dir} \nmvn versions:set -DnewVersion={version} -DgenerateBackupPoms=false";
-	// Maven command to deploy an artifact to a repository.
-	private static final String mavenDeployArtifact = "cd {dir} \nmvn org.apache.maven.plugins:maven-deploy-plugin:2.5:deploy-file -Durl={repoUrl} -DrepositoryId={repoId} -DpomFile=pom.xml -Dfile={artifactId}-{version}.{ext} -DuniqueVersion=true";
+	// Upload retry policy for transient failures.
+	private static final int UPLOAD_ATTEMPTS = 5;
+	private static final long UPLOAD_INITIAL_BACKOFF = 2000;
+	private static final long UPLOAD_MAX_BACKOFF = 60000;
 
 	private final String targetDir;
 	private final String artifactId;
@@ -48,10 +52,11 @@ public class NexusDeploymentBuilder extends Builder {
 	private final String svnRevision;
 	private final String repositoryUrl;
 	private final String repositoryId;
+	private final boolean resumeUploads;
 	private EnvVars environmentVariables;
 
 	@DataBoundConstructor
-	public NexusDeploymentBuilder(String targetDir, String artifactId, String groupId, String version, String type, String svnRevision, String repositoryUrl, String repositoryId) {
+	public NexusDeploymentBuilder(String targetDir, String artifactId, String groupId, String version, String type, String svnRevision, String repositoryUrl, String repositoryId, String resumeUploads) {
 		this.targetDir = targetDir;
 		this.artifactId = artifactId;
 		this.groupId = groupId;
@@ -60,6 +65,7 @@ public class NexusDeploymentBuilder extends Builder {
 		this.svnRevision = svnRevision;
 		this.repositoryUrl = repositoryUrl;
 		this.repositoryId = repositoryId;
+		this.resumeUploads = Boolean.parseBoolean(resumeUploads);
 	}
 
 	// This is where you 'build' the project.
@@ -85,7 +91,6 @@ public class NexusDeploymentBuilder extends Builder {
 		// Generate the windows batch scripts to run.
 		String changeVersionCommand = this.generateMavenSetPomVersionScript();
 		String renameArtifactCommand = this.generateRenameArtifactScript();
-		String deployArtifactCommand = this.generateMavenDeployScript();
 
 		// Change the version tag on our pom.xml.
 		successFlag = this.setPomSvnRevision(build, listener);
@@ -93,7 +98,6 @@ public class NexusDeploymentBuilder extends Builder {
 		if (successFlag) {
 			commands.add(new BatchFile(changeVersionCommand));
 			commands.add(new BatchFile(renameArtifactCommand));
-			commands.add(new BatchFile(deployArtifactCommand));
 
 			// Run all other windows commands.
 			for (BatchFile command : commands) {
@@ -103,9 +107,77 @@ public class NexusDeploymentBuilder extends Builder {
 				}
 			}
 		}
+
+		// Upload the artifact to the repository.
+		if (successFlag) {
+			successFlag = this.deployArtifact(launcher, listener);
+		}
 		return successFlag;
 	}
 
+	private boolean deployArtifact(Launcher launcher, BuildListener listener) throws InterruptedException {
+		try {
+			listener.getLogger().println("Running: Deploy Artifact to Nexus...");
+			String dir = this.environmentVariables.expand(this.targetDir);
+			// Upload from the node that built the artifact, with that node's settings.xml, as mvn deploy-file did.
+			new FilePath(launcher.getChannel(), dir).act(new DeployArtifact(this.environmentVariables.expand(this.repositoryUrl), this.environmentVariables.expand(this.repositoryId), this.environmentVariables.expand(this.groupId), this.environmentVariables.expand(this.artifactId), this.environmentVariables.expand(this.version), this.environmentVariables.expand(this.type), this.resumeUploads, listener));
+			listener.getLogger().println("Successful.");
+			return true;
+		} catch (IOException e) {
+			listener.getLogger().println("Failed.");
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to deploy artifact to " + this.repositoryUrl));
+			return false;
+		}
+	}
+
+	/**
+	 * Runs on the node holding the target directory: uploads the artifact and
+	 * its POM, authenticating with the repository's server entry in the node's
+	 * settings.xml.
+	 */
+	private static final class DeployArtifact implements FilePath.FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String repositoryUrl;
+		private final String repositoryId;
+		private final String groupId;
+		private final String artifactId;
+		private final String version;
+		private final String type;
+		private final boolean resumeUploads;
+		private final BuildListener listener;
+
+		DeployArtifact(String repositoryUrl, String repositoryId, String groupId, String artifactId, String version, String type, boolean resumeUploads, BuildListener listener) {
+			this.repositoryUrl = repositoryUrl;
+			this.repositoryId = repositoryId;
+			this.groupId = groupId;
+			this.artifactId = artifactId;
+			this.version = version;
+			this.type = type;
+			this.resumeUploads = resumeUploads;
+			this.listener = listener;
+		}
+
+		public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			MavenServerCredentials credentials;
+			try {
+				credentials = MavenServerCredentials.lookup(this.repositoryId);
+			} catch (Exception e) {
+				throw new IOException("Unable to read settings.xml: " + e.getMessage());
+			}
+			if (credentials == null) {
+				this.listener.getLogger().println("No server entry for [" + this.repositoryId + "] found in settings.xml.  Deploying without credentials.");
+			}
+
+			NexusUploader uploader = new NexusUploader(credentials == null ? null : credentials.getUsername(), credentials == null ? null : credentials.getPassword(), this.listener.getLogger(), UPLOAD_ATTEMPTS, UPLOAD_INITIAL_BACKOFF, UPLOAD_MAX_BACKOFF, this.resumeUploads);
+			MavenArtifactDeployer deployer = new MavenArtifactDeployer(this.repositoryUrl, uploader, this.listener.getLogger());
+			deployer.deploy(new File(dir, this.artifactId + "-" + this.version + "." + this.type), new File(dir, "pom.xml"), this.groupId, this.artifactId, this.version, this.type);
+			return null;
+		}
+	}
+
 	private String generateMavenSetPomVersionScript() {
 		String command = NexusDeploymentBuilder.mavenChangePomVersion;
 		command = command.replace("{dir}", this.targetDir);
@@ -124,18 +196,6 @@ public class NexusDeploymentBuilder extends Builder {
 		return this.environmentVariables.expand(command);
 	}
 
-	private String generateMavenDeployScript() {
-		String command = NexusDeploymentBuilder.mavenDeployArtifact;
-		command = command.replace("{dir}", this.targetDir);
-		command = command.replace("{repoUrl}", this.repositoryUrl);
-		command = command.replace("{repoId}", this.repositoryId);
-		command = command.replace("{artifactId}", this.artifactId);
-		command = command.replace("{version}", this.version);
-		command = command.replace("{ext}", this.type);
-		// This will replace all environment variables with actual values.
-		return this.environmentVariables.expand(command);
-	}
-
 	private boolean setPomSvnRevision(AbstractBuild<?, ?> build, BuildListener listener) {
 		try {
 			listener.getLogger().println("Running: Replace POM SVN Revision Number...");
@@ -229,6 +289,10 @@ public class NexusDeploymentBuilder extends Builder {
 		return targetDir;
 	}
 
+	public boolean isResumeUploads() {
+		return resumeUploads;
+	}
+
 	/**
 	 * @brief The descriptor inner class is responsible for communicating
 	 *        between the jelly configuration files, and the plugin class.
@@ -249,7 +313,7 @@ public class NexusDeploymentBuilder extends Builder {
 
 		// Retrieves values from jelly to create a new instance of our builder.
 		public NexusDeploymentBuilder newInstance(StaplerRequest req) throws FormException {
-			return new NexusDeploymentBuilder(req.getParameter("deploy.targetDir"), req.getParameter("deploy.artifactId"), req.getParameter("deploy.groupId"), req.getParameter("deploy.version"), req.getParameter("deploy.type"), req.getParameter("deploy.svnRevision"), req.getParameter("deploy.repositoryUrl"), req.getParameter("deploy.repositoryId"));
+			return new NexusDeploymentBuilder(req.getParameter("deploy.targetDir"), req.getParameter("deploy.artifactId"), req.getParameter("deploy.groupId"), req.getParameter("deploy.version"), req.getParameter("deploy.type"), req.getParameter("deploy.svnRevision"), req.getParameter("deploy.repositoryUrl"), req.getParameter("deploy.repositoryId"), req.getParameter("deploy.resumeUploads"));
 		}
 
 		// This utilizes the @DataBoundConstructor annotation to automatically
@@ -0,0 +1,237 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * @author blaisj1
+ * @brief Uploads content to a Nexus repository with HTTP PUT. Transient
+ *        failures are retried with exponential backoff and jitter, and when
+ *        resumable uploads are enabled an interrupted upload continues from
+ *        the last byte offset the server confirms it has received.
+ */
+public class NexusUploader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int CONNECT_TIMEOUT = 30000;
+	private static final int READ_TIMEOUT = 300000;
+	// Status returned by resumable upload servers for an incomplete upload.
+	private static final int RESUME_INCOMPLETE = 308;
+
+	private final String authorization;
+	private final PrintStream logger;
+	private final int maxAttempts;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final boolean resumable;
+	private final Random random = new Random();
+
+	public NexusUploader(String username, String password, PrintStream logger, int maxAttempts, long initialBackoff, long maxBackoff, boolean resumable) {
+		this.authorization = NexusUploader.basicAuthorization(username, password);
+		this.logger = logger;
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.resumable = resumable;
+	}
+
+	/**
+	 * Upload a file, retrying (and resuming where possible) on transient
+	 * failures.
+	 */
+	public void upload(final File file, String url) throws IOException, InterruptedException {
+		this.upload(new Content() {
+			public long length() {
+				return file.length();
+			}
+
+			public InputStream open(long offset) throws IOException {
+				InputStream in = new FileInputStream(file);
+				NexusUploader.skipFully(in, offset);
+				return in;
+			}
+		}, file.getName(), url);
+	}
+
+	/**
+	 * Upload a small in-memory document such as a checksum or metadata file.
+	 */
+	public void upload(final byte[] bytes, String name, String url) throws IOException, InterruptedException {
+		this.upload(new Content() {
+			public long length() {
+				return bytes.length;
+			}
+
+			public InputStream open(long offset) {
+				return new ByteArrayInputStream(bytes, (int) offset, bytes.length - (int) offset);
+			}
+		}, name, url);
+	}
+
+	private void upload(Content content, String name, String url) throws IOException, InterruptedException {
+		long length = content.length();
+		long offset = 0;
+		IOException lastFailure = null;
+
+		for (int attempt = 1; attempt <= this.maxAttempts; attempt++) {
+			if (attempt > 1) {
+				long delay = this.backoff(attempt - 1);
+				this.logger.println("Retrying upload of " + name + " in " + delay + "ms (attempt " + attempt + " of " + this.maxAttempts + ")...");
+				Thread.sleep(delay);
+				offset = this.resumable ? this.queryOffset(url, length) : 0;
+				if (offset > 0) {
+					this.logger.println("Resuming upload of " + name + " at byte " + offset + " of " + length + ".");
+				}
+			}
+
+			int status;
+			try {
+				status = this.put(content, url, offset, length);
+			} catch (IOException e) {
+				lastFailure = e;
+				this.logger.println("Upload of " + name + " failed: " + e.getMessage());
+				continue;
+			}
+
+			if (status >= 200 && status < 300) {
+				return;
+			}
+			lastFailure = new IOException("Server returned HTTP " + status + " for " + url);
+			if (!NexusUploader.isTransient(status)) {
+				throw lastFailure;
+			}
+			this.logger.println("Upload of " + name + " failed: " + lastFailure.getMessage());
+		}
+		throw lastFailure;
+	}
+
+	private int put(Content content, String url, long offset, long length) throws IOException {
+		HttpURLConnection connection = this.open(url, "PUT");
+		try {
+			long remaining = length - offset;
+			if (offset > 0) {
+				connection.setRequestProperty("Content-Range", "bytes " + offset + "-" + (length - 1) + "/" + length);
+			}
+			// Stream the body rather than letting HttpURLConnection buffer it.
+			if (remaining <= Integer.MAX_VALUE) {
+				connection.setFixedLengthStreamingMode((int) remaining);
+			} else {
+				connection.setChunkedStreamingMode(BUFFER_SIZE);
+			}
+
+			InputStream in = content.open(offset);
+			try {
+				OutputStream out = connection.getOutputStream();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				out.close();
+			} finally {
+				in.close();
+			}
+			return connection.getResponseCode();
+		} finally {
+			// Also on failure, so a dropped upload does not leave its socket behind for the retry.
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Ask the server how much of an interrupted upload it holds. Servers
+	 * without resumable upload support answer with something other than 308,
+	 * in which case the upload restarts from the beginning.
+	 */
+	private long queryOffset(String url, long length) {
+		try {
+			HttpURLConnection connection = this.open(url, "PUT");
+			int status;
+			String range;
+			try {
+				connection.setRequestProperty("Content-Range", "bytes */" + length);
+				connection.setFixedLengthStreamingMode(0);
+				connection.getOutputStream().close();
+				status = connection.getResponseCode();
+				range = connection.getHeaderField("Range");
+			} finally {
+				connection.disconnect();
+			}
+
+			if (status == RESUME_INCOMPLETE && range != null && range.startsWith("bytes=0-")) {
+				return Long.parseLong(range.substring("bytes=0-".length()).trim()) + 1;
+			}
+		} catch (IOException e) {
+			this.logger.println("Unable to query upload offset: " + e.getMessage());
+		} catch (NumberFormatException e) {
+			this.logger.println("Unable to parse upload offset: " + e.getMessage());
+		}
+		return 0;
+	}
+
+	HttpURLConnection open(String url, String method) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setUseCaches(false);
+		if ("PUT".equals(method)) {
+			connection.setDoOutput(true);
+		}
+		if (this.authorization != null) {
+			connection.setRequestProperty("Authorization", this.authorization);
+		}
+		return connection;
+	}
+
+	// Exponential backoff with equal jitter: half the delay is fixed, half is random.
+	private long backoff(int retry) {
+		long delay = this.initialBackoff << Math.min(retry - 1, 20);
+		if (delay > this.maxBackoff || delay <= 0) {
+			delay = this.maxBackoff;
+		}
+		long half = delay / 2;
+		return half + (long) (this.random.nextDouble() * (delay - half));
+	}
+
+	private static boolean isTransient(int status) {
+		return status >= 500 || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == 429;
+	}
+
+	private static void skipFully(InputStream in, long offset) throws IOException {
+		while (offset > 0) {
+			long skipped = in.skip(offset);
+			if (skipped <= 0) {
+				throw new IOException("Unable to skip to byte " + offset + " of upload.");
+			}
+			offset -= skipped;
+		}
+	}
+
+	private static String basicAuthorization(String username, String password) {
+		if (username == null) {
+			return null;
+		}
+		String credentials = username + ":" + (password == null ? "" : password);
+		try {
+			return "Basic " + DatatypeConverter.printBase64Binary(credentials.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private interface Content {
+		long length();
+
+		InputStream open(long offset) throws IOException;
+	}
+}
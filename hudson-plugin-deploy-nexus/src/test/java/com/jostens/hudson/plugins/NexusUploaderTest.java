@@ -0,0 +1,356 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Uploads through a stub repository that fails on request: with
+ *        transient statuses, by dropping the connection partway through the
+ *        body, and with resumable uploads that pick up where they stopped.
+ */
+public class NexusUploaderTest extends TestCase {
+
+	private static final Pattern QUERY = Pattern.compile("bytes \\*/(\\d+)");
+	private static final Pattern RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+	private HttpServer server;
+	private StubRepository repository;
+	private ByteArrayOutputStream log;
+	private File dir;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.repository = new StubRepository();
+		this.server.createContext("/", this.repository);
+		this.server.start();
+		this.log = new ByteArrayOutputStream();
+		this.dir = File.createTempFile("upload", "");
+		if (!this.dir.delete() || !this.dir.mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+		File[] children = this.dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+		this.dir.delete();
+	}
+
+	public void testRetriesTransientStatusesUntilSuccess() throws Exception {
+		byte[] content = NexusUploaderTest.content(10000);
+		this.repository.fail("/app.war", "503", "408", "429");
+		this.uploader(5, false).upload(this.file("app.war", content), this.url("/app.war"));
+
+		assertTrue(Arrays.equals(content, this.repository.get("/app.war")));
+		assertEquals(4, this.repository.puts("/app.war").size());
+		String output = this.log.toString();
+		assertTrue(output, output.contains("HTTP 503"));
+		assertTrue(output, output.contains("HTTP 408"));
+		assertTrue(output, output.contains("HTTP 429"));
+	}
+
+	public void testRestartsDroppedUploadFromTheStart() throws Exception {
+		byte[] content = NexusUploaderTest.content(1024 * 1024);
+		this.repository.fail("/app.war", "drop");
+		this.uploader(3, false).upload(this.file("app.war", content), this.url("/app.war"));
+
+		assertTrue(Arrays.equals(content, this.repository.get("/app.war")));
+		assertEquals(Arrays.asList("", ""), this.repository.puts("/app.war"));
+	}
+
+	public void testResumesDroppedUploadFromTheServersOffset() throws Exception {
+		byte[] content = NexusUploaderTest.content(1024 * 1024);
+		this.repository.resumable = true;
+		this.repository.fail("/app.war", "drop");
+		this.uploader(3, true).upload(this.file("app.war", content), this.url("/app.war"));
+
+		assertTrue(Arrays.equals(content, this.repository.get("/app.war")));
+		// The retry asks for the offset, then sends only the rest.
+		List<String> puts = this.repository.puts("/app.war");
+		assertEquals(3, puts.size());
+		assertEquals("", puts.get(0));
+		assertEquals("bytes */" + content.length, puts.get(1));
+		assertEquals("bytes " + StubRepository.DROP_AFTER + "-" + (content.length - 1) + "/" + content.length, puts.get(2));
+		assertTrue(this.log.toString(), this.log.toString().contains("Resuming upload of app.war at byte " + StubRepository.DROP_AFTER));
+	}
+
+	public void testResumesBytesUploadFromTheServersOffset() throws Exception {
+		byte[] content = NexusUploaderTest.content(512 * 1024);
+		this.repository.resumable = true;
+		this.repository.fail("/maven-metadata.xml", "drop");
+		this.uploader(3, true).upload(content, "maven-metadata.xml", this.url("/maven-metadata.xml"));
+
+		assertTrue(Arrays.equals(content, this.repository.get("/maven-metadata.xml")));
+		assertEquals("bytes " + StubRepository.DROP_AFTER + "-" + (content.length - 1) + "/" + content.length, this.repository.puts("/maven-metadata.xml").get(2));
+	}
+
+	public void testRunsOutOfRetries() throws Exception {
+		this.repository.fail("/app.war", "503", "503", "503", "503");
+		try {
+			this.uploader(3, false).upload(this.file("app.war", NexusUploaderTest.content(100)), this.url("/app.war"));
+			fail("Expected the upload to give up.");
+		} catch (IOException e) {
+			assertEquals("Server returned HTTP 503 for " + this.url("/app.war"), e.getMessage());
+		}
+		assertEquals(3, this.repository.puts("/app.war").size());
+		assertNull(this.repository.get("/app.war"));
+	}
+
+	public void testDoesNotRetryPermanentFailure() throws Exception {
+		this.repository.fail("/app.war", "403");
+		try {
+			this.uploader(5, false).upload(this.file("app.war", NexusUploaderTest.content(100)), this.url("/app.war"));
+			fail("Expected the upload to fail.");
+		} catch (IOException e) {
+			assertEquals("Server returned HTTP 403 for " + this.url("/app.war"), e.getMessage());
+		}
+		assertEquals(1, this.repository.puts("/app.war").size());
+	}
+
+	public void testDeploysSnapshotWithUniqueVersionAndMetadata() throws Exception {
+		String base = "/repo/com/jostens/app";
+		this.repository.put(base + "/1.0-SNAPSHOT/maven-metadata.xml", ("<metadata><groupId>com.jostens</groupId><artifactId>app</artifactId><version>1.0-SNAPSHOT</version>"
+				+ "<versioning><snapshot><timestamp>20260101.000000</timestamp><buildNumber>4</buildNumber></snapshot><lastUpdated>20260101000000</lastUpdated>"
+				+ "<snapshotVersions><snapshotVersion><classifier>sources</classifier><extension>jar</extension><value>1.0-20260101.000000-4</value></snapshotVersion>"
+				+ "<snapshotVersion><extension>war</extension><value>1.0-20260101.000000-4</value></snapshotVersion></snapshotVersions></versioning></metadata>").getBytes("UTF-8"));
+		this.repository.put(base + "/maven-metadata.xml", ("<metadata><groupId>com.jostens</groupId><artifactId>app</artifactId>"
+				+ "<versioning><latest>0.9</latest><release>0.9</release><versions><version>0.9</version></versions></versioning></metadata>").getBytes("UTF-8"));
+		byte[] war = NexusUploaderTest.content(5000);
+		File pom = this.file("app.pom", "<project/>".getBytes("UTF-8"));
+
+		new MavenArtifactDeployer(this.url("/repo/"), this.uploader(1, false), new PrintStream(this.log, true)).deploy(this.file("app.war", war), pom, "com.jostens", "app", "1.0-SNAPSHOT", "war");
+
+		String metadata = new String(this.repository.get(base + "/1.0-SNAPSHOT/maven-metadata.xml"), "UTF-8");
+		Matcher timestamp = Pattern.compile("<timestamp>(\\d{8}\\.\\d{6})</timestamp>").matcher(metadata);
+		assertTrue(metadata, timestamp.find());
+		String value = "1.0-" + timestamp.group(1) + "-5";
+		assertTrue(metadata, metadata.contains("<buildNumber>5</buildNumber>"));
+		assertFalse(metadata, metadata.contains("<lastUpdated>20260101000000</lastUpdated>"));
+		// The war entry is updated in place, a pom entry is added, and the classified one is left alone.
+		assertEquals(3, NexusUploaderTest.count(metadata, "<snapshotVersion>"));
+		assertEquals(2, NexusUploaderTest.count(metadata, "<value>" + value + "</value>"));
+		assertTrue(metadata, metadata.contains("<classifier>sources</classifier>"));
+		assertTrue(metadata, metadata.contains("<value>1.0-20260101.000000-4</value>"));
+		assertEquals(1, NexusUploaderTest.count(metadata, "<extension>war</extension>"));
+		assertEquals(1, NexusUploaderTest.count(metadata, "<extension>pom</extension>"));
+
+		String file = base + "/1.0-SNAPSHOT/app-" + value;
+		assertTrue(Arrays.equals(war, this.repository.get(file + ".war")));
+		assertEquals(NexusUploaderTest.digest("SHA-1", war), new String(this.repository.get(file + ".war.sha1"), "US-ASCII"));
+		assertEquals(NexusUploaderTest.digest("MD5", war), new String(this.repository.get(file + ".war.md5"), "US-ASCII"));
+		assertEquals("<project/>", new String(this.repository.get(file + ".pom"), "UTF-8"));
+		assertEquals(NexusUploaderTest.digest("SHA-1", this.repository.get(base + "/1.0-SNAPSHOT/maven-metadata.xml")),
+				new String(this.repository.get(base + "/1.0-SNAPSHOT/maven-metadata.xml.sha1"), "US-ASCII"));
+
+		String artifact = new String(this.repository.get(base + "/maven-metadata.xml"), "UTF-8");
+		assertTrue(artifact, artifact.contains("<version>0.9</version>"));
+		assertTrue(artifact, artifact.contains("<version>1.0-SNAPSHOT</version>"));
+		assertTrue(artifact, artifact.contains("<latest>1.0-SNAPSHOT</latest>"));
+		// A snapshot is never the release.
+		assertTrue(artifact, artifact.contains("<release>0.9</release>"));
+	}
+
+	public void testDeploysFirstSnapshotWithoutMetadata() throws Exception {
+		File pom = this.file("app.pom", "<project/>".getBytes("UTF-8"));
+		new MavenArtifactDeployer(this.url("/repo"), this.uploader(1, false), new PrintStream(this.log, true)).deploy(this.file("app.war", NexusUploaderTest.content(100)), pom, "com.jostens", "app", "2.0-SNAPSHOT", "war");
+
+		String metadata = new String(this.repository.get("/repo/com/jostens/app/2.0-SNAPSHOT/maven-metadata.xml"), "UTF-8");
+		assertTrue(metadata, metadata.contains("<buildNumber>1</buildNumber>"));
+		assertTrue(metadata, metadata.contains("<version>2.0-SNAPSHOT</version>"));
+		assertEquals(2, NexusUploaderTest.count(metadata, "<snapshotVersion>"));
+	}
+
+	private NexusUploader uploader(int maxAttempts, boolean resumable) {
+		return new NexusUploader(null, null, new PrintStream(this.log, true), maxAttempts, 1, 5, resumable);
+	}
+
+	private String url(String path) {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + path;
+	}
+
+	private File file(String name, byte[] content) throws IOException {
+		File file = new File(this.dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+
+	private static int count(String text, String part) {
+		int count = 0;
+		for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	private static String digest(String algorithm, byte[] content) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance(algorithm).digest(content)) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Stores what is PUT and serves it back on GET. Each path can be given
+	 * failures to answer its next PUTs with: a status, or "drop" to read part
+	 * of the body and then close the connection. A resumable repository keeps
+	 * what it read before a drop and reports it with 308 when asked.
+	 */
+	private static final class StubRepository implements HttpHandler {
+
+		static final int DROP_AFTER = 256 * 1024;
+
+		private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		private final Map<String, byte[]> partial = new HashMap<String, byte[]>();
+		private final Map<String, LinkedList<String>> failures = new HashMap<String, LinkedList<String>>();
+		private final Map<String, List<String>> puts = new HashMap<String, List<String>>();
+		volatile boolean resumable;
+
+		synchronized void fail(String path, String... failures) {
+			this.failures.put(path, new LinkedList<String>(Arrays.asList(failures)));
+		}
+
+		synchronized void put(String path, byte[] content) {
+			this.files.put(path, content);
+		}
+
+		synchronized byte[] get(String path) {
+			return this.files.get(path);
+		}
+
+		/**
+		 * @return the Content-Range of each PUT to the path, empty when none
+		 */
+		synchronized List<String> puts(String path) {
+			List<String> puts = this.puts.get(path);
+			return puts == null ? new ArrayList<String>() : puts;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			if ("GET".equals(exchange.getRequestMethod())) {
+				StubRepository.drain(exchange);
+				byte[] content = this.get(path);
+				if (content == null) {
+					exchange.sendResponseHeaders(404, -1);
+				} else {
+					exchange.sendResponseHeaders(200, content.length);
+					exchange.getResponseBody().write(content);
+				}
+				exchange.close();
+				return;
+			}
+
+			String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+			String failure;
+			byte[] received;
+			synchronized (this) {
+				List<String> puts = this.puts.get(path);
+				if (puts == null) {
+					puts = new ArrayList<String>();
+					this.puts.put(path, puts);
+				}
+				puts.add(contentRange == null ? "" : contentRange);
+				received = this.partial.get(path);
+				LinkedList<String> failures = this.failures.get(path);
+				failure = contentRange != null && QUERY.matcher(contentRange).matches() || failures == null ? null : failures.poll();
+			}
+
+			if (contentRange != null && QUERY.matcher(contentRange).matches()) {
+				StubRepository.drain(exchange);
+				if (this.resumable && received != null && received.length > 0) {
+					exchange.getResponseHeaders().set("Range", "bytes=0-" + (received.length - 1));
+					exchange.sendResponseHeaders(308, -1);
+				} else {
+					exchange.sendResponseHeaders(400, -1);
+				}
+				exchange.close();
+				return;
+			}
+
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			if (contentRange != null) {
+				Matcher range = RANGE.matcher(contentRange);
+				if (!range.matches() || received == null || Long.parseLong(range.group(1)) != received.length) {
+					StubRepository.drain(exchange);
+					exchange.sendResponseHeaders(416, -1);
+					exchange.close();
+					return;
+				}
+				body.write(received);
+			}
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[8192];
+			int read;
+			if ("drop".equals(failure)) {
+				while (body.size() < DROP_AFTER && (read = in.read(buffer, 0, Math.min(buffer.length, DROP_AFTER - body.size()))) != -1) {
+					body.write(buffer, 0, read);
+				}
+				synchronized (this) {
+					this.partial.put(path, body.toByteArray());
+				}
+				// Close the socket under the client without answering.
+				throw new IOException("Dropping the connection.");
+			}
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			if (failure != null) {
+				exchange.sendResponseHeaders(Integer.parseInt(failure), -1);
+			} else {
+				synchronized (this) {
+					this.files.put(path, body.toByteArray());
+					this.partial.remove(path);
+				}
+				exchange.sendResponseHeaders(201, -1);
+			}
+			exchange.close();
+		}
+
+		// The server drops the connection of an exchange whose request body was left unread.
+		private static void drain(HttpExchange exchange) throws IOException {
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) != -1) {
+				// Discard.
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * @author blaisj1
+ * @brief Identifies a WAR by its bytes, and records in each webapp it is
+ *        deployed to which WAR produced it, so deploying the same bytes again
+ *        can be skipped without taking the webapp down.
+ *
+ *        The marker holds the WAR's SHA-1, the path, size and modified time
+ *        it was deployed from, a signature of the extracted files on disk
+ *        (the tree), and the size and modified time of the WAR copy in
+ *        webapps. The tree signature covers every file the extraction
+ *        manifest lists, with its size and modified time as found on disk,
+ *        so a file edited, truncated or deleted in place since the deploy is
+ *        noticed without reading any file's contents. A WAR at the same path
+ *        with the same size and modified time is taken as unchanged without
+ *        hashing; otherwise it is hashed once, streamed.
+ *
+ *        The SHA-1 is also written to a version file in the webapp root,
+ *        where Tomcat serves it, so a readiness probe can tell the new
+ *        version from the old one it replaces.
+ */
+public class DeploymentFingerprint {
+
+	// Relative to the webapp directory, beside the extraction manifest.
+	public static final String MARKER = "META-INF/deploy-fingerprint.properties";
+	// Relative to the webapp directory, outside META-INF so Tomcat serves it.
+	public static final String VERSION = "deploy-version.properties";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File war;
+	private final long size;
+	private final long modified;
+	private File hashSource;
+	private String sha1;
+
+	public DeploymentFingerprint(File war) {
+		this.war = war;
+		this.size = war.length();
+		this.modified = war.lastModified();
+		this.hashSource = war;
+	}
+
+	/**
+	 * Hash this byte for byte copy instead of the WAR, e.g. a local copy of a
+	 * WAR on a share.
+	 */
+	public synchronized void hashFrom(File copy) {
+		if (this.sha1 == null) {
+			this.hashSource = copy;
+		}
+	}
+
+	public synchronized String getSha1() throws IOException {
+		if (this.sha1 == null) {
+			this.sha1 = DeploymentFingerprint.hash(this.hashSource);
+		}
+		return this.sha1;
+	}
+
+	/**
+	 * @return whether the webapp was deployed from these bytes and neither
+	 *         its tree nor its WAR copy has changed since.
+	 */
+	public boolean isDeployed(File webappDir) throws IOException {
+		Properties marker = DeploymentFingerprint.read(new File(webappDir, MARKER));
+		if (marker.isEmpty() || DeploymentFingerprint.parseLong(marker.getProperty("size")) != this.size) {
+			return false;
+		}
+		File copy = new File(webappDir.getPath() + ".war");
+		if (!copy.isFile() || copy.length() != DeploymentFingerprint.parseLong(marker.getProperty("copySize")) || copy.lastModified() != DeploymentFingerprint.parseLong(marker.getProperty("copyModified"))) {
+			return false;
+		}
+		String tree = DeploymentFingerprint.treeSignature(webappDir);
+		if (tree == null || !tree.equals(marker.getProperty("tree"))) {
+			return false;
+		}
+		if (this.war.getPath().equals(marker.getProperty("source")) && this.modified == DeploymentFingerprint.parseLong(marker.getProperty("modified")) && marker.getProperty("sha1") != null) {
+			// The same file as last time, so the same bytes: its SHA-1 need not be recomputed.
+			synchronized (this) {
+				if (this.sha1 == null) {
+					this.sha1 = marker.getProperty("sha1");
+				}
+			}
+			return true;
+		}
+		return this.getSha1().equals(marker.getProperty("sha1"));
+	}
+
+	/**
+	 * Write the version file into a webapp deployed from this WAR, unless it
+	 * already holds this SHA-1.
+	 */
+	public void publishVersion(File webappDir) throws IOException {
+		File file = new File(webappDir, VERSION);
+		if (this.getSha1().equals(DeploymentFingerprint.read(file).getProperty("sha1"))) {
+			return;
+		}
+		Properties version = new Properties();
+		version.setProperty("sha1", this.getSha1());
+		DeploymentFingerprint.write(version, file, "Deployed WAR");
+	}
+
+	/**
+	 * Write the marker into a webapp just deployed from this WAR.
+	 */
+	public void record(File webappDir) throws IOException {
+		File copy = new File(webappDir.getPath() + ".war");
+		Properties marker = new Properties();
+		marker.setProperty("sha1", this.getSha1());
+		marker.setProperty("source", this.war.getPath());
+		marker.setProperty("size", String.valueOf(this.size));
+		marker.setProperty("modified", String.valueOf(this.modified));
+		String tree = DeploymentFingerprint.treeSignature(webappDir);
+		if (tree == null) {
+			throw new IOException("The files in " + webappDir + " do not match its extraction manifest.");
+		}
+		marker.setProperty("tree", tree);
+		marker.setProperty("copySize", String.valueOf(copy.length()));
+		marker.setProperty("copyModified", String.valueOf(copy.lastModified()));
+		DeploymentFingerprint.write(marker, new File(webappDir, MARKER), "Deployment fingerprint");
+		this.publishVersion(webappDir);
+	}
+
+	/**
+	 * Remove the marker before the webapp is changed, so a deploy that dies
+	 * part way is never mistaken for a complete one.
+	 */
+	public static void clear(File webappDir) throws IOException {
+		File file = new File(webappDir, MARKER);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to remove " + file);
+		}
+	}
+
+	/**
+	 * @return a hash of the name, size and modified time of every file the
+	 *         extraction manifest lists, or null if there is no manifest or a
+	 *         file is missing or not the size the manifest records.
+	 */
+	private static String treeSignature(File webappDir) throws IOException {
+		File manifest = new File(webappDir, WarExtractor.MANIFEST);
+		if (!manifest.isFile()) {
+			return null;
+		}
+		MessageDigest sha1 = DeploymentFingerprint.sha1();
+		// Sorted, so the signature does not depend on the manifest's order.
+		for (Map.Entry<String, String> entry : new TreeMap<String, String>(WarExtractor.readManifest(manifest)).entrySet()) {
+			File file = new File(webappDir, entry.getKey());
+			String signature = entry.getValue();
+			long size = DeploymentFingerprint.parseLong(signature.substring(signature.indexOf('\t') + 1));
+			if (!file.isFile() || file.length() != size) {
+				return null;
+			}
+			sha1.update((entry.getKey() + "\t" + size + "\t" + file.lastModified() + "\n").getBytes("UTF-8"));
+		}
+		return DeploymentFingerprint.toHex(sha1.digest());
+	}
+
+	private static Properties read(File file) throws IOException {
+		Properties properties = new Properties();
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return properties;
+	}
+
+	private static void write(Properties properties, File file, String comment) throws IOException {
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, comment);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest sha1 = DeploymentFingerprint.sha1();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				sha1.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return DeploymentFingerprint.toHex(sha1.digest());
+	}
+
+	private static MessageDigest sha1() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Checksum algorithm unavailable: SHA-1");
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
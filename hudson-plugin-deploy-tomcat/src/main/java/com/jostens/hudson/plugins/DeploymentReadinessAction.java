@@ -0,0 +1,51 @@
+package com.jostens.hudson.plugins;
+
+import hudson.model.Action;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author blaisj1
+ * @brief Records how long a deployed context took to become ready, shown in
+ *        the build summary. Keeps no sidebar link or page of its own.
+ */
+public class DeploymentReadinessAction implements Action {
+
+	private final String warName;
+	private final long timeToReady;
+	private final Map<String, Long> urls;
+
+	public DeploymentReadinessAction(String warName, long timeToReady, Map<String, Long> urls) {
+		this.warName = warName;
+		this.timeToReady = timeToReady;
+		this.urls = new LinkedHashMap<String, Long>(urls);
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Time to Ready";
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+
+	public String getWarName() {
+		return warName;
+	}
+
+	/**
+	 * @return milliseconds from the end of the deploy until every readiness
+	 *         URL answered.
+	 */
+	public long getTimeToReady() {
+		return timeToReady;
+	}
+
+	public Map<String, Long> getUrls() {
+		return urls;
+	}
+}
@@ -0,0 +1,213 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author blaisj1
+ * @brief Waits for freshly deployed contexts to answer, then warms them up.
+ *
+ *        Each readiness URL is polled with a growing delay until it returns a
+ *        2xx or 3xx status. Tomcat answers 404 until the context is mapped and
+ *        503 while it starts, so either just means "not yet". Once every
+ *        context is ready, the warm-up URLs are all requested at once, so JSP
+ *        compilation, the JIT and the application's caches are paid for here
+ *        rather than by the first users.
+ *
+ *        The old context keeps answering 200 until Tomcat replaces it, so a
+ *        good status alone does not show the new version is up. Given the
+ *        SHA-1 of the WAR just deployed, a URL is only ready once its server
+ *        also serves that SHA-1 in the version file the deploy wrote into the
+ *        webapp.
+ */
+public class ReadinessProbe {
+
+	private static final long INITIAL_DELAY = 500;
+	private static final long MAX_DELAY = 10000;
+	private static final int TIMEOUT = 15000;
+	private static final int MAX_WARM_UPS = 16;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final long timeoutMillis;
+	private final PrintStream logger;
+	private String versionPath;
+	private String sha1;
+
+	public ReadinessProbe(long timeoutMillis, PrintStream logger) {
+		this.timeoutMillis = timeoutMillis;
+		this.logger = logger;
+	}
+
+	/**
+	 * Only take a URL as ready once its server serves the given SHA-1 at the
+	 * given path, e.g. /app/deploy-version.properties.
+	 */
+	public void expectVersion(String versionPath, String sha1) {
+		this.versionPath = versionPath;
+		this.sha1 = sha1;
+	}
+
+	/**
+	 * Poll every URL concurrently until all of them are healthy.
+	 *
+	 * @return each URL's time to ready in milliseconds, in the order given.
+	 * @throws IOException if any URL is not healthy within the timeout.
+	 */
+	public Map<String, Long> awaitReady(List<String> urls) throws IOException, InterruptedException {
+		final long start = System.currentTimeMillis();
+		Map<String, Long> ready = new LinkedHashMap<String, Long>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, urls.size()));
+		try {
+			Map<String, Future<Long>> probes = new LinkedHashMap<String, Future<Long>>();
+			for (final String url : urls) {
+				probes.put(url, executor.submit(new Callable<Long>() {
+					public Long call() throws IOException, InterruptedException {
+						return ReadinessProbe.this.poll(url, start);
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<Long>> probe : probes.entrySet()) {
+				ready.put(probe.getKey(), ReadinessProbe.get(probe.getValue()));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return ready;
+	}
+
+	private long poll(String url, long start) throws IOException, InterruptedException {
+		long delay = INITIAL_DELAY;
+		String last = null;
+		while (true) {
+			try {
+				int status = ReadinessProbe.request(url, null);
+				last = "HTTP " + status;
+				if (status >= 200 && status < 400) {
+					last = this.versionServed(url);
+					if (last == null) {
+						long elapsed = System.currentTimeMillis() - start;
+						this.logger.println(url + " is ready (HTTP " + status + ") after " + elapsed + "ms.");
+						return elapsed;
+					}
+				}
+			} catch (IOException e) {
+				// Refused or reset while Tomcat brings the context up.
+				last = e.toString();
+			}
+			long remaining = start + this.timeoutMillis - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new IOException(url + " was not ready after " + this.timeoutMillis + "ms; last answer: " + last);
+			}
+			Thread.sleep(Math.min(delay, remaining));
+			delay = Math.min(delay * 2, MAX_DELAY);
+		}
+	}
+
+	/**
+	 * @return null if no version is expected or the server serves it, or
+	 *         else what it served instead.
+	 */
+	private String versionServed(String url) throws IOException {
+		if (this.sha1 == null) {
+			return null;
+		}
+		String versionUrl = new URL(new URL(url), this.versionPath).toString();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int status = ReadinessProbe.request(versionUrl, body);
+		if (status != HttpURLConnection.HTTP_OK) {
+			return "HTTP " + status + " for " + versionUrl;
+		}
+		Properties version = new Properties();
+		version.load(new ByteArrayInputStream(body.toByteArray()));
+		String served = version.getProperty("sha1");
+		return this.sha1.equals(served) ? null : versionUrl + " serves SHA-1 " + served + ", not " + this.sha1;
+	}
+
+	/**
+	 * Request every URL once, all at the same time. Failures are logged but
+	 * do not fail the deploy; the context was already ready.
+	 */
+	public void warmUp(List<String> urls) throws InterruptedException {
+		if (urls.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(urls.size(), MAX_WARM_UPS));
+		try {
+			List<Future<String>> requests = new ArrayList<Future<String>>();
+			for (final String url : urls) {
+				requests.add(executor.submit(new Callable<String>() {
+					public String call() throws IOException {
+						long started = System.currentTimeMillis();
+						int status = ReadinessProbe.request(url, null);
+						return url + ": HTTP " + status + " in " + (System.currentTimeMillis() - started) + "ms";
+					}
+				}));
+			}
+			for (int i = 0; i < requests.size(); i++) {
+				try {
+					this.logger.println("  Warmed " + requests.get(i).get());
+				} catch (ExecutionException e) {
+					this.logger.println("  Unable to warm " + urls.get(i) + ": " + e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		this.logger.println("Warmed up " + urls.size() + " URLs in " + (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	// The whole body is read so the server does the whole job, and the connection can be reused.
+	private static int request(String url, ByteArrayOutputStream body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setUseCaches(false);
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					if (body != null) {
+						body.write(buffer, 0, read);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return status;
+	}
+
+	private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+}
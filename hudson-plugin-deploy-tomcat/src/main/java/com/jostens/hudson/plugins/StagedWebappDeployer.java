@@ -0,0 +1,304 @@
+package com.jostens.hudson.plugins;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * @author blaisj1
+ * @brief Deploys an exploded webapp by extracting the WAR into a staging
+ *        directory and swapping it into place with two renames. The live
+ *        webapp is only missing between those renames, instead of for the
+ *        whole delete, copy and extract.
+ *
+ *        Staging trees live in Tomcat's temp directory, which is on the same
+ *        volume as webapps (so renames are atomic) but is not scanned for
+ *        deployments. Replaced trees are either deleted on a background
+ *        thread, or kept in a retained directory for rollback, up to a
+ *        number of versions and a disk budget.
+ *
+ *        Each tree travels with its copy of the WAR, kept beside it as
+ *        {tree}.war: the copy is staged with the tree and moved into webapps
+ *        only after the swap, and goes out and comes back with its tree, so
+ *        Tomcat never finds a WAR newer than the tree it would expand over.
+ */
+public class StagedWebappDeployer {
+
+	// Written into every staged tree, so a retained tree knows what it is.
+	public static final String VERSION_FILE = "META-INF/deploy-version.properties";
+	private static final int RENAME_ATTEMPTS = 5;
+	private static final long RENAME_DELAY = 500;
+
+	private final File stagingRoot;
+	private final File retainedRoot;
+	private final int retainedVersions;
+	private final long retainedBytes;
+	private final WarExtractor extractor;
+	private final PrintStream logger;
+
+	public StagedWebappDeployer(File stagingRoot, WarExtractor extractor, PrintStream logger) {
+		this(stagingRoot, null, 0, 0, extractor, logger);
+	}
+
+	/**
+	 * @param retainedRoot where replaced trees are kept, or null to delete them.
+	 * @param retainedVersions the most replaced trees to keep.
+	 * @param retainedBytes the most disk the kept trees may use, or 0 for no limit.
+	 */
+	public StagedWebappDeployer(File stagingRoot, File retainedRoot, int retainedVersions, long retainedBytes, WarExtractor extractor, PrintStream logger) {
+		this.stagingRoot = stagingRoot;
+		this.retainedRoot = retainedRoot;
+		this.retainedVersions = retainedVersions;
+		this.retainedBytes = retainedBytes;
+		this.extractor = extractor;
+		this.logger = logger;
+	}
+
+	/**
+	 * Extract the WAR beside the live webapp and switch it into place.
+	 *
+	 * @param label what is being deployed, recorded for rollback.
+	 */
+	public void deploy(File war, File webappDir, String label) throws IOException, InterruptedException {
+		File staging = new File(this.stagingRoot, webappDir.getName() + "." + System.currentTimeMillis() + ".staging");
+		if (!this.stagingRoot.isDirectory() && !this.stagingRoot.mkdirs()) {
+			throw new IOException("Unable to create directory " + this.stagingRoot);
+		}
+		this.deleteLeftovers(webappDir.getName());
+
+		this.extractor.setCopy(StagedWebappDeployer.warOf(staging));
+		try {
+			int files = this.extractor.extract(war, staging, false);
+			Properties version = new Properties();
+			version.setProperty("label", label == null ? "" : label);
+			version.setProperty("deployed", String.valueOf(System.currentTimeMillis()));
+			version.setProperty("bytes", String.valueOf(StagedWebappDeployer.sizeOf(staging)));
+			StagedWebappDeployer.writeVersion(staging, version);
+			this.logger.println("Staged " + files + " files in " + staging);
+		} catch (IOException e) {
+			StagedWebappDeployer.deleteInBackground(staging);
+			StagedWebappDeployer.warOf(staging).delete();
+			throw e;
+		}
+
+		this.swap(staging, webappDir);
+	}
+
+	/**
+	 * Swap a retained tree back in for the live webapp, with the WAR it was
+	 * deployed from; a tree retained without one leaves no WAR in webapps.
+	 * The live tree is retained in turn, so a rollback can itself be rolled
+	 * forward.
+	 *
+	 * @param version the label or directory name of the tree to restore, or
+	 *        blank for the most recently replaced one.
+	 */
+	public void rollback(File webappDir, String version) throws IOException, InterruptedException {
+		File[] retained = this.listRetained(webappDir.getName());
+		File target = null;
+		for (File candidate : retained) {
+			if (version == null || version.trim().length() == 0 || version.trim().equals(candidate.getName()) || version.trim().equals(StagedWebappDeployer.readVersion(candidate).getProperty("label"))) {
+				target = candidate;
+				break;
+			}
+		}
+		if (target == null) {
+			throw new IOException("No retained version " + (version == null || version.trim().length() == 0 ? "" : "[" + version.trim() + "] ") + "of " + webappDir.getName() + " found in " + this.retainedRoot);
+		}
+		this.logger.println("Rolling " + webappDir.getName() + " back to " + target.getName() + " [" + StagedWebappDeployer.readVersion(target).getProperty("label", "") + "]");
+		this.swap(target, webappDir);
+	}
+
+	/**
+	 * @return the retained trees of a webapp, newest first.
+	 */
+	public File[] listRetained(String name) {
+		File[] children = this.retainedRoot == null ? null : new File(this.retainedRoot, name).listFiles();
+		List<File> retained = new ArrayList<File>();
+		if (children != null) {
+			for (File child : children) {
+				// The WAR copies beside the trees are not versions of their own.
+				if (child.isDirectory()) {
+					retained.add(child);
+				}
+			}
+		}
+		// Directory names are deploy timestamps.
+		Collections.sort(retained, Collections.reverseOrder());
+		return retained.toArray(new File[retained.size()]);
+	}
+
+	private void swap(File replacement, File webappDir) throws IOException, InterruptedException {
+		File retired = new File(this.stagingRoot, webappDir.getName() + "." + System.currentTimeMillis() + ".retired");
+		File liveWar = StagedWebappDeployer.warOf(webappDir);
+		File retiredWar = StagedWebappDeployer.warOf(retired);
+		File replacementWar = StagedWebappDeployer.warOf(replacement);
+		webappDir.getParentFile().mkdirs();
+		long start = System.currentTimeMillis();
+		if (webappDir.exists() && !StagedWebappDeployer.rename(webappDir, retired)) {
+			throw new IOException("Unable to move " + webappDir + " aside; files in it are locked.  Enable antiResourceLocking on the context or stop Tomcat.");
+		}
+		// The old WAR goes with its tree, or Tomcat would expand it over the new one.
+		if (liveWar.exists() && !StagedWebappDeployer.rename(liveWar, retiredWar)) {
+			if (retired.exists()) {
+				StagedWebappDeployer.rename(retired, webappDir);
+			}
+			throw new IOException("Unable to move " + liveWar + " aside.");
+		}
+		if (!StagedWebappDeployer.rename(replacement, webappDir)) {
+			// Put the old webapp back rather than leave nothing deployed.
+			if (retired.exists()) {
+				StagedWebappDeployer.rename(retired, webappDir);
+			}
+			if (retiredWar.exists()) {
+				StagedWebappDeployer.rename(retiredWar, liveWar);
+			}
+			throw new IOException("Unable to move " + replacement + " to " + webappDir);
+		}
+		if (replacementWar.exists() && !StagedWebappDeployer.rename(replacementWar, liveWar)) {
+			this.logger.println("Unable to move " + replacementWar + " to " + liveWar + "; " + webappDir.getName() + " is deployed without a copy of its WAR.");
+		}
+		this.logger.println("Swapped in " + webappDir + "; the webapp was unavailable for " + (System.currentTimeMillis() - start) + "ms.");
+
+		if (retired.exists()) {
+			this.retire(retired, webappDir.getName());
+		} else {
+			retiredWar.delete();
+		}
+	}
+
+	private void retire(File retired, String name) throws IOException {
+		File retiredWar = StagedWebappDeployer.warOf(retired);
+		if (this.retainedRoot == null) {
+			StagedWebappDeployer.deleteInBackground(retired);
+			retiredWar.delete();
+			return;
+		}
+		File dir = new File(this.retainedRoot, name);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory " + dir);
+		}
+		String deployed = StagedWebappDeployer.readVersion(retired).getProperty("deployed", String.valueOf(System.currentTimeMillis()));
+		File kept = new File(dir, deployed);
+		if (kept.exists() || !retired.renameTo(kept)) {
+			StagedWebappDeployer.deleteInBackground(retired);
+			retiredWar.delete();
+			return;
+		}
+		if (retiredWar.exists() && !retiredWar.renameTo(StagedWebappDeployer.warOf(kept))) {
+			retiredWar.delete();
+		}
+
+		// Keep the newest trees that fit both limits; the rest go.
+		long bytes = 0;
+		int count = 0;
+		for (File candidate : this.listRetained(name)) {
+			File war = StagedWebappDeployer.warOf(candidate);
+			bytes += Long.parseLong(StagedWebappDeployer.readVersion(candidate).getProperty("bytes", "0")) + war.length();
+			count++;
+			if (count > this.retainedVersions || (this.retainedBytes > 0 && bytes > this.retainedBytes)) {
+				File doomed = new File(this.stagingRoot, name + "." + candidate.getName() + ".retired");
+				StagedWebappDeployer.deleteInBackground(candidate.renameTo(doomed) ? doomed : candidate);
+				war.delete();
+			} else {
+				this.logger.println("Retained " + name + " version " + candidate.getName() + " [" + StagedWebappDeployer.readVersion(candidate).getProperty("label", "") + "]");
+			}
+		}
+	}
+
+	// The copy of the WAR that belongs to a tree.
+	private static File warOf(File tree) {
+		return new File(tree.getPath() + ".war");
+	}
+
+	private static Properties readVersion(File tree) throws IOException {
+		Properties version = new Properties();
+		File file = new File(tree, VERSION_FILE);
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				version.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return version;
+	}
+
+	private static void writeVersion(File tree, Properties version) throws IOException {
+		File file = new File(tree, VERSION_FILE);
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			version.store(out, "Deployed version");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long sizeOf(File file) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			return file.length();
+		}
+		long size = 0;
+		for (File child : children) {
+			size += StagedWebappDeployer.sizeOf(child);
+		}
+		return size;
+	}
+
+	// Trees, and their WARs, from earlier deploys whose background delete never finished.
+	private void deleteLeftovers(String name) {
+		File[] children = this.stagingRoot.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String childName = child.getName();
+			if (childName.matches(Pattern.quote(name) + "\\.\\d+\\.(staging|retired)(\\.war(\\.part)?)?")) {
+				StagedWebappDeployer.deleteInBackground(child);
+			}
+		}
+	}
+
+	// Tomcat may hold a file open for a moment while it notices the change.
+	private static boolean rename(File from, File to) throws InterruptedException {
+		for (int attempt = 1; attempt <= RENAME_ATTEMPTS; attempt++) {
+			if (from.renameTo(to)) {
+				return true;
+			}
+			Thread.sleep(RENAME_DELAY);
+		}
+		return false;
+	}
+
+	/**
+	 * Delete the tree on a daemon thread so the build step does not wait for
+	 * it. The thread lives in the node's JVM, which outlasts the build.
+	 */
+	static void deleteInBackground(final File dir) {
+		Thread thread = new Thread("Delete " + dir) {
+			@Override
+			public void run() {
+				try {
+					Util.deleteRecursive(dir);
+				} catch (IOException e) {
+					// Left for the next deploy to clean up.
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
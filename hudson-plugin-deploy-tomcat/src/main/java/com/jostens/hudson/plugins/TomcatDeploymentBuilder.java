@@ -2,44 +2,76 @@ package com.jostens.hudson.plugins;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
-import hudson.tasks.BatchFile;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.Builder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
 public class TomcatDeploymentBuilder extends Builder {
 
-	private static final String copyFile = "copy \"{sourceDirectory}\\{sourceWar}.war\" \"{tomcatRootDirectory}\\webapps\\{sourceWar}.war\"";
-	private static final String extractFile = "unzip \"{tomcatRootDirectory}\\webapps\\{sourceWar}.war\" -d\"{tomcatRootDirectory}\\webapps\\{sourceWar}\"";
-	private static final String cleanTomcatWebAppDirectory = "rmdir /s /q \"{tomcatRootDirectory}\\webapps\\{sourceWar}\"";
-	private static final String cleanTomcatWebAppArtifact = "del \"{tomcatRootDirectory}\\webapps\\{sourceWar}.war\"";
-	private static final String cleanTomcatWorkDirectory = "rmdir /s /q \"{tomcatRootDirectory}\\work\\Catalina\\localhost\\{sourceWar}\"";
+
+	// Replaced webapps kept for rollback, relative to the Tomcat root.
+	static final String RETAINED_DIR = "retained";
+	// Seconds to wait for the deployed context when no timeout is configured.
+	private static final long DEFAULT_READINESS_TIMEOUT = 300;
 
 	private final String sourceWar;
 	private final String sourceDirectory;
 	private final String tomcatRootDirectory;
+	private final boolean deltaDeploy;
+	private final boolean stagedDeploy;
+	private final String retainedVersions;
+	private final String retainedBudget;
+	private final String parallelism;
+	private final boolean failFast;
+	private final boolean forceDeploy;
+	private final String readinessUrls;
+	private final String readinessTimeout;
+	private final String warmUpUrls;
 	private EnvVars environmentVariables;
 
 	@DataBoundConstructor
-	public TomcatDeploymentBuilder(String sourceWar, String sourceDirectory, String tomcatRootDirectory) {
+	public TomcatDeploymentBuilder(String sourceWar, String sourceDirectory, String tomcatRootDirectory, String deltaDeploy, String stagedDeploy, String retainedVersions, String retainedBudget, String parallelism, String failFast, String readinessUrls, String readinessTimeout, String warmUpUrls, String forceDeploy) {
 		this.sourceWar = sourceWar;
 		this.sourceDirectory = sourceDirectory;
 		this.tomcatRootDirectory = tomcatRootDirectory;
+		this.deltaDeploy = Boolean.parseBoolean(deltaDeploy);
+		this.stagedDeploy = Boolean.parseBoolean(stagedDeploy);
+		this.retainedVersions = retainedVersions;
+		this.retainedBudget = retainedBudget;
+		this.parallelism = parallelism;
+		this.failFast = Boolean.parseBoolean(failFast);
+		this.readinessUrls = readinessUrls;
+		this.readinessTimeout = readinessTimeout;
+		this.warmUpUrls = warmUpUrls;
+		this.forceDeploy = Boolean.parseBoolean(forceDeploy);
 	}
 
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
-		boolean successFlag = false;
-
-		List<BatchFile> commands = new ArrayList<BatchFile>();
 		try {
 			this.environmentVariables = build.getEnvironment(listener);
 		} catch (IOException e) {
@@ -48,67 +80,99 @@ public class TomcatDeploymentBuilder extends Builder {
 			return false;
 		}
 
-		String copyFileCommand = generateCopyFileScript();
-		String extractFileCommand = generateExtractFileScript();
-		String cleanTomcatWebAppDirectory = generateCleanTomcatWebAppDirectory();
-		String cleanTomcatWorkDirectory = generateCleanTomcatWorkDirectory();
-		String cleanTomcatWebAppArtifact = generateCleanTomcatWebAppArtifact();
+		// Retaining versions means swapping trees, so it implies a staged deploy.
+		int retained = (int) TomcatDeploymentBuilder.parseLong(this.environmentVariables.expand(this.retainedVersions));
+		boolean staged = this.stagedDeploy || retained > 0;
 
-		commands.add(new BatchFile(cleanTomcatWebAppDirectory));
-		commands.add(new BatchFile(cleanTomcatWebAppArtifact));
-		commands.add(new BatchFile(cleanTomcatWorkDirectory));
-		commands.add(new BatchFile(copyFileCommand));
-		commands.add(new BatchFile(extractFileCommand));
+		List<String> targets = TomcatDeploymentBuilder.split(this.environmentVariables.expand(this.tomcatRootDirectory));
+		if (targets.isEmpty()) {
+			listener.fatalError("No Tomcat root directory given.");
+			return false;
+		}
 
-		for (BatchFile command : commands) {
-			successFlag = command.perform(build, launcher, listener);
-			if (!successFlag) {
-				break;
+		// Clean, copy and explode the WAR in-process on the node, reading the source once.
+		String sha1;
+		try {
+			String source = this.environmentVariables.expand(this.sourceDirectory + "\\" + this.sourceWar + ".war");
+			DeployWar deployWar = new DeployWar(this.environmentVariables.expand(this.sourceWar), targets, this.deltaDeploy, listener);
+			if (staged) {
+				deployWar.stage(this.environmentVariables.expand("${JOB_NAME} #${BUILD_NUMBER}"));
+			}
+			if (retained > 0) {
+				deployWar.retain(retained, TomcatDeploymentBuilder.parseLong(this.environmentVariables.expand(this.retainedBudget)) * 1024 * 1024);
+			}
+			if (this.forceDeploy) {
+				deployWar.force();
 			}
+			deployWar.fanOut((int) TomcatDeploymentBuilder.parseLong(this.environmentVariables.expand(this.parallelism)), this.failFast);
+			sha1 = new FilePath(launcher.getChannel(), source).act(deployWar);
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to deploy {" + this.sourceWar + ".war}."));
+			return false;
 		}
 
-		return successFlag;
-	}
-
-	private String generateCopyFileScript() {
-		String command = TomcatDeploymentBuilder.copyFile;
-		command = command.replace("{sourceDirectory}", this.sourceDirectory);
-		command = command.replace("{sourceWar}", this.sourceWar);
-		command = command.replace("{tomcatRootDirectory}", this.tomcatRootDirectory);
-
-		return this.environmentVariables.expand(command);
+		List<String> readiness = TomcatDeploymentBuilder.split(this.environmentVariables.expand(this.readinessUrls));
+		if (readiness.isEmpty()) {
+			return true;
+		}
+		try {
+			long timeout = TomcatDeploymentBuilder.parseLong(this.environmentVariables.expand(this.readinessTimeout));
+			AwaitReady awaitReady = new AwaitReady(readiness, TomcatDeploymentBuilder.resolve(readiness, TomcatDeploymentBuilder.split(this.environmentVariables.expand(this.warmUpUrls))), (timeout > 0 ? timeout : DEFAULT_READINESS_TIMEOUT) * 1000, listener);
+			// Ready means serving the new WAR, not just answering: the old context answers too until it is replaced.
+			awaitReady.expectVersion(TomcatDeploymentBuilder.contextPath(this.environmentVariables.expand(this.sourceWar)) + "/" + DeploymentFingerprint.VERSION, sha1);
+			// Probe from the node, which can reach Tomcat even when the master cannot.
+			Map<String, Long> ready = launcher.getChannel().call(awaitReady);
+			long timeToReady = 0;
+			for (Long millis : ready.values()) {
+				timeToReady = Math.max(timeToReady, millis);
+			}
+			listener.getLogger().println("Time to ready: " + timeToReady + "ms.");
+			build.addAction(new DeploymentReadinessAction(this.environmentVariables.expand(this.sourceWar), timeToReady, ready));
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("{" + this.sourceWar + "} did not become ready."));
+			return false;
+		}
+		return true;
 	}
 
-	private String generateExtractFileScript() {
-		String command = TomcatDeploymentBuilder.extractFile;
-		command = command.replace("{tomcatRootDirectory}", this.tomcatRootDirectory);
-		command = command.replace("{sourceWar}", this.sourceWar);
-
-		return this.environmentVariables.expand(command);
+	// One value per line, or comma separated.
+	private static List<String> split(String values) {
+		List<String> list = new ArrayList<String>();
+		if (values == null) {
+			return list;
+		}
+		for (String value : values.split("[\\r\\n,]+")) {
+			if (value.trim().length() > 0) {
+				list.add(value.trim());
+			}
+		}
+		return list;
 	}
 
-	private String generateCleanTomcatWebAppArtifact() {
-		String command = TomcatDeploymentBuilder.cleanTomcatWebAppArtifact;
-		command = command.replace("{tomcatRootDirectory}", this.tomcatRootDirectory);
-		command = command.replace("{sourceWar}", this.sourceWar);
-
-		return this.environmentVariables.expand(command);
+	// Tomcat's context path for a webapp name: ROOT is the root, # separates path segments and ## starts a version.
+	static String contextPath(String warName) {
+		String name = warName.indexOf("##") >= 0 ? warName.substring(0, warName.indexOf("##")) : warName;
+		return "ROOT".equals(name) ? "" : "/" + name.replace('#', '/');
 	}
 
-	private String generateCleanTomcatWebAppDirectory() {
-		String command = TomcatDeploymentBuilder.cleanTomcatWebAppDirectory;
-		command = command.replace("{tomcatRootDirectory}", this.tomcatRootDirectory);
-		command = command.replace("{sourceWar}", this.sourceWar);
-
-		return this.environmentVariables.expand(command);
-	}
-
-	private String generateCleanTomcatWorkDirectory() {
-		String command = TomcatDeploymentBuilder.cleanTomcatWorkDirectory;
-		command = command.replace("{tomcatRootDirectory}", this.tomcatRootDirectory);
-		command = command.replace("{sourceWar}", this.sourceWar.replace("#", "_"));
-
-		return this.environmentVariables.expand(command);
+	// Relative warm-up paths are requested from every readiness URL's server.
+	private static List<String> resolve(List<String> readinessUrls, List<String> warmUpUrls) throws IOException {
+		List<String> resolved = new ArrayList<String>();
+		for (String warmUp : warmUpUrls) {
+			if (warmUp.matches("(?i)https?://.*")) {
+				resolved.add(warmUp);
+				continue;
+			}
+			for (String base : readinessUrls) {
+				String url = new URL(new URL(base), warmUp).toString();
+				if (!resolved.contains(url)) {
+					resolved.add(url);
+				}
+			}
+		}
+		return resolved;
 	}
 
 	public EnvVars getEnvironmentVariables() {
@@ -140,6 +204,283 @@ public class TomcatDeploymentBuilder extends Builder {
 		return tomcatRootDirectory;
 	}
 
+	/**
+	 * Runs on the node holding the WAR: deploys it to every Tomcat root, a
+	 * few at a time. With more than one target the source is first copied to
+	 * the node once, and each target reads that local copy instead. Returns
+	 * the WAR's SHA-1, which every target then serves as its version.
+	 */
+	static final class DeployWar implements FilePath.FileCallable<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String warName;
+		private final List<String> tomcatRoots;
+		private final boolean delta;
+		private final BuildListener listener;
+		private String label;
+		private int retainedVersions;
+		private long retainedBytes;
+		private int parallelism;
+		private boolean failFast;
+		private boolean force;
+
+		DeployWar(String warName, List<String> tomcatRoots, boolean delta, BuildListener listener) {
+			this.warName = warName;
+			this.tomcatRoots = new ArrayList<String>(tomcatRoots);
+			this.delta = delta;
+			this.listener = listener;
+		}
+
+		void stage(String label) {
+			this.label = label;
+		}
+
+		void retain(int retainedVersions, long retainedBytes) {
+			this.retainedVersions = retainedVersions;
+			this.retainedBytes = retainedBytes;
+		}
+
+		/**
+		 * @param parallelism the most targets deployed at once, or 0 for all.
+		 * @param failFast stop deploying to the rest after the first failure.
+		 */
+		void fanOut(int parallelism, boolean failFast) {
+			this.parallelism = parallelism;
+			this.failFast = failFast;
+		}
+
+		// Deploy even to targets whose fingerprint shows these bytes are already live.
+		void force() {
+			this.force = true;
+		}
+
+		public String invoke(File war, VirtualChannel channel) throws IOException, InterruptedException {
+			final PrintStream logger = this.listener.getLogger();
+			final DeploymentFingerprint fingerprint = new DeploymentFingerprint(war);
+			List<String> tomcatRoots = new ArrayList<String>();
+			List<String> results = new ArrayList<String>();
+			for (String tomcatRoot : this.tomcatRoots) {
+				File webapp = new File(new File(tomcatRoot, "webapps"), this.warName);
+				if (!this.force && fingerprint.isDeployed(webapp)) {
+					logger.println(webapp + " is already deployed from these bytes; leaving it alone.");
+					// Webapps deployed before there was a version file get one now.
+					fingerprint.publishVersion(webapp);
+					results.add(tomcatRoot + ": unchanged, already deployed from these bytes");
+				} else {
+					tomcatRoots.add(tomcatRoot);
+				}
+			}
+			// One configured target needs no results table.
+			boolean report = this.tomcatRoots.size() > 1;
+			if (tomcatRoots.isEmpty()) {
+				if (report) {
+					DeployWar.report(results, logger);
+				}
+				return fingerprint.getSha1();
+			}
+			if (tomcatRoots.size() == 1) {
+				long started = System.currentTimeMillis();
+				this.deploy(war, tomcatRoots.get(0), fingerprint, Runtime.getRuntime().availableProcessors(), logger);
+				if (report) {
+					results.add(tomcatRoots.get(0) + ": deployed in " + (System.currentTimeMillis() - started) + "ms");
+					DeployWar.report(results, logger);
+				}
+				return fingerprint.getSha1();
+			}
+
+			int workers = this.parallelism <= 0 ? tomcatRoots.size() : Math.min(this.parallelism, tomcatRoots.size());
+			final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+			final File local = File.createTempFile(this.warName + ".", ".war");
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			try {
+				long start = System.currentTimeMillis();
+				WarExtractor.copy(war, local);
+				fingerprint.hashFrom(local);
+				logger.println("Read " + war + " once (" + local.length() + " bytes) in " + (System.currentTimeMillis() - start) + "ms; deploying to " + tomcatRoots.size() + " targets, " + workers + " at a time.");
+
+				CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+				final Map<Future<String>, String> targets = new HashMap<Future<String>, String>();
+				for (final String tomcatRoot : tomcatRoots) {
+					targets.put(completion.submit(new java.util.concurrent.Callable<String>() {
+						public String call() throws IOException, InterruptedException {
+							// Buffer each target's log so concurrent targets do not interleave.
+							ByteArrayOutputStream log = new ByteArrayOutputStream();
+							PrintStream out = new PrintStream(log, true);
+							long started = System.currentTimeMillis();
+							try {
+								DeployWar.this.deploy(local, tomcatRoot, fingerprint, threads, out);
+							} finally {
+								synchronized (logger) {
+									logger.println("[" + tomcatRoot + "]");
+									logger.print(log.toString());
+								}
+							}
+							return tomcatRoot + ": deployed in " + (System.currentTimeMillis() - started) + "ms";
+						}
+					}), tomcatRoot);
+				}
+
+				int failures = 0;
+				for (int i = 0; i < targets.size(); i++) {
+					Future<String> future = completion.take();
+					try {
+						results.add(future.get());
+					} catch (ExecutionException e) {
+						failures++;
+						results.add(targets.get(future) + ": FAILED - " + e.getCause());
+						if (this.failFast) {
+							// Interrupted extractions stop at the next entry.
+							executor.shutdownNow();
+							results.add((targets.size() - i - 1) + " remaining targets abandoned.");
+							break;
+						}
+					}
+				}
+				DeployWar.report(results, logger);
+				if (failures > 0) {
+					throw new IOException(failures + " of " + targets.size() + " targets failed.");
+				}
+			} finally {
+				executor.shutdownNow();
+				// Abandoned targets may still be reading the local copy.
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+				local.delete();
+			}
+			return fingerprint.getSha1();
+		}
+
+		private static void report(List<String> results, PrintStream logger) {
+			logger.println("Deploy results:");
+			for (String result : results) {
+				logger.println("  " + result);
+			}
+		}
+
+		private void deploy(File war, String tomcatRoot, DeploymentFingerprint fingerprint, int threads, PrintStream logger) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			File webapp = new File(new File(tomcatRoot, "webapps"), this.warName);
+			File work = new File(tomcatRoot, "work" + File.separator + "Catalina" + File.separator + "localhost" + File.separator + this.warName.replace("#", "_"));
+			boolean staged = this.label != null;
+			if (!webapp.getParentFile().isDirectory()) {
+				throw new IOException("No webapps directory in " + tomcatRoot);
+			}
+
+			// A delta or staged deploy keeps the live webapp until the new one is ready.
+			if (!this.delta && !staged) {
+				Util.deleteRecursive(webapp);
+				Util.deleteRecursive(work);
+			} else if (!staged) {
+				DeploymentFingerprint.clear(webapp);
+			}
+
+			WarExtractor extractor = new WarExtractor(threads);
+			if (staged) {
+				// The WAR copy is staged with the tree and only moved into webapps after the swap.
+				File retained = this.retainedVersions > 0 ? new File(tomcatRoot, RETAINED_DIR) : null;
+				new StagedWebappDeployer(new File(tomcatRoot, "temp"), retained, this.retainedVersions, this.retainedBytes, extractor, logger).deploy(war, webapp, this.label);
+				// Compiled JSPs of the old version go once the new version is live.
+				Util.deleteRecursive(work);
+			} else {
+				extractor.setCopy(new File(webapp.getPath() + ".war"));
+				int files = extractor.extract(war, webapp, this.delta);
+				logger.println("Extracted " + files + " files (" + extractor.getUnchanged() + " unchanged, " + extractor.getRemoved() + " removed) from " + war.getName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+			}
+			fingerprint.record(webapp);
+			logger.println("Deploy I/O for " + webapp.getName() + ":");
+			extractor.getStats().report(logger);
+		}
+	}
+
+	/**
+	 * Runs on the node: waits for every readiness URL, then warms up.
+	 */
+	private static final class AwaitReady implements Callable<Map<String, Long>, IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> readinessUrls;
+		private final List<String> warmUpUrls;
+		private final long timeoutMillis;
+		private final BuildListener listener;
+		private String versionPath;
+		private String sha1;
+
+		AwaitReady(List<String> readinessUrls, List<String> warmUpUrls, long timeoutMillis, BuildListener listener) {
+			this.readinessUrls = new ArrayList<String>(readinessUrls);
+			this.warmUpUrls = new ArrayList<String>(warmUpUrls);
+			this.timeoutMillis = timeoutMillis;
+			this.listener = listener;
+		}
+
+		void expectVersion(String versionPath, String sha1) {
+			this.versionPath = versionPath;
+			this.sha1 = sha1;
+		}
+
+		public Map<String, Long> call() throws IOException {
+			ReadinessProbe probe = new ReadinessProbe(this.timeoutMillis, this.listener.getLogger());
+			if (this.sha1 != null) {
+				probe.expectVersion(this.versionPath, this.sha1);
+			}
+			try {
+				Map<String, Long> ready = probe.awaitReady(this.readinessUrls);
+				probe.warmUp(this.warmUpUrls);
+				return new HashMap<String, Long>(ready);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the deployed context.");
+			}
+		}
+	}
+
+	public boolean isDeltaDeploy() {
+		return deltaDeploy;
+	}
+
+	public boolean isStagedDeploy() {
+		return stagedDeploy;
+	}
+
+	public String getRetainedVersions() {
+		return retainedVersions;
+	}
+
+	public String getRetainedBudget() {
+		return retainedBudget;
+	}
+
+	public String getParallelism() {
+		return parallelism;
+	}
+
+	public boolean isFailFast() {
+		return failFast;
+	}
+
+	public String getReadinessUrls() {
+		return readinessUrls;
+	}
+
+	public String getReadinessTimeout() {
+		return readinessTimeout;
+	}
+
+	public String getWarmUpUrls() {
+		return warmUpUrls;
+	}
+
+	public boolean isForceDeploy() {
+		return forceDeploy;
+	}
+
+	static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends Descriptor<Builder> {
 		public DescriptorImpl() {
@@ -151,7 +492,7 @@ public class TomcatDeploymentBuilder extends Builder {
 		}
 
 		public TomcatDeploymentBuilder newInstance(StaplerRequest req) throws Descriptor.FormException {
-			return new TomcatDeploymentBuilder(req.getParameter("sourceWar"), req.getParameter("sourceDirectory"), req.getParameter("tomcatRootDirectory"));
+			return new TomcatDeploymentBuilder(req.getParameter("sourceWar"), req.getParameter("sourceDirectory"), req.getParameter("tomcatRootDirectory"), req.getParameter("deltaDeploy"), req.getParameter("stagedDeploy"), req.getParameter("retainedVersions"), req.getParameter("retainedBudget"), req.getParameter("parallelism"), req.getParameter("failFast"), req.getParameter("readinessUrls"), req.getParameter("readinessTimeout"), req.getParameter("warmUpUrls"), req.getParameter("forceDeploy"));
 		}
 
 		public TomcatDeploymentBuilder newInstance(StaplerRequest req, JSONObject formData) throws Descriptor.FormException {
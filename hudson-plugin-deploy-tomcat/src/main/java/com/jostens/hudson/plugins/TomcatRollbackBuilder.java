@@ -0,0 +1,136 @@
+package com.jostens.hudson.plugins;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Builder;
+import java.io.File;
+import java.io.IOException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * @author blaisj1
+ * @brief Hudson build step plugin to roll a Tomcat webapp back to a version
+ *        retained by the Deploy WAR to Tomcat step. The retained tree is
+ *        swapped in by rename; nothing is copied or extracted.
+ */
+public class TomcatRollbackBuilder extends Builder {
+
+	private final String sourceWar;
+	private final String tomcatRootDirectory;
+	private final String version;
+	private EnvVars environmentVariables;
+
+	@DataBoundConstructor
+	public TomcatRollbackBuilder(String sourceWar, String tomcatRootDirectory, String version) {
+		this.sourceWar = sourceWar;
+		this.tomcatRootDirectory = tomcatRootDirectory;
+		this.version = version;
+	}
+
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+		try {
+			this.environmentVariables = build.getEnvironment(listener);
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to gather Hudson environment variables."));
+			return false;
+		}
+
+		try {
+			String tomcatRoot = this.environmentVariables.expand(this.tomcatRootDirectory);
+			new FilePath(launcher.getChannel(), tomcatRoot).act(new Rollback(this.environmentVariables.expand(this.sourceWar), this.environmentVariables.expand(this.version), listener));
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to roll back {" + this.sourceWar + "}."));
+			return false;
+		}
+		return true;
+	}
+
+	public EnvVars getEnvironmentVariables() {
+		return this.environmentVariables;
+	}
+
+	public void setEnvironmentVariables(EnvVars environmentVariables) {
+		this.environmentVariables = environmentVariables;
+	}
+
+	public String getSourceWar() {
+		return sourceWar;
+	}
+
+	public String getTomcatRootDirectory() {
+		return tomcatRootDirectory;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Runs on the node holding Tomcat: swaps the retained tree and its WAR in,
+	 * so Tomcat does not expand the newer WAR over it, then moves the
+	 * compiled JSPs aside, since the restored JSPs are older than them.
+	 */
+	private static final class Rollback implements FilePath.FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String sourceWar;
+		private final String version;
+		private final BuildListener listener;
+
+		Rollback(String sourceWar, String version, BuildListener listener) {
+			this.sourceWar = sourceWar;
+			this.version = version;
+			this.listener = listener;
+		}
+
+		public Void invoke(File tomcatRoot, VirtualChannel channel) throws IOException, InterruptedException {
+			File temp = new File(tomcatRoot, "temp");
+			File retained = new File(tomcatRoot, TomcatDeploymentBuilder.RETAINED_DIR);
+			// The version rolled away from is retained too; the next deploy prunes to its limits.
+			StagedWebappDeployer deployer = new StagedWebappDeployer(temp, retained, Integer.MAX_VALUE, 0, null, this.listener.getLogger());
+			deployer.rollback(new File(new File(tomcatRoot, "webapps"), this.sourceWar), this.version);
+
+			File work = new File(tomcatRoot, "work" + File.separator + "Catalina" + File.separator + "localhost" + File.separator + this.sourceWar.replace("#", "_"));
+			File retiredWork = new File(temp, work.getName() + ".work." + System.currentTimeMillis());
+			if (work.exists()) {
+				if (work.renameTo(retiredWork)) {
+					StagedWebappDeployer.deleteInBackground(retiredWork);
+				} else {
+					this.listener.getLogger().println("Unable to clear compiled JSPs in " + work + "; they may be stale until Tomcat restarts.");
+				}
+			}
+			return null;
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<Builder> {
+		public DescriptorImpl() {
+			super(TomcatRollbackBuilder.class);
+		}
+
+		public String getDisplayName() {
+			return "Rollback Tomcat WAR";
+		}
+
+		public TomcatRollbackBuilder newInstance(StaplerRequest req) throws Descriptor.FormException {
+			return new TomcatRollbackBuilder(req.getParameter("rollback.sourceWar"), req.getParameter("rollback.tomcatRootDirectory"), req.getParameter("rollback.version"));
+		}
+
+		public TomcatRollbackBuilder newInstance(StaplerRequest req, JSONObject formData) throws Descriptor.FormException {
+			return (TomcatRollbackBuilder) req.bindJSON(TomcatRollbackBuilder.class, formData);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.jostens.hudson.plugins;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author blaisj1
+ * @brief Tallies the bytes read and written by each phase of a deploy, so the
+ *        disk and network I/O a deploy costs shows up in the build log.
+ */
+public class TransferStats {
+
+	// Phase name to { bytes read, bytes written, milliseconds }, in the order first seen.
+	private final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+	public synchronized void add(String phase, long read, long written, long millis) {
+		long[] totals = this.phases.get(phase);
+		if (totals == null) {
+			totals = new long[3];
+			this.phases.put(phase, totals);
+		}
+		totals[0] += read;
+		totals[1] += written;
+		totals[2] += millis;
+	}
+
+	public synchronized long getRead() {
+		long read = 0;
+		for (long[] totals : this.phases.values()) {
+			read += totals[0];
+		}
+		return read;
+	}
+
+	public synchronized long getWritten() {
+		long written = 0;
+		for (long[] totals : this.phases.values()) {
+			written += totals[1];
+		}
+		return written;
+	}
+
+	public synchronized void report(PrintStream logger) {
+		for (Map.Entry<String, long[]> phase : this.phases.entrySet()) {
+			long[] totals = phase.getValue();
+			logger.println("  " + phase.getKey() + ": read " + totals[0] + " bytes, wrote " + totals[1] + " bytes in " + totals[2] + "ms.");
+		}
+		logger.println("  Total: read " + this.getRead() + " bytes, wrote " + this.getWritten() + " bytes.");
+	}
+}
@@ -0,0 +1,338 @@
+package com.jostens.hudson.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * @author blaisj1
+ * @brief Explodes a WAR into a directory in-process, replacing the external
+ *        unzip binary. Every directory is created up front on one thread, then
+ *        the file entries are written by a pool of workers, each reusing its
+ *        own buffer. Entries that would land outside the target directory
+ *        (zip-slip) fail the extraction before anything is written.
+ *
+ *        Each extraction leaves a manifest of every file's CRC and size in
+ *        the target directory. A delta extraction compares the WAR against
+ *        that manifest, so it rewrites only changed or new files and deletes
+ *        only removed ones, without reading any existing file.
+ *
+ *        Given a file to copy the WAR to, the copy is made by the kernel
+ *        (transferTo) once every entry has been checked, and the entries are
+ *        then extracted in parallel as usual; the copy costs little next to
+ *        decompressing and writing the files.
+ */
+public class WarExtractor {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Relative to the target directory; META-INF is never served by Tomcat.
+	public static final String MANIFEST = "META-INF/deploy-manifest.txt";
+
+	private final int threads;
+	private final TransferStats stats = new TransferStats();
+	private File copy;
+	private int unchanged;
+	private int removed;
+
+	public WarExtractor(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Extract the WAR into the target directory. With delta set and a
+	 * manifest from an earlier extraction present, files whose CRC and size
+	 * match the manifest are left alone; otherwise every file is written.
+	 *
+	 * @return the number of files written.
+	 */
+	public int extract(File war, File targetDir, boolean delta) throws IOException, InterruptedException {
+		this.unchanged = 0;
+		this.removed = 0;
+		File manifestFile = new File(targetDir, MANIFEST);
+		Map<String, String> previous = delta ? WarExtractor.readManifest(manifestFile) : new HashMap<String, String>();
+		// A run that dies part way must not leave a manifest that vouches for half-written files.
+		if (manifestFile.exists() && !manifestFile.delete()) {
+			throw new IOException("Unable to remove " + manifestFile);
+		}
+
+
+		final ZipFile zip = new ZipFile(war);
+		try {
+			String root = targetDir.getCanonicalPath() + File.separator;
+			Map<String, String> current = new HashMap<String, String>();
+
+			// Validate every name and collect the directories before writing anything.
+			final List<ZipEntry> files = new ArrayList<ZipEntry>();
+			TreeSet<String> directories = new TreeSet<String>();
+			directories.add("");
+			for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName().replace('\\', '/');
+				if (!new File(targetDir, name).getCanonicalPath().concat(entry.isDirectory() ? File.separator : "").startsWith(root)) {
+					throw new IOException("Refusing to extract " + entry.getName() + " outside of " + targetDir);
+				}
+				if (entry.isDirectory()) {
+					directories.add(name);
+				} else {
+					String signature = WarExtractor.signature(entry);
+					current.put(name, signature);
+					if (signature.equals(previous.get(name)) && new File(targetDir, name).length() == entry.getSize()) {
+						this.unchanged++;
+						continue;
+					}
+					files.add(entry);
+					int slash = name.lastIndexOf('/');
+					if (slash > 0) {
+						directories.add(name.substring(0, slash));
+					}
+				}
+			}
+			if (this.copy != null) {
+				this.copyFile(war);
+			}
+
+			// Remove files the new WAR no longer has, along with any directories they leave empty.
+			for (String name : previous.keySet()) {
+				if (!current.containsKey(name)) {
+					WarExtractor.remove(targetDir, name);
+					this.removed++;
+				}
+			}
+
+			// Sorted names create each parent before its children.
+			for (String directory : directories) {
+				File dir = new File(targetDir, directory);
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					throw new IOException("Unable to create directory " + dir);
+				}
+			}
+
+			// Largest entries first, so one big jar does not finish alone at the end.
+			Collections.sort(files, new Comparator<ZipEntry>() {
+				public int compare(ZipEntry a, ZipEntry b) {
+					return a.getCompressedSize() > b.getCompressedSize() ? -1 : (a.getCompressedSize() < b.getCompressedSize() ? 1 : 0);
+				}
+			});
+
+			final File target = targetDir;
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicLong read = new AtomicLong();
+			final AtomicLong written = new AtomicLong();
+			long start = System.currentTimeMillis();
+			ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+			try {
+				List<Future<Void>> workers = new ArrayList<Future<Void>>();
+				for (int i = 0; i < this.threads; i++) {
+					workers.add(executor.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							byte[] buffer = new byte[BUFFER_SIZE];
+							int index;
+							while ((index = next.getAndIncrement()) < files.size()) {
+								if (Thread.currentThread().isInterrupted()) {
+									throw new IOException("Extraction interrupted.");
+								}
+								read.addAndGet(files.get(index).getCompressedSize());
+								written.addAndGet(WarExtractor.write(zip, files.get(index), target, buffer));
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> worker : workers) {
+					worker.get();
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Unable to extract " + war + ": " + cause);
+			} finally {
+				executor.shutdownNow();
+			}
+			this.stats.add("Extract", read.get(), written.get(), System.currentTimeMillis() - start);
+			WarExtractor.writeManifest(manifestFile, current);
+			return files.size();
+		} finally {
+			zip.close();
+		}
+	}
+
+	// Copy only; the bytes never leave the kernel.
+	private void copyFile(File war) throws IOException {
+		long start = System.currentTimeMillis();
+		long copied = WarExtractor.copy(war, this.copy);
+		this.stats.add("Copy", copied, copied, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Copy a file with FileChannel.transferTo, through a partial name that
+	 * Tomcat ignores until the copy is complete.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	static long copy(File from, File to) throws IOException {
+		File part = new File(to.getPath() + ".part");
+		FileChannel in = new FileInputStream(from).getChannel();
+		long copied = 0;
+		try {
+			FileChannel out = new FileOutputStream(part).getChannel();
+			try {
+				long size = in.size();
+				while (copied < size) {
+					copied += in.transferTo(copied, size - copied, out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		WarExtractor.replace(part, to);
+		return copied;
+	}
+
+	private static void replace(File part, File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			part.delete();
+			throw new IOException("Unable to replace " + file);
+		}
+		if (!part.renameTo(file)) {
+			throw new IOException("Unable to move " + part + " to " + file);
+		}
+	}
+
+	/**
+	 * Also write the WAR, byte for byte, to this file while extracting it.
+	 */
+	public void setCopy(File copy) {
+		this.copy = copy;
+	}
+
+	/**
+	 * @return the bytes read and written by every extraction so far.
+	 */
+	public TransferStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the number of files the last extraction left untouched.
+	 */
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the number of files the last extraction deleted.
+	 */
+	public int getRemoved() {
+		return removed;
+	}
+
+	private static String signature(ZipEntry entry) {
+		return Long.toHexString(entry.getCrc()) + "\t" + entry.getSize();
+	}
+
+	private static void remove(File targetDir, String name) {
+		File file = new File(targetDir, name);
+		file.delete();
+		for (File dir = file.getParentFile(); dir != null && !dir.equals(targetDir); dir = dir.getParentFile()) {
+			String[] children = dir.list();
+			if (children == null || children.length > 0 || !dir.delete()) {
+				break;
+			}
+		}
+	}
+
+	// Each line is crc<TAB>size<TAB>name; the map is name to crc<TAB>size.
+	static Map<String, String> readManifest(File file) throws IOException {
+		Map<String, String> manifest = new HashMap<String, String>();
+		if (!file.isFile()) {
+			return manifest;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int first = line.indexOf('\t');
+				int second = first < 0 ? -1 : line.indexOf('\t', first + 1);
+				if (second > 0) {
+					manifest.put(line.substring(second + 1), line.substring(0, second));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return manifest;
+	}
+
+	private static void writeManifest(File file, Map<String, String> manifest) throws IOException {
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			for (Map.Entry<String, String> entry : manifest.entrySet()) {
+				writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private static long write(ZipFile zip, ZipEntry entry, File targetDir, byte[] buffer) throws IOException {
+		File file = new File(targetDir, entry.getName().replace('\\', '/'));
+		long written = 0;
+		InputStream in = zip.getInputStream(entry);
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					written += read;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		// Keep the archive's timestamps, as unzip did.
+		if (entry.getTime() > 0) {
+			file.setLastModified(entry.getTime());
+		}
+		return written;
+	}
+}
@@ -0,0 +1,113 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Records fingerprints in webapps extracted into a temporary
+ *        directory, and checks which changes since the deploy they notice.
+ */
+public class DeploymentFingerprintTest extends TestCase {
+
+	private File dir;
+	private File war;
+	private File webapp;
+
+	protected void setUp() throws Exception {
+		this.dir = File.createTempFile("webapps", "");
+		if (!this.dir.delete() || !this.dir.mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+		this.war = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index", "WEB-INF/web.xml", "<web-app/>");
+		this.webapp = new File(this.dir, "app");
+		WarExtractor extractor = new WarExtractor(2);
+		extractor.setCopy(new File(this.dir, "app.war"));
+		extractor.extract(this.war, this.webapp, false);
+		new DeploymentFingerprint(this.war).record(this.webapp);
+	}
+
+	protected void tearDown() throws Exception {
+		WarExtractorTest.deleteRecursive(this.dir);
+	}
+
+	public void testSameWarIsDeployedWithoutHashing() throws Exception {
+		DeploymentFingerprint fingerprint = new DeploymentFingerprint(this.war);
+		// Hashing this would fail; the marker's SHA-1 is taken for the unchanged file.
+		fingerprint.hashFrom(new File(this.dir, "missing.war"));
+		assertTrue(fingerprint.isDeployed(this.webapp));
+		assertEquals(this.sha1(), fingerprint.getSha1());
+	}
+
+	public void testSameBytesElsewhereAreDeployed() throws Exception {
+		File copy = new File(this.dir, "copy.war");
+		WarExtractor.copy(this.war, copy);
+		assertTrue(new DeploymentFingerprint(copy).isDeployed(this.webapp));
+	}
+
+	public void testOtherBytesOfTheSameSizeAreNotDeployed() throws Exception {
+		File other = WarExtractorTest.writeWar(new File(this.dir, "v2.war"), "index.jsp", "v2 index", "WEB-INF/web.xml", "<web-app/>");
+		assertEquals(this.war.length(), other.length());
+		assertFalse(new DeploymentFingerprint(other).isDeployed(this.webapp));
+	}
+
+	public void testFileEditedInPlaceIsNoticed() throws Exception {
+		File index = new File(this.webapp, "index.jsp");
+		// Same size, so only the modified time gives it away.
+		this.write(index, "v9 index");
+		index.setLastModified(index.lastModified() + 2000);
+		assertFalse(new DeploymentFingerprint(this.war).isDeployed(this.webapp));
+	}
+
+	public void testFileTruncatedInPlaceIsNoticed() throws Exception {
+		this.write(new File(this.webapp, "WEB-INF/web.xml"), "");
+		assertFalse(new DeploymentFingerprint(this.war).isDeployed(this.webapp));
+	}
+
+	public void testFileDeletedInPlaceIsNoticed() throws Exception {
+		assertTrue(new File(this.webapp, "index.jsp").delete());
+		assertFalse(new DeploymentFingerprint(this.war).isDeployed(this.webapp));
+	}
+
+	public void testReplacedWarCopyIsNoticed() throws Exception {
+		File copy = new File(this.dir, "app.war");
+		copy.setLastModified(copy.lastModified() + 2000);
+		assertFalse(new DeploymentFingerprint(this.war).isDeployed(this.webapp));
+	}
+
+	public void testClearedMarkerIsNotDeployed() throws Exception {
+		DeploymentFingerprint.clear(this.webapp);
+		assertFalse(new File(this.webapp, DeploymentFingerprint.MARKER).exists());
+		assertFalse(new DeploymentFingerprint(this.war).isDeployed(this.webapp));
+	}
+
+	public void testPublishesVersionOnlyWhenItChanges() throws Exception {
+		File version = new File(this.webapp, DeploymentFingerprint.VERSION);
+		assertTrue(WarExtractorTest.read(version).contains("sha1=" + this.sha1()));
+		long modified = version.lastModified() - 60000;
+		version.setLastModified(modified);
+		new DeploymentFingerprint(this.war).publishVersion(this.webapp);
+		assertEquals(modified, version.lastModified());
+
+		File other = WarExtractorTest.writeWar(new File(this.dir, "v2.war"), "index.jsp", "v2 index");
+		DeploymentFingerprint fingerprint = new DeploymentFingerprint(other);
+		fingerprint.publishVersion(this.webapp);
+		assertTrue(WarExtractorTest.read(version).contains("sha1=" + fingerprint.getSha1()));
+	}
+
+	private String sha1() throws IOException {
+		return new DeploymentFingerprint(new File(this.dir, "app.war")).getSha1();
+	}
+
+	private void write(File file, String content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Waits on and warms up contexts of a stub web server standing in for
+ *        a Tomcat bringing them up, or replacing an old version of them.
+ */
+public class ReadinessProbeTest extends TestCase {
+
+	private HttpServer server;
+	private StubTomcat tomcat;
+	private ByteArrayOutputStream log;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.tomcat = new StubTomcat();
+		this.server.createContext("/", this.tomcat);
+		this.server.start();
+		this.log = new ByteArrayOutputStream();
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+	}
+
+	public void testWaitsForEveryContext() throws Exception {
+		this.tomcat.answer("/app", 404, 503, 200);
+		this.tomcat.answer("/admin", 200);
+		Map<String, Long> ready = this.probe(10000).awaitReady(Arrays.asList(this.url("/app"), this.url("/admin")));
+
+		assertEquals(Arrays.asList(this.url("/app"), this.url("/admin")), new ArrayList<String>(ready.keySet()));
+		assertEquals(3, this.tomcat.requests("/app"));
+		assertEquals(1, this.tomcat.requests("/admin"));
+		assertTrue(ready.get(this.url("/app")) >= ready.get(this.url("/admin")));
+	}
+
+	public void testTimeoutReportsLastAnswer() throws Exception {
+		this.tomcat.answer("/app", 503);
+		try {
+			this.probe(1000).awaitReady(Arrays.asList(this.url("/app")));
+			fail("Expected a timeout.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("was not ready after 1000ms; last answer: HTTP 503"));
+		}
+	}
+
+	public void testNothingListeningIsNotReady() throws Exception {
+		try {
+			this.probe(1000).awaitReady(Arrays.asList("http://127.0.0.1:" + ReadinessProbeTest.freePort() + "/app"));
+			fail("Expected a timeout.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("was not ready"));
+		}
+	}
+
+	/**
+	 * The old context answers 200 throughout, so only the version file shows
+	 * when the new one has taken over.
+	 */
+	public void testWaitsForTheNewVersion() throws Exception {
+		this.tomcat.answer("/app/", 200);
+		this.tomcat.serve("/app/deploy-version.properties", "sha1=old\n", "sha1=old\n", "#Deployed WAR\nsha1=new\n");
+		ReadinessProbe probe = this.probe(10000);
+		probe.expectVersion("/app/deploy-version.properties", "new");
+		Map<String, Long> ready = probe.awaitReady(Arrays.asList(this.url("/app/")));
+
+		assertEquals(3, this.tomcat.requests("/app/deploy-version.properties"));
+		assertEquals(3, this.tomcat.requests("/app/"));
+		// Two delays, of 500ms and 1000ms, before the third answer.
+		assertTrue(String.valueOf(ready.get(this.url("/app/"))), ready.get(this.url("/app/")) >= 1500);
+	}
+
+	public void testOldVersionIsNotReady() throws Exception {
+		this.tomcat.answer("/app/", 200);
+		this.tomcat.serve("/app/deploy-version.properties", "sha1=old\n");
+		ReadinessProbe probe = this.probe(1000);
+		probe.expectVersion("/app/deploy-version.properties", "new");
+		try {
+			probe.awaitReady(Arrays.asList(this.url("/app/")));
+			fail("Expected a timeout.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("/app/deploy-version.properties serves SHA-1 old, not new"));
+		}
+	}
+
+	public void testMissingVersionFileIsNotReady() throws Exception {
+		this.tomcat.answer("/app/", 200);
+		ReadinessProbe probe = this.probe(1000);
+		probe.expectVersion("/app/deploy-version.properties", "new");
+		try {
+			probe.awaitReady(Arrays.asList(this.url("/app/")));
+			fail("Expected a timeout.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("last answer: HTTP 404 for " + this.url("/app/deploy-version.properties")));
+		}
+	}
+
+	public void testVersionPathFollowsTomcatContextNaming() {
+		assertEquals("/user-services", TomcatDeploymentBuilder.contextPath("user-services"));
+		assertEquals("", TomcatDeploymentBuilder.contextPath("ROOT"));
+		assertEquals("/a/b", TomcatDeploymentBuilder.contextPath("a#b##2.0"));
+	}
+
+	public void testWarmUpRequestsEveryUrlAndToleratesFailures() throws Exception {
+		this.tomcat.answer("/app/index.jsp", 200);
+		this.tomcat.answer("/app/broken.jsp", 500);
+		String refused = "http://127.0.0.1:" + ReadinessProbeTest.freePort() + "/app";
+		this.probe(1000).warmUp(Arrays.asList(this.url("/app/index.jsp"), this.url("/app/broken.jsp"), refused));
+
+		assertEquals(1, this.tomcat.requests("/app/index.jsp"));
+		assertEquals(1, this.tomcat.requests("/app/broken.jsp"));
+		String output = this.log.toString();
+		assertTrue(output, output.contains("/app/broken.jsp: HTTP 500"));
+		assertTrue(output, output.contains("Unable to warm " + refused));
+		assertTrue(output, output.contains("Warmed up 3 URLs"));
+	}
+
+	public void testWarmUpOfNothingDoesNothing() throws Exception {
+		this.probe(1000).warmUp(Collections.<String> emptyList());
+		assertEquals("", this.log.toString());
+	}
+
+	private ReadinessProbe probe(long timeoutMillis) {
+		return new ReadinessProbe(timeoutMillis, new PrintStream(this.log, true));
+	}
+
+	private String url(String path) {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + path;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Answers each path with its statuses, or 200 and its bodies, in turn,
+	 * repeating the last one.
+	 */
+	private static final class StubTomcat implements HttpHandler {
+
+		private final Map<String, int[]> statuses = new HashMap<String, int[]>();
+		private final Map<String, String[]> bodies = new HashMap<String, String[]>();
+		private final Map<String, Integer> requests = new HashMap<String, Integer>();
+
+		synchronized void answer(String path, int... statuses) {
+			this.statuses.put(path, statuses);
+		}
+
+		synchronized void serve(String path, String... bodies) {
+			this.bodies.put(path, bodies);
+		}
+
+		synchronized int requests(String path) {
+			Integer count = this.requests.get(path);
+			return count == null ? 0 : count;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			int status;
+			String text;
+			synchronized (this) {
+				int count = this.requests(path);
+				this.requests.put(path, count + 1);
+				int[] answers = this.statuses.get(path);
+				String[] bodies = this.bodies.get(path);
+				status = bodies != null ? 200 : answers == null ? 404 : answers[Math.min(count, answers.length - 1)];
+				text = bodies != null ? bodies[Math.min(count, bodies.length - 1)] : "HTTP " + status;
+			}
+			byte[] body = text.getBytes("UTF-8");
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
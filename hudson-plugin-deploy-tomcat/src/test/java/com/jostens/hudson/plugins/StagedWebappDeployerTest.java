@@ -0,0 +1,170 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Stages and swaps webapps in a temporary Tomcat root, checking that
+ *        each tree's WAR copy moves with it, and retains, prunes and rolls
+ *        back replaced trees.
+ */
+public class StagedWebappDeployerTest extends TestCase {
+
+	private File dir;
+	private File webapp;
+	private File temp;
+	private ByteArrayOutputStream log;
+
+	protected void setUp() throws Exception {
+		this.dir = File.createTempFile("tomcat", "");
+		if (!this.dir.delete() || !new File(this.dir, "webapps").mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+		this.webapp = new File(this.dir, "webapps/app");
+		this.temp = new File(this.dir, "temp");
+		this.log = new ByteArrayOutputStream();
+	}
+
+	protected void tearDown() throws Exception {
+		WarExtractorTest.deleteRecursive(this.dir);
+	}
+
+	public void testSwapMovesWarWithItsTree() throws Exception {
+		StagedWebappDeployer deployer = new StagedWebappDeployer(this.temp, new WarExtractor(2), new PrintStream(this.log, true));
+		File v1 = this.war("v1");
+		deployer.deploy(v1, this.webapp, "#1");
+		this.assertLive(v1, "v1", "#1");
+
+		File v2 = this.war("v2");
+		deployer.deploy(v2, this.webapp, "#2");
+		this.assertLive(v2, "v2", "#2");
+		assertTrue(this.log.toString(), this.log.toString().contains("Swapped in " + this.webapp));
+		// The replaced tree and its WAR are deleted in the background; nothing is left staged.
+		this.awaitEmpty(this.temp);
+	}
+
+	public void testFailedStagingLeavesLiveWebappAlone() throws Exception {
+		StagedWebappDeployer deployer = new StagedWebappDeployer(this.temp, new WarExtractor(2), new PrintStream(this.log, true));
+		File v1 = this.war("v1");
+		deployer.deploy(v1, this.webapp, "#1");
+
+		File evil = WarExtractorTest.writeWar(new File(this.dir, "evil.war"), "index.jsp", "evil", "../../evil.jsp", "not fine");
+		try {
+			deployer.deploy(evil, this.webapp, "#2");
+			fail("Expected the entry outside the target to be refused.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Refusing to extract ../../evil.jsp"));
+		}
+		this.assertLive(v1, "v1", "#1");
+		this.awaitEmpty(this.temp);
+	}
+
+	public void testRollsBackToMostRecentAndForwardAgain() throws Exception {
+		StagedWebappDeployer deployer = this.retaining(3, 0);
+		File[] wars = this.deployVersions(deployer, 3);
+
+		deployer.rollback(this.webapp, "");
+		this.assertLive(wars[1], "v2", "#2");
+		// The tree rolled back from is retained in its turn, with its WAR.
+		assertEquals(Arrays.asList("#3", "#1"), this.retainedLabels(deployer));
+		deployer.rollback(this.webapp, null);
+		this.assertLive(wars[2], "v3", "#3");
+	}
+
+	public void testRollsBackByLabelOrDirectoryName() throws Exception {
+		StagedWebappDeployer deployer = this.retaining(3, 0);
+		File[] wars = this.deployVersions(deployer, 3);
+
+		deployer.rollback(this.webapp, " #1 ");
+		this.assertLive(wars[0], "v1", "#1");
+		File retained = deployer.listRetained("app")[1];
+		deployer.rollback(this.webapp, retained.getName());
+		this.assertLive(wars[1], "v2", "#2");
+
+		try {
+			deployer.rollback(this.webapp, "#9");
+			fail("Expected the unknown version to be refused.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("No retained version [#9] of app found in "));
+		}
+		this.assertLive(wars[1], "v2", "#2");
+	}
+
+	public void testPrunesToRetainedVersions() throws Exception {
+		StagedWebappDeployer deployer = this.retaining(2, 0);
+		this.deployVersions(deployer, 5);
+		assertEquals(Arrays.asList("#4", "#3"), this.retainedLabels(deployer));
+		// Pruned trees take their WARs with them.
+		assertEquals(4, new File(this.dir, "retained/app").list().length);
+	}
+
+	public void testPrunesToRetainedBytes() throws Exception {
+		// Each version is about 100KB extracted plus a WAR copy of at least 60KB.
+		StagedWebappDeployer deployer = this.retaining(5, 400 * 1024);
+		this.deployVersions(deployer, 5);
+		assertEquals(Arrays.asList("#4", "#3"), this.retainedLabels(deployer));
+		assertEquals(4, new File(this.dir, "retained/app").list().length);
+	}
+
+	private StagedWebappDeployer retaining(int versions, long bytes) {
+		return new StagedWebappDeployer(this.temp, new File(this.dir, "retained"), versions, bytes, new WarExtractor(2), new PrintStream(this.log, true));
+	}
+
+	/**
+	 * Deploy v1 to vN, labelled #1 to #N, each with 100KB of text.
+	 */
+	private File[] deployVersions(StagedWebappDeployer deployer, int count) throws Exception {
+		Random random = new Random(37);
+		File[] wars = new File[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder content = new StringBuilder();
+			for (int j = 0; j < 100 * 1024; j++) {
+				content.append((char) ('a' + random.nextInt(26)));
+			}
+			String version = "v" + (i + 1);
+			wars[i] = WarExtractorTest.writeWar(new File(this.dir, version + ".war"), "index.jsp", version + " index", "WEB-INF/data.txt", content.toString());
+			deployer.deploy(wars[i], this.webapp, "#" + (i + 1));
+			// Retained trees are named by the millisecond they were deployed.
+			Thread.sleep(5);
+		}
+		return wars;
+	}
+
+	private List<String> retainedLabels(StagedWebappDeployer deployer) throws IOException {
+		List<String> labels = new ArrayList<String>();
+		for (File retained : deployer.listRetained("app")) {
+			Properties version = new Properties();
+			version.load(new ByteArrayInputStream(WarExtractorTest.bytes(new File(retained, StagedWebappDeployer.VERSION_FILE))));
+			labels.add(version.getProperty("label"));
+			assertTrue(retained.getName(), new File(retained.getPath() + ".war").isFile());
+		}
+		return labels;
+	}
+
+	private File war(String version) throws IOException {
+		return WarExtractorTest.writeWar(new File(this.dir, version + ".war"), "index.jsp", version + " index", "WEB-INF/web.xml", "<web-app/>");
+	}
+
+	private void assertLive(File war, String version, String label) throws IOException {
+		assertEquals(version + " index", WarExtractorTest.read(new File(this.webapp, "index.jsp")));
+		assertTrue(WarExtractorTest.read(new File(this.webapp, StagedWebappDeployer.VERSION_FILE)).contains("label=" + label.replace("#", "\\#")));
+		assertTrue(version, Arrays.equals(WarExtractorTest.bytes(war), WarExtractorTest.bytes(new File(this.webapp.getPath() + ".war"))));
+	}
+
+	private void awaitEmpty(File directory) throws InterruptedException {
+		for (int i = 0; i < 100 && directory.list() != null && directory.list().length > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(Arrays.asList(directory.list()).toString(), 0, directory.list().length);
+	}
+}
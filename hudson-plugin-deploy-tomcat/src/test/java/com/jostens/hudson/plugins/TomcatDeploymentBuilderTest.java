@@ -0,0 +1,160 @@
+package com.jostens.hudson.plugins;
+
+import hudson.util.StreamBuildListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Deploys WARs built on the fly into Tomcat roots in a temporary
+ *        directory, as the build step does on the node: to one root, in full
+ *        or as a delta, and fanned out to several.
+ */
+public class TomcatDeploymentBuilderTest extends TestCase {
+
+	private File dir;
+	private ByteArrayOutputStream log;
+
+	protected void setUp() throws Exception {
+		this.dir = File.createTempFile("tomcats", "");
+		if (!this.dir.delete() || !this.dir.mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+		this.log = new ByteArrayOutputStream();
+	}
+
+	protected void tearDown() throws Exception {
+		WarExtractorTest.deleteRecursive(this.dir);
+	}
+
+	public void testDeltaDeployWritesOnlyChangedFiles() throws Exception {
+		File root = this.tomcat("tomcat");
+		File v1 = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index", "WEB-INF/web.xml", "<web-app/>", "old.jsp", "old");
+		this.deployWar(Collections.singletonList(root.getPath()), true).invoke(v1, null);
+		File webapp = new File(root, "webapps/app");
+		File webXml = new File(webapp, "WEB-INF/web.xml");
+		long modified = webXml.lastModified() - 60000;
+		webXml.setLastModified(modified);
+
+		File v2 = WarExtractorTest.writeWar(new File(this.dir, "v2.war"), "index.jsp", "v2 index", "WEB-INF/web.xml", "<web-app/>", "new.jsp", "new");
+		this.deployWar(Collections.singletonList(root.getPath()), true).invoke(v2, null);
+		assertTrue(this.log.toString(), this.log.toString().contains("Extracted 2 files (1 unchanged, 1 removed) from v2.war"));
+		assertEquals("v2 index", WarExtractorTest.read(new File(webapp, "index.jsp")));
+		assertEquals("new", WarExtractorTest.read(new File(webapp, "new.jsp")));
+		assertFalse(new File(webapp, "old.jsp").exists());
+		assertEquals(modified, webXml.lastModified());
+		assertTrue(Arrays.equals(WarExtractorTest.bytes(v2), WarExtractorTest.bytes(new File(root, "webapps/app.war"))));
+	}
+
+	public void testFullDeployReplacesTreeAndCompiledJsps() throws Exception {
+		File root = this.tomcat("tomcat");
+		File webapp = new File(root, "webapps/app");
+		File stale = new File(webapp, "stale.jsp");
+		File compiled = new File(root, "work/Catalina/localhost/app/org/apache/jsp/index_jsp.class");
+		stale.getParentFile().mkdirs();
+		stale.createNewFile();
+		compiled.getParentFile().mkdirs();
+		compiled.createNewFile();
+
+		File war = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index");
+		this.deployWar(Collections.singletonList(root.getPath()), false).invoke(war, null);
+		assertEquals("v1 index", WarExtractorTest.read(new File(webapp, "index.jsp")));
+		assertFalse(stale.exists());
+		assertFalse(compiled.exists());
+	}
+
+	/**
+	 * The same bytes again leave the live webapp alone, but give it back a
+	 * version file it lacks.
+	 */
+	public void testFingerprintHitSkipsDeploy() throws Exception {
+		File root = this.tomcat("tomcat");
+		File war = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index");
+		String sha1 = this.deployWar(Collections.singletonList(root.getPath()), false).invoke(war, null);
+		// A full deploy would remove this with the rest of the tree.
+		File sentinel = new File(root, "webapps/app/sentinel.txt");
+		assertTrue(sentinel.createNewFile());
+		File version = new File(root, "webapps/app/" + DeploymentFingerprint.VERSION);
+		assertTrue(version.delete());
+
+		assertEquals(sha1, this.deployWar(Collections.singletonList(root.getPath()), false).invoke(war, null));
+		assertTrue(this.log.toString(), this.log.toString().contains("is already deployed from these bytes; leaving it alone."));
+		assertTrue(sentinel.exists());
+		assertTrue(WarExtractorTest.read(version).contains("sha1=" + sha1));
+	}
+
+	public void testDeploysToEveryRoot() throws Exception {
+		List<String> roots = Arrays.asList(this.tomcat("a").getPath(), this.tomcat("b").getPath(), this.tomcat("c").getPath());
+		File war = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index", "WEB-INF/web.xml", "<web-app/>");
+		TomcatDeploymentBuilder.DeployWar deployWar = this.deployWar(roots, false);
+		deployWar.fanOut(2, false);
+
+		assertEquals(TomcatDeploymentBuilderTest.sha1(war), deployWar.invoke(war, null));
+		assertTrue(this.log.toString(), this.log.toString().contains("deploying to 3 targets, 2 at a time."));
+		for (String root : roots) {
+			assertEquals("v1 index", WarExtractorTest.read(new File(root, "webapps/app/index.jsp")));
+			assertTrue(Arrays.equals(WarExtractorTest.bytes(war), WarExtractorTest.bytes(new File(root, "webapps/app.war"))));
+			assertTrue(this.log.toString(), this.log.toString().contains("  " + root + ": deployed in "));
+		}
+	}
+
+	public void testFailedRootDoesNotStopTheOthers() throws Exception {
+		File missing = new File(this.dir, "missing");
+		List<String> roots = Arrays.asList(this.tomcat("a").getPath(), missing.getPath(), this.tomcat("c").getPath());
+		File war = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index");
+		TomcatDeploymentBuilder.DeployWar deployWar = this.deployWar(roots, false);
+		deployWar.fanOut(0, false);
+		try {
+			deployWar.invoke(war, null);
+			fail("Expected the missing root to fail the deploy.");
+		} catch (IOException e) {
+			assertEquals("1 of 3 targets failed.", e.getMessage());
+		}
+		assertTrue(this.log.toString(), this.log.toString().contains("  " + missing + ": FAILED - java.io.IOException: No webapps directory in " + missing));
+		assertEquals("v1 index", WarExtractorTest.read(new File(roots.get(0), "webapps/app/index.jsp")));
+		assertEquals("v1 index", WarExtractorTest.read(new File(roots.get(2), "webapps/app/index.jsp")));
+	}
+
+	public void testFailFastAbandonsRemainingRoots() throws Exception {
+		File missing = new File(this.dir, "missing");
+		List<String> roots = Arrays.asList(missing.getPath(), this.tomcat("b").getPath(), this.tomcat("c").getPath());
+		File war = WarExtractorTest.writeWar(new File(this.dir, "v1.war"), "index.jsp", "v1 index");
+		TomcatDeploymentBuilder.DeployWar deployWar = this.deployWar(roots, false);
+		// One at a time, so the missing root fails first; the next may already be under way.
+		deployWar.fanOut(1, true);
+		try {
+			deployWar.invoke(war, null);
+			fail("Expected the missing root to fail the deploy.");
+		} catch (IOException e) {
+			assertEquals("1 of 3 targets failed.", e.getMessage());
+		}
+		assertTrue(this.log.toString(), this.log.toString().contains("  2 remaining targets abandoned."));
+		assertFalse(new File(roots.get(2), "webapps/app").exists());
+	}
+
+	private TomcatDeploymentBuilder.DeployWar deployWar(List<String> roots, boolean delta) {
+		return new TomcatDeploymentBuilder.DeployWar("app", roots, delta, new StreamBuildListener(this.log));
+	}
+
+	private File tomcat(String name) throws IOException {
+		File root = new File(this.dir, name);
+		if (!new File(root, "webapps").mkdirs()) {
+			throw new IOException("Unable to create " + root);
+		}
+		return root;
+	}
+
+	private static String sha1(File file) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-1").digest(WarExtractorTest.bytes(file))) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
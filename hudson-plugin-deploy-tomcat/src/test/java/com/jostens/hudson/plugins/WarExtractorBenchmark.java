@@ -0,0 +1,120 @@
+package com.jostens.hudson.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Times WarExtractor against the unzip binary it replaced, on a WAR of
+ *        20,000 entries and about 150MB, in full and as a delta.
+ *
+ *        The name keeps it out of the unit tests; run it on its own with
+ *        mvn test -Dtest=WarExtractorBenchmark. -Dbenchmark.entries,
+ *        -Dbenchmark.megabytes, -Dbenchmark.rounds and -Dbenchmark.threads
+ *        change the defaults. Each time is the best of its rounds, so every
+ *        run reads the WAR from a warm cache.
+ */
+public class WarExtractorBenchmark extends TestCase {
+
+	private File dir;
+	private File war;
+	private File target;
+	private int entries;
+	private int rounds;
+	private int threads;
+
+	protected void setUp() throws Exception {
+		this.dir = File.createTempFile("benchmark", "");
+		if (!this.dir.delete() || !this.dir.mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+		this.target = new File(this.dir, "app");
+		this.entries = Integer.getInteger("benchmark.entries", 20000);
+		this.rounds = Integer.getInteger("benchmark.rounds", 3);
+		this.threads = Integer.getInteger("benchmark.threads", Runtime.getRuntime().availableProcessors());
+		this.war = this.war(this.entries, Integer.getInteger("benchmark.megabytes", 150) * 1024L * 1024L);
+		System.out.println("WAR of " + this.entries + " entries, " + this.war.length() / 1024 / 1024 + "MB; " + this.threads + " threads, best of " + this.rounds);
+	}
+
+	protected void tearDown() throws Exception {
+		WarExtractorBenchmark.deleteRecursive(this.dir);
+	}
+
+	public void testExtractAgainstUnzip() throws Exception {
+		long unzip = Long.MAX_VALUE;
+		long full = Long.MAX_VALUE;
+		long delta = Long.MAX_VALUE;
+		for (int round = 0; round < this.rounds; round++) {
+			if (WarExtractorBenchmark.hasUnzip()) {
+				WarExtractorBenchmark.deleteRecursive(this.target);
+				long start = System.nanoTime();
+				Process process = new ProcessBuilder("unzip", "-q", "-o", this.war.getPath(), "-d", this.target.getPath()).redirectErrorStream(true).start();
+				process.getInputStream().close();
+				assertEquals(0, process.waitFor());
+				unzip = Math.min(unzip, System.nanoTime() - start);
+			}
+
+			WarExtractorBenchmark.deleteRecursive(this.target);
+			long start = System.nanoTime();
+			assertEquals(this.entries, new WarExtractor(this.threads).extract(this.war, this.target, false));
+			full = Math.min(full, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			WarExtractor extractor = new WarExtractor(this.threads);
+			assertEquals(0, extractor.extract(this.war, this.target, true));
+			delta = Math.min(delta, System.nanoTime() - start);
+			assertEquals(this.entries, extractor.getUnchanged());
+		}
+		System.out.println("unzip:                " + (unzip == Long.MAX_VALUE ? "not on the PATH" : unzip / 1000000 + "ms"));
+		System.out.println("WarExtractor, full:   " + full / 1000000 + "ms");
+		System.out.println("WarExtractor, delta:  " + delta / 1000000 + "ms");
+	}
+
+	/**
+	 * Entries spread over nested directories like a WAR's classes, with
+	 * random (incompressible) content so the WAR is about the size asked.
+	 */
+	private File war(int count, long bytes) throws IOException {
+		File file = new File(this.dir, "app.war");
+		Random random = new Random(34);
+		byte[] content = new byte[(int) Math.max(1, bytes / count)];
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			for (int i = 0; i < count; i++) {
+				zip.putNextEntry(new ZipEntry("WEB-INF/classes/p" + (i % 50) + "/q" + (i % 7) + "/C" + i + ".class"));
+				random.nextBytes(content);
+				zip.write(content);
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+		return file;
+	}
+
+	private static boolean hasUnzip() {
+		try {
+			Process process = new ProcessBuilder("unzip", "-v").redirectErrorStream(true).start();
+			process.getInputStream().close();
+			return process.waitFor() == 0;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				WarExtractorBenchmark.deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,196 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Extracts WARs built on the fly into a temporary webapps directory,
+ *        in full, as a delta against the previous extraction, and while
+ *        copying the WAR.
+ */
+public class WarExtractorTest extends TestCase {
+
+	private File dir;
+	private File target;
+
+	protected void setUp() throws Exception {
+		this.dir = File.createTempFile("webapps", "");
+		if (!this.dir.delete() || !this.dir.mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+		this.target = new File(this.dir, "app");
+	}
+
+	protected void tearDown() throws Exception {
+		WarExtractorTest.deleteRecursive(this.dir);
+	}
+
+	public void testExtractsEveryFileAndWritesManifest() throws Exception {
+		File war = this.war("v1.war", "index.jsp", "v1 index", "WEB-INF/web.xml", "<web-app/>", "WEB-INF/lib/a.jar", "jar a");
+		WarExtractor extractor = new WarExtractor(4);
+		assertEquals(3, extractor.extract(war, this.target, false));
+		assertEquals("v1 index", WarExtractorTest.read(new File(this.target, "index.jsp")));
+		assertEquals("jar a", WarExtractorTest.read(new File(this.target, "WEB-INF/lib/a.jar")));
+		assertEquals(3, WarExtractor.readManifest(new File(this.target, WarExtractor.MANIFEST)).size());
+	}
+
+	public void testRefusesEntriesOutsideTarget() throws Exception {
+		File war = this.war("evil.war", "index.jsp", "fine", "../evil.jsp", "not fine");
+		try {
+			new WarExtractor(2).extract(war, this.target, false);
+			fail("Expected the entry outside the target to be refused.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Refusing to extract ../evil.jsp"));
+		}
+		assertFalse(new File(this.dir, "evil.jsp").exists());
+		assertFalse(new File(this.target, "index.jsp").exists());
+	}
+
+	public void testRefusedWarIsNotCopied() throws Exception {
+		File war = this.war("evil.war", "index.jsp", "fine", "../evil.jsp", "not fine");
+		File copy = new File(this.dir, "app.war");
+		WarExtractor extractor = new WarExtractor(2);
+		extractor.setCopy(copy);
+		try {
+			extractor.extract(war, this.target, false);
+			fail("Expected the entry outside the target to be refused.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Refusing to extract ../evil.jsp"));
+		}
+		assertFalse(copy.exists());
+		assertFalse(new File(this.target, "index.jsp").exists());
+	}
+
+	public void testDeltaWritesOnlyChangedFilesAndRemovesDropped() throws Exception {
+		new WarExtractor(2).extract(this.war("v1.war", "index.jsp", "v1 index", "WEB-INF/web.xml", "<web-app/>", "old/gone.jsp", "gone"), this.target, false);
+		File webXml = new File(this.target, "WEB-INF/web.xml");
+		long modified = webXml.lastModified() - 60000;
+		webXml.setLastModified(modified);
+
+		WarExtractor extractor = new WarExtractor(2);
+		File v2 = this.war("v2.war", "index.jsp", "v2 index!", "WEB-INF/web.xml", "<web-app/>", "new.jsp", "new");
+		assertEquals(2, extractor.extract(v2, this.target, true));
+		assertEquals(1, extractor.getUnchanged());
+		assertEquals(1, extractor.getRemoved());
+		assertEquals("v2 index!", WarExtractorTest.read(new File(this.target, "index.jsp")));
+		assertEquals("new", WarExtractorTest.read(new File(this.target, "new.jsp")));
+		assertEquals(modified, webXml.lastModified());
+		// The emptied directory goes with its last file.
+		assertFalse(new File(this.target, "old").exists());
+	}
+
+	public void testDeltaRewritesFileTruncatedSinceExtraction() throws Exception {
+		File war = this.war("v1.war", "index.jsp", "v1 index");
+		new WarExtractor(1).extract(war, this.target, false);
+		OutputStream out = new FileOutputStream(new File(this.target, "index.jsp"));
+		out.close();
+
+		WarExtractor extractor = new WarExtractor(1);
+		assertEquals(1, extractor.extract(war, this.target, true));
+		assertEquals("v1 index", WarExtractorTest.read(new File(this.target, "index.jsp")));
+	}
+
+	public void testCopiesWarBesideTheExtraction() throws Exception {
+		File war = this.war("v1.war", "index.jsp", "v1 index", "WEB-INF/web.xml", "<web-app/>");
+		File copy = new File(this.dir, "app.war");
+		WarExtractor extractor = new WarExtractor(2);
+		extractor.setCopy(copy);
+		assertEquals(2, extractor.extract(war, this.target, false));
+		assertTrue(Arrays.equals(WarExtractorTest.bytes(war), WarExtractorTest.bytes(copy)));
+		assertFalse(new File(this.dir, "app.war.part").exists());
+		assertEquals("v1 index", WarExtractorTest.read(new File(this.target, "index.jsp")));
+
+		File v2 = this.war("v2.war", "index.jsp", "v2 index", "WEB-INF/web.xml", "<web-app/>");
+		extractor.extract(v2, this.target, true);
+		assertTrue(Arrays.equals(WarExtractorTest.bytes(v2), WarExtractorTest.bytes(copy)));
+		assertEquals("v2 index", WarExtractorTest.read(new File(this.target, "index.jsp")));
+	}
+
+	/**
+	 * Many entries across many workers, as a large WAR is extracted.
+	 */
+	public void testExtractsManyEntriesConcurrently() throws Exception {
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 500; i++) {
+			StringBuilder content = new StringBuilder();
+			for (int j = 0; j < i * 10; j++) {
+				content.append((char) ('a' + (i + j) % 26));
+			}
+			entries.put("WEB-INF/classes/p" + (i % 7) + "/C" + i + ".class", content.toString());
+		}
+		String[] namesAndContents = new String[entries.size() * 2];
+		int n = 0;
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			namesAndContents[n++] = entry.getKey();
+			namesAndContents[n++] = entry.getValue();
+		}
+		File war = this.war("big.war", namesAndContents);
+
+		assertEquals(500, new WarExtractor(8).extract(war, this.target, false));
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue(), WarExtractorTest.read(new File(this.target, entry.getKey())));
+		}
+		WarExtractor delta = new WarExtractor(8);
+		assertEquals(0, delta.extract(war, this.target, true));
+		assertEquals(500, delta.getUnchanged());
+	}
+
+	private File war(String name, String... namesAndContents) throws IOException {
+		return WarExtractorTest.writeWar(new File(this.dir, name), namesAndContents);
+	}
+
+	static File writeWar(File war, String... namesAndContents) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(war));
+		try {
+			for (int i = 0; i < namesAndContents.length; i += 2) {
+				zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+				zip.write(namesAndContents[i + 1].getBytes("UTF-8"));
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+		return war;
+	}
+
+	static byte[] bytes(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	static String read(File file) throws IOException {
+		return new String(WarExtractorTest.bytes(file), "UTF-8");
+	}
+
+	static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				WarExtractorTest.deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+}
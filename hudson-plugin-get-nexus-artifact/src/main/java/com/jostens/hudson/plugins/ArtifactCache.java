@@ -0,0 +1,458 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author blaisj1
+ * @brief Node-local, content-addressed store of downloaded artifacts. Files
+ *        are kept under their SHA-1 and indexed by the repository URL they
+ *        were fetched from. The least recently used files are evicted once
+ *        the cache grows past its size cap.
+ *
+ *        Several executors on one node may use the cache at once: every
+ *        mutation holds an in-JVM lock plus a file lock, and files only
+ *        appear in the store by an atomic rename of a complete download.
+ */
+public class ArtifactCache {
+
+	private static final String OBJECTS = "objects";
+	private static final String INDEX = "index";
+	private static final String TMP = "tmp";
+	private static final String LOCKS = "locks";
+	private static final String STATS = "stats.properties";
+	private static final String CACHE_LOCK = "cache";
+	// Index key prefix for the newest version of an artifact.
+	private static final String LATEST = "latest:";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// How long a lock file marked dead is waited on before it is taken over.
+	private static final int DEAD_LOCK_RETRIES = 50;
+	private static final long DEAD_LOCK_DELAY = 20;
+
+	// Executors on one node share this JVM, and FileLock only excludes other processes.
+	// Entries are dropped by the last holder, so one per url does not pile up.
+	private static final Map<String, ThreadLock> LOCKS_BY_FILE = new HashMap<String, ThreadLock>();
+
+	private final File root;
+	private final long maxBytes;
+
+	public ArtifactCache(File root, long maxBytes) throws IOException {
+		this.root = root;
+		this.maxBytes = maxBytes;
+		for (String dir : new String[] { OBJECTS, INDEX, TMP, LOCKS }) {
+			File file = new File(root, dir);
+			if (!file.isDirectory() && !file.mkdirs()) {
+				throw new IOException("Unable to create cache directory " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return the SHA-1 last stored for the url, or null if it was never cached.
+	 */
+	public String lookup(String url) throws IOException {
+		File entry = this.indexFile(url);
+		if (!entry.isFile()) {
+			return null;
+		}
+		return ArtifactCache.readString(entry).trim();
+	}
+
+	/**
+	 * @return the cached file with the given SHA-1, or null if it is not in
+	 *         the cache. Only read it; the cache may evict it at any time.
+	 */
+	public File getFile(String sha1) {
+		File object = this.objectFile(sha1);
+		return object.isFile() ? object : null;
+	}
+
+	/**
+	 * @return the SHA-1 of the newest version fetched of an artifact, keyed
+	 *         by groupId:artifactId:extension, or null if none was cached.
+	 */
+	public String lookupLatest(String artifactKey) throws IOException {
+		return this.lookup(LATEST + artifactKey);
+	}
+
+	/**
+	 * Remember the file with the given SHA-1 as the newest version fetched of
+	 * an artifact, so the next version can be fetched as a delta against it.
+	 */
+	public void setLatest(String artifactKey, String sha1) throws IOException, InterruptedException {
+		Lock lock = this.lock(CACHE_LOCK);
+		try {
+			this.writeIndex(LATEST + artifactKey, sha1);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Place the cached file with the given SHA-1 at the destination, as a
+	 * hard link when requested and supported, otherwise as a copy. A link is
+	 * the cached file itself: whoever asks for one must not change it in
+	 * place.
+	 *
+	 * @return false if the file is not (or no longer) in the cache.
+	 */
+	public boolean materialize(String sha1, File destination, boolean link) throws IOException {
+		File object = this.objectFile(sha1);
+		if (!object.isFile()) {
+			return false;
+		}
+		// The modification time doubles as the last access time for LRU eviction.
+		object.setLastModified(System.currentTimeMillis());
+
+		if (destination.exists() && !destination.delete()) {
+			throw new IOException("Unable to replace " + destination);
+		}
+		if (link && ArtifactCache.createLink(destination, object)) {
+			return true;
+		}
+		try {
+			ArtifactCache.copy(object, destination);
+		} catch (FileNotFoundException e) {
+			// Evicted by another executor between the check and the copy.
+			destination.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return a new temporary file inside the cache, on the same file system
+	 *         as the store so it can be renamed into place.
+	 */
+	public File createTempFile() throws IOException {
+		return File.createTempFile("download", ".part", new File(this.root, TMP));
+	}
+
+	/**
+	 * Move a completed download into the store, index it under its url, and
+	 * evict least recently used files beyond the size cap. The file just
+	 * stored is never evicted here, even when it alone is over the cap, so
+	 * the caller can still materialize it.
+	 */
+	public void store(String url, String sha1, File temp) throws IOException, InterruptedException {
+		Lock lock = this.lock(CACHE_LOCK);
+		try {
+			File object = this.objectFile(sha1);
+			if (object.isFile()) {
+				temp.delete();
+			} else {
+				object.getParentFile().mkdirs();
+				if (!temp.renameTo(object)) {
+					temp.delete();
+					throw new IOException("Unable to move " + temp + " into the artifact cache.");
+				}
+			}
+			object.setLastModified(System.currentTimeMillis());
+
+			this.writeIndex(url, sha1);
+			this.evict(object);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Serialise work on one url across executors, so two builds needing the
+	 * same artifact download it once.
+	 */
+	public Lock lockEntry(String url) throws IOException, InterruptedException {
+		return this.lock(ArtifactCache.sha1Hex(url));
+	}
+
+	/**
+	 * Count a hit or a miss.
+	 *
+	 * @return the node's running totals, formatted for the build log.
+	 */
+	public String record(boolean hit) throws IOException, InterruptedException {
+		Lock lock = this.lock(CACHE_LOCK);
+		try {
+			File file = new File(this.root, STATS);
+			Properties stats = new Properties();
+			if (file.isFile()) {
+				InputStream in = new FileInputStream(file);
+				try {
+					stats.load(in);
+				} finally {
+					in.close();
+				}
+			}
+			String key = hit ? "hits" : "misses";
+			stats.setProperty(key, String.valueOf(Long.parseLong(stats.getProperty(key, "0")) + 1));
+			OutputStream out = new FileOutputStream(file);
+			try {
+				stats.store(out, "Artifact cache counters");
+			} finally {
+				out.close();
+			}
+			return "cache hits: " + stats.getProperty("hits", "0") + ", misses: " + stats.getProperty("misses", "0");
+		} finally {
+			lock.release();
+		}
+	}
+
+	// Caller holds the cache lock.
+	private void evict(File keep) {
+		File[] objects = ArtifactCache.listObjects(new File(this.root, OBJECTS));
+		long total = 0;
+		for (File object : objects) {
+			total += object.length();
+		}
+		if (total <= this.maxBytes) {
+			return;
+		}
+
+		Arrays.sort(objects, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File object : objects) {
+			if (total <= this.maxBytes) {
+				break;
+			}
+			if (object.equals(keep)) {
+				continue;
+			}
+			long length = object.length();
+			// Files open by another executor cannot be deleted on Windows; skip them.
+			if (object.delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	private static File[] listObjects(File dir) {
+		List<File> objects = new ArrayList<File>();
+		File[] buckets = dir.listFiles();
+		if (buckets != null) {
+			for (File bucket : buckets) {
+				File[] files = bucket.listFiles();
+				if (files != null) {
+					objects.addAll(Arrays.asList(files));
+				}
+			}
+		}
+		return objects.toArray(new File[objects.size()]);
+	}
+
+	private File objectFile(String sha1) {
+		return new File(new File(new File(this.root, OBJECTS), sha1.substring(0, 2)), sha1);
+	}
+
+	private File indexFile(String url) throws IOException {
+		return new File(new File(this.root, INDEX), ArtifactCache.sha1Hex(url));
+	}
+
+	// Caller holds the cache lock.
+	private void writeIndex(String key, String sha1) throws IOException {
+		File entry = this.indexFile(key);
+		File entryTemp = new File(entry.getPath() + ".tmp");
+		ArtifactCache.writeString(entryTemp, sha1);
+		if (entry.exists()) {
+			entry.delete();
+		}
+		entryTemp.renameTo(entry);
+	}
+
+	/**
+	 * The lock file is deleted by its last holder. Another process may have
+	 * opened it just before, so a holder marks it dead by writing a byte
+	 * first; whoever then locks a file that is not empty opens the path again.
+	 * One left dead by a holder that died mid-release is taken over after a
+	 * while.
+	 */
+	private Lock lock(String name) throws IOException, InterruptedException {
+		File file = new File(new File(this.root, LOCKS), name + ".lock");
+		String key = file.getAbsolutePath();
+		ThreadLock threadLock;
+		synchronized (LOCKS_BY_FILE) {
+			threadLock = LOCKS_BY_FILE.get(key);
+			if (threadLock == null) {
+				threadLock = new ThreadLock();
+				LOCKS_BY_FILE.put(key, threadLock);
+			}
+			threadLock.users++;
+		}
+		try {
+			threadLock.lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			ArtifactCache.unuse(key, threadLock);
+			throw e;
+		}
+		boolean locked = false;
+		try {
+			for (int attempt = 0;; attempt++) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					FileLock fileLock = raf.getChannel().lock();
+					if (raf.length() > 0 && attempt >= DEAD_LOCK_RETRIES) {
+						raf.setLength(0);
+					}
+					if (raf.length() == 0) {
+						locked = true;
+						return new Lock(key, file, threadLock, raf, fileLock);
+					}
+					fileLock.release();
+				} finally {
+					if (!locked) {
+						raf.close();
+					}
+				}
+				Thread.sleep(DEAD_LOCK_DELAY);
+			}
+		} finally {
+			if (!locked) {
+				threadLock.lock.unlock();
+				ArtifactCache.unuse(key, threadLock);
+			}
+		}
+	}
+
+	private static void unuse(String key, ThreadLock threadLock) {
+		synchronized (LOCKS_BY_FILE) {
+			if (--threadLock.users == 0) {
+				LOCKS_BY_FILE.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Hard link through java.nio.file when the JVM provides it (Java 7+).
+	 */
+	private static boolean createLink(File link, File existing) {
+		try {
+			Method toPath = File.class.getMethod("toPath");
+			Class<?> path = Class.forName("java.nio.file.Path");
+			Class<?> files = Class.forName("java.nio.file.Files");
+			Method createLink = files.getMethod("createLink", path, path);
+			createLink.invoke(null, toPath.invoke(link), toPath.invoke(existing));
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static void copy(File source, File destination) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(destination);
+			try {
+				FileChannel from = in.getChannel();
+				FileChannel to = out.getChannel();
+				long size = from.size();
+				long position = 0;
+				while (position < size) {
+					position += from.transferTo(position, size - position, to);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String readString(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			StringBuilder text = new StringBuilder();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				text.append(new String(buffer, 0, read, "US-ASCII"));
+			}
+			return text.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeString(File file, String text) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String sha1Hex(String text) throws IOException {
+		return NexusArtifactFetcher.toHex(NexusArtifactFetcher.sha1().digest(text.getBytes("UTF-8")));
+	}
+
+	/**
+	 * A held cache lock; release it in a finally block.
+	 */
+	private static final class ThreadLock {
+		final ReentrantLock lock = new ReentrantLock();
+		// Threads holding or waiting for the lock, guarded by LOCKS_BY_FILE.
+		int users;
+	}
+
+	public static final class Lock {
+		private final String key;
+		private final File path;
+		private final ThreadLock threadLock;
+		private final RandomAccessFile file;
+		private final FileLock fileLock;
+
+		private Lock(String key, File path, ThreadLock threadLock, RandomAccessFile file, FileLock fileLock) {
+			this.key = key;
+			this.path = path;
+			this.threadLock = threadLock;
+			this.file = file;
+			this.fileLock = fileLock;
+		}
+
+		public void release() throws IOException {
+			// Held throughout, so no thread here opens the file while it is deleted.
+			synchronized (LOCKS_BY_FILE) {
+				try {
+					if (--this.threadLock.users == 0) {
+						LOCKS_BY_FILE.remove(this.key);
+						this.delete();
+					}
+					this.fileLock.release();
+					this.file.close();
+				} finally {
+					this.threadLock.lock.unlock();
+				}
+			}
+		}
+
+		/**
+		 * Mark the file dead and delete it while still locked. Windows will
+		 * not delete an open file, so there it is unmarked and kept instead.
+		 */
+		private void delete() throws IOException {
+			this.file.write(1);
+			if (!this.path.delete()) {
+				this.file.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package com.jostens.hudson.plugins;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueDecisionHandler;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Builder;
+import hudson.util.LogTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author blaisj1
+ * @brief Starts fetching the artifact chosen in a Nexus version dropdown into
+ *        the node cache while the build is still waiting in the queue, so the
+ *        Get Nexus Artifact step finds it already there.
+ *
+ *        Hudson offers no queue listener, so this hooks in as the build is
+ *        scheduled and watches the queue item from then on. A prefetch whose
+ *        item leaves the queue without its build starting (cancelled) is
+ *        interrupted.
+ */
+@Extension
+public class ArtifactPrefetcher extends QueueDecisionHandler {
+
+	private static final Logger LOGGER = Logger.getLogger(ArtifactPrefetcher.class.getName());
+	// The dropdown lives in its own plugin, so its value is recognised by name.
+	private static final String DROPDOWN_VALUE = "com.jostens.hudson.plugins.NexusVersionDropdownParameterValue";
+	private static final int MAX_PREFETCHES = 4;
+	private static final long WATCH_INTERVAL = 2000;
+	// Builds are scheduled just after this handler runs, and leave the queue just before their
+	// build is created; give them this long to appear in either place.
+	private static final long QUEUE_GRACE = 10000;
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_PREFETCHES, new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Nexus artifact prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final Map<String, Prefetch> PREFETCHES = new HashMap<String, Prefetch>();
+	private static Timer watcher;
+	// One per JVM, so the prefetches running on a node share its cap between them.
+	private static BandwidthThrottle throttle;
+
+	@Override
+	public boolean shouldSchedule(Queue.Task task, List<Action> actions) {
+		try {
+			GetNexusArtifactBuilder.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(GetNexusArtifactBuilder.DescriptorImpl.class);
+			if (descriptor != null && descriptor.isPrefetch() && task instanceof Project) {
+				this.schedule((Project<?, ?>) task, actions, descriptor);
+			}
+		} catch (Exception e) {
+			// Prefetching is only an optimisation; never stop the build from being scheduled.
+			LOGGER.log(Level.WARNING, "Unable to prefetch Nexus artifacts for " + task, e);
+		}
+		return true;
+	}
+
+	private void schedule(Project<?, ?> project, List<Action> actions, GetNexusArtifactBuilder.DescriptorImpl descriptor) {
+		ParametersAction parameters = ArtifactPrefetcher.getDropdownParameters(actions);
+		if (parameters == null) {
+			return;
+		}
+		EnvVars environment = new EnvVars();
+		for (ParameterValue value : parameters.getParameters()) {
+			value.buildEnvVars(null, environment);
+		}
+		Node node = ArtifactPrefetcher.getLikelyNode(project);
+		FilePath root = node == null ? null : node.getRootPath();
+		if (root == null) {
+			return;
+		}
+
+		long bytesPerSecond = GetNexusArtifactBuilder.parseLong(descriptor.getPrefetchBandwidth()) * 1024;
+		for (Builder builder : project.getBuilders()) {
+			if (!(builder instanceof GetNexusArtifactBuilder)) {
+				continue;
+			}
+			GetNexusArtifactBuilder step = (GetNexusArtifactBuilder) builder;
+			long cacheBytes = GetNexusArtifactBuilder.parseLong(environment.expand(step.getCacheSize())) * 1024 * 1024;
+			if (GetNexusArtifactBuilder.isBlank(step.getRepositoryUrl()) || cacheBytes <= 0) {
+				continue;
+			}
+			String[] values = { step.getRepositoryUrl(), step.getRepositoryId(), step.getGroupId(), step.getArtifactId(), step.getVersion(), step.getType() };
+			for (int i = 0; i < values.length; i++) {
+				values[i] = values[i] == null ? null : environment.expand(values[i]);
+			}
+			// Values that depend on the running build (e.g. ${BUILD_NUMBER}) cannot be known yet.
+			if (ArtifactPrefetcher.isUnresolved(values)) {
+				continue;
+			}
+
+			String key = node.getNodeName() + "|" + values[0] + "|" + values[2] + ":" + values[3] + ":" + values[4] + ":" + values[5];
+			PrefetchArtifact callable = new PrefetchArtifact(values[0], values[1], values[2], values[3], values[4], values[5], root.child(GetNexusArtifactBuilder.CACHE_DIR).getRemote(), cacheBytes, step.isRevalidate(), bytesPerSecond, new LogTaskListener(LOGGER, Level.INFO));
+			ArtifactPrefetcher.submit(key, new Prefetch(project, parameters, System.currentTimeMillis()), root, callable);
+		}
+	}
+
+	private static void submit(final String key, final Prefetch prefetch, final FilePath root, final PrefetchArtifact callable) {
+		synchronized (PREFETCHES) {
+			if (PREFETCHES.containsKey(key)) {
+				return;
+			}
+			PREFETCHES.put(key, prefetch);
+			prefetch.future = EXECUTOR.submit(new Runnable() {
+				public void run() {
+					try {
+						LOGGER.info("Prefetching " + key);
+						root.act(callable);
+						LOGGER.info("Prefetched " + key);
+					} catch (InterruptedException e) {
+						LOGGER.info("Abandoned prefetch of " + key);
+					} catch (Exception e) {
+						LOGGER.log(Level.WARNING, "Prefetch of " + key + " failed", e);
+					} finally {
+						synchronized (PREFETCHES) {
+							if (PREFETCHES.get(key) == prefetch) {
+								PREFETCHES.remove(key);
+							}
+						}
+					}
+				}
+			});
+			if (watcher == null) {
+				watcher = new Timer("Nexus artifact prefetch watcher", true);
+				watcher.schedule(new Watch(), WATCH_INTERVAL, WATCH_INTERVAL);
+			}
+		}
+	}
+
+	/**
+	 * @return the build's parameters, or null if none of them comes from a
+	 *         Nexus version dropdown. The same action follows the build
+	 *         through the queue and onto the build itself.
+	 */
+	private static ParametersAction getDropdownParameters(List<Action> actions) {
+		for (Action action : actions) {
+			if (!(action instanceof ParametersAction)) {
+				continue;
+			}
+			for (ParameterValue value : ((ParametersAction) action).getParameters()) {
+				if (DROPDOWN_VALUE.equals(value.getClass().getName())) {
+					return (ParametersAction) action;
+				}
+			}
+			return null;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the throttle for the given total rate, shared by every prefetch
+	 *         in this JVM that asks for the same rate.
+	 */
+	static synchronized BandwidthThrottle getThrottle(long bytesPerSecond) {
+		if (throttle == null || throttle.getBytesPerSecond() != bytesPerSecond) {
+			throttle = new BandwidthThrottle(bytesPerSecond);
+		}
+		return throttle;
+	}
+
+	/**
+	 * The build runs on the only node its label allows, or most likely where
+	 * it last ran since Hudson prefers that node for the next build.
+	 */
+	private static Node getLikelyNode(AbstractProject<?, ?> project) {
+		Label label = project.getAssignedLabel();
+		if (label != null && label.getNodes().size() == 1) {
+			return label.getNodes().iterator().next();
+		}
+		return project.getLastBuiltOn();
+	}
+
+	private static boolean isUnresolved(String[] values) {
+		for (int i = 0; i < values.length; i++) {
+			// The repository id is the only optional value.
+			if (i != 1 && GetNexusArtifactBuilder.isBlank(values[i])) {
+				return true;
+			}
+			if (values[i] != null && values[i].indexOf('$') >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Interrupts prefetches whose build left the queue without starting.
+	 */
+	private static final class Watch extends TimerTask {
+		@Override
+		public void run() {
+			Queue.Item[] items = Hudson.getInstance().getQueue().getItems();
+			long now = System.currentTimeMillis();
+			synchronized (PREFETCHES) {
+				for (Iterator<Prefetch> i = PREFETCHES.values().iterator(); i.hasNext();) {
+					Prefetch prefetch = i.next();
+					if (prefetch.isAbandoned(prefetch.find(items), prefetch.isStarted(), now)) {
+						prefetch.future.cancel(true);
+						i.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Follows one scheduled build by its queue item id, so that other builds
+	 * of the same project, queued or running, say nothing about this one.
+	 */
+	static final class Prefetch {
+		private final AbstractProject<?, ?> project;
+		private final ParametersAction parameters;
+		private final long created;
+		private int item = -1;
+		private long seen;
+		private boolean started;
+		private Future<?> future;
+
+		Prefetch(AbstractProject<?, ?> project, ParametersAction parameters, long created) {
+			this.project = project;
+			this.parameters = parameters;
+			this.created = created;
+			this.seen = created;
+		}
+
+		/**
+		 * @return the id of this build's queue item, or -1 if it is not in
+		 *         the queue. Until the id is known the item is recognised by
+		 *         the parameters it was scheduled with.
+		 */
+		int find(Queue.Item[] items) {
+			for (Queue.Item queued : items) {
+				if (this.item >= 0 ? queued.id == this.item : queued.task == this.project && queued.getActions().contains(this.parameters)) {
+					return queued.id;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return whether a build carrying this build's parameters has started
+		 *         since it was scheduled.
+		 */
+		boolean isStarted() {
+			if (this.started) {
+				return true;
+			}
+			for (AbstractBuild<?, ?> build = this.project.getLastBuild(); build != null && build.getTimeInMillis() >= this.created; build = build.getPreviousBuild()) {
+				if (build.getActions().contains(this.parameters)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param item the id of this build's queue item, or -1 if it is not in
+		 *        the queue.
+		 * @param started whether this build has started.
+		 * @return true once the build has been out of the queue, without
+		 *         starting, for longer than it takes to appear there or to go
+		 *         from the queue to an executor.
+		 */
+		boolean isAbandoned(int item, boolean started, long now) {
+			if (started || this.started) {
+				// The build's own Get Nexus Artifact step will use whatever is fetched.
+				this.started = true;
+				return false;
+			}
+			if (item >= 0) {
+				this.item = item;
+				this.seen = now;
+				return false;
+			}
+			return now - this.seen > QUEUE_GRACE;
+		}
+	}
+
+	/**
+	 * Runs on the node: fills its artifact cache without touching any
+	 * workspace.
+	 */
+	private static final class PrefetchArtifact implements FilePath.FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String repositoryUrl;
+		private final String repositoryId;
+		private final String groupId;
+		private final String artifactId;
+		private final String version;
+		private final String type;
+		private final String cacheRoot;
+		private final long cacheBytes;
+		private final boolean revalidate;
+		private final long bytesPerSecond;
+		private final TaskListener listener;
+
+		PrefetchArtifact(String repositoryUrl, String repositoryId, String groupId, String artifactId, String version, String type, String cacheRoot, long cacheBytes, boolean revalidate, long bytesPerSecond, TaskListener listener) {
+			this.repositoryUrl = repositoryUrl;
+			this.repositoryId = repositoryId;
+			this.groupId = groupId;
+			this.artifactId = artifactId;
+			this.version = version;
+			this.type = type;
+			this.cacheRoot = cacheRoot;
+			this.cacheBytes = cacheBytes;
+			this.revalidate = revalidate;
+			this.bytesPerSecond = bytesPerSecond;
+			this.listener = listener;
+		}
+
+		public Void invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+			MavenServerCredentials credentials = null;
+			if (!GetNexusArtifactBuilder.isBlank(this.repositoryId)) {
+				try {
+					credentials = MavenServerCredentials.lookup(this.repositoryId);
+				} catch (Exception e) {
+					throw new IOException("Unable to read settings.xml: " + e.getMessage());
+				}
+			}
+
+			ArtifactCache cache = new ArtifactCache(new File(this.cacheRoot), this.cacheBytes);
+			NexusArtifactFetcher fetcher = new NexusArtifactFetcher(this.repositoryUrl, credentials == null ? null : credentials.getUsername(), credentials == null ? null : credentials.getPassword(), this.listener.getLogger(), cache, this.revalidate);
+			fetcher.setThrottle(ArtifactPrefetcher.getThrottle(this.bytesPerSecond));
+			fetcher.prefetch(this.groupId, this.artifactId, this.version, this.type);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.jostens.hudson.plugins;
+
+import java.io.InterruptedIOException;
+
+/**
+ * @author blaisj1
+ * @brief Holds transfers sharing this throttle to an average number of bytes
+ *        per second. Each transfer loop also gives up here once its thread
+ *        is interrupted, so an abandoned download stops at the next read.
+ */
+public class BandwidthThrottle {
+
+	// The most unused allowance, in milliseconds, a throttle carries forward.
+	private static final long MAX_CREDIT = 1000;
+
+	private final long bytesPerSecond;
+	private long start = -1;
+	private long bytes;
+
+	/**
+	 * @param bytesPerSecond the cap, or 0 for no cap.
+	 */
+	public BandwidthThrottle(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	/**
+	 * Account for bytes just read, sleeping while the transfer is ahead of
+	 * its allowance.
+	 */
+	public void acquire(int read) throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Transfer abandoned.");
+		}
+		if (this.bytesPerSecond <= 0) {
+			return;
+		}
+
+		long delay;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (this.start < 0) {
+				this.start = now;
+			} else if (this.start + this.bytes * 1000 / this.bytesPerSecond < now - MAX_CREDIT) {
+				// Time spent idle, or in slower transfers, is not saved up for a later burst.
+				this.start = now - MAX_CREDIT;
+				this.bytes = 0;
+			}
+			this.bytes += read;
+			delay = this.start + this.bytes * 1000 / this.bytesPerSecond - now;
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Transfer abandoned.");
+			}
+		}
+	}
+}
@@ -2,11 +2,13 @@ package com.jostens.hudson.plugins;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BatchFile;
 import hudson.tasks.Builder;
 import java.io.File;
@@ -26,21 +28,33 @@ public class GetNexusArtifactBuilder extends Builder {
 	private static final String renameArtifact = "rename .\\target\\{artifactId}*.{ext} {name}";
 	private static final String cleanWorkspace = "mvn clean";
 	private static final String getArtifactToDeploy = "mvn package -DgrpId={groupId} -DartId={artifactId} -Dvers={version} -Dext={ext}";
+	// Node-local artifact cache, relative to the node's root directory.
+	static final String CACHE_DIR = "nexus-artifact-cache";
 
 	private final String artifactId;
 	private final String groupId;
 	private final String version;
 	private final String type;
 	private final String name;
+	private final String repositoryUrl;
+	private final String repositoryId;
+	private final String cacheSize;
+	private final boolean revalidate;
+	private final boolean link;
 	private EnvVars environmentVariables;
 
 	@DataBoundConstructor
-	public GetNexusArtifactBuilder(String artifactId, String groupId, String version, String type, String name) {
+	public GetNexusArtifactBuilder(String artifactId, String groupId, String version, String type, String name, String repositoryUrl, String repositoryId, String cacheSize, String revalidate, String link) {
 		this.artifactId = artifactId;
 		this.groupId = groupId;
 		this.version = version;
 		this.type = type;
 		this.name = name;
+		this.repositoryUrl = repositoryUrl;
+		this.repositoryId = repositoryId;
+		this.cacheSize = cacheSize;
+		this.revalidate = Boolean.parseBoolean(revalidate);
+		this.link = Boolean.parseBoolean(link);
 	}
 
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
@@ -57,6 +71,25 @@ public class GetNexusArtifactBuilder extends Builder {
 			e.printStackTrace(listener.fatalError("Unable to gather Hudson environment variables."));
 			return false;
 		}
+
+		/**
+		 * With a repository URL configured, download the artifact in-process
+		 * on the workspace's node instead of bootstrapping Maven twice.
+		 */
+		if (!GetNexusArtifactBuilder.isBlank(this.repositoryUrl)) {
+			try {
+				// The cache lives under the node's root so every job on the node shares it.
+				long cacheBytes = GetNexusArtifactBuilder.parseLong(this.environmentVariables.expand(this.cacheSize)) * 1024 * 1024;
+				String cacheRoot = cacheBytes > 0 ? build.getBuiltOn().getRootPath().child(CACHE_DIR).getRemote() : null;
+				build.getWorkspace().act(new FetchArtifact(this.environmentVariables.expand(this.repositoryUrl), this.environmentVariables.expand(this.repositoryId), this.environmentVariables.expand(this.groupId), this.environmentVariables.expand(this.artifactId), this.environmentVariables.expand(this.version), this.environmentVariables.expand(this.type), this.environmentVariables.expand(this.name), cacheRoot, cacheBytes, this.revalidate, this.link, listener));
+			} catch (IOException e) {
+				Util.displayIOException(e, listener);
+				e.printStackTrace(listener.fatalError("Unable to fetch artifact {" + this.artifactId + "." + this.type + "}."));
+				return false;
+			}
+			listener.getLogger().println("Artifact {" + this.artifactId + "." + this.type + "} has been fetched.");
+			return true;
+		}
 		
 		/**
 		 * We need to get the POM file, and place it in the workspace so we can
@@ -164,6 +197,34 @@ public class GetNexusArtifactBuilder extends Builder {
 		return name;
 	}
 
+	public String getRepositoryUrl() {
+		return repositoryUrl;
+	}
+
+	public String getRepositoryId() {
+		return repositoryId;
+	}
+
+	public String getCacheSize() {
+		return cacheSize;
+	}
+
+	public boolean isRevalidate() {
+		return revalidate;
+	}
+
+	public boolean isLink() {
+		return link;
+	}
+
+	static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
 	public static boolean isBlank(String str) {
 		int strLen;
 		if ((str == null) || ((strLen = str.length()) == 0))
@@ -177,10 +238,88 @@ public class GetNexusArtifactBuilder extends Builder {
 		return true;
 	}
 
+	/**
+	 * Runs on the node holding the workspace: cleans ./target the way
+	 * "mvn clean" did, then fetches the artifact and its POM into it.
+	 */
+	private static final class FetchArtifact implements FilePath.FileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String repositoryUrl;
+		private final String repositoryId;
+		private final String groupId;
+		private final String artifactId;
+		private final String version;
+		private final String type;
+		private final String name;
+		private final String cacheRoot;
+		private final long cacheBytes;
+		private final boolean revalidate;
+		private final boolean link;
+		private final BuildListener listener;
+
+		FetchArtifact(String repositoryUrl, String repositoryId, String groupId, String artifactId, String version, String type, String name, String cacheRoot, long cacheBytes, boolean revalidate, boolean link, BuildListener listener) {
+			this.repositoryUrl = repositoryUrl;
+			this.repositoryId = repositoryId;
+			this.groupId = groupId;
+			this.artifactId = artifactId;
+			this.version = version;
+			this.type = type;
+			this.name = name;
+			this.cacheRoot = cacheRoot;
+			this.cacheBytes = cacheBytes;
+			this.revalidate = revalidate;
+			this.link = link;
+			this.listener = listener;
+		}
+
+		public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			File target = new File(workspace, "target");
+			Util.deleteRecursive(target);
+
+			MavenServerCredentials credentials = null;
+			if (!GetNexusArtifactBuilder.isBlank(this.repositoryId)) {
+				try {
+					credentials = MavenServerCredentials.lookup(this.repositoryId);
+				} catch (Exception e) {
+					throw new IOException("Unable to read settings.xml: " + e.getMessage());
+				}
+			}
+
+			ArtifactCache cache = this.cacheRoot == null ? null : new ArtifactCache(new File(this.cacheRoot), this.cacheBytes);
+			NexusArtifactFetcher fetcher = new NexusArtifactFetcher(this.repositoryUrl, credentials == null ? null : credentials.getUsername(), credentials == null ? null : credentials.getPassword(), this.listener.getLogger(), cache, this.revalidate, this.link);
+			fetcher.fetch(target, this.groupId, this.artifactId, this.version, this.type, this.name);
+			return null;
+		}
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends Descriptor<Builder> {
+
+		// Global settings for prefetching dropdown-selected artifacts while builds are queued.
+		private boolean prefetch;
+		private String prefetchBandwidth;
+
 		public DescriptorImpl() {
 			super(GetNexusArtifactBuilder.class);
+			load();
+		}
+
+		@Override
+		public boolean configure(StaplerRequest req, JSONObject json) throws Descriptor.FormException {
+			this.prefetch = json.optBoolean("prefetch");
+			this.prefetchBandwidth = json.optString("prefetchBandwidth");
+			save();
+			return true;
+		}
+
+		public boolean isPrefetch() {
+			return prefetch;
+		}
+
+		public String getPrefetchBandwidth() {
+			return prefetchBandwidth;
 		}
 
 		public String getDisplayName() {
@@ -188,7 +327,7 @@ public class GetNexusArtifactBuilder extends Builder {
 		}
 
 		public GetNexusArtifactBuilder newInstance(StaplerRequest req) throws Descriptor.FormException {
-			return new GetNexusArtifactBuilder(req.getParameter("artifactId"), req.getParameter("groupId"), req.getParameter("version"), req.getParameter("type"), req.getParameter("name"));
+			return new GetNexusArtifactBuilder(req.getParameter("artifactId"), req.getParameter("groupId"), req.getParameter("version"), req.getParameter("type"), req.getParameter("name"), req.getParameter("repositoryUrl"), req.getParameter("repositoryId"), req.getParameter("cacheSize"), req.getParameter("revalidate"), req.getParameter("link"));
 		}
 
 		public GetNexusArtifactBuilder newInstance(StaplerRequest req, JSONObject formData) throws Descriptor.FormException {
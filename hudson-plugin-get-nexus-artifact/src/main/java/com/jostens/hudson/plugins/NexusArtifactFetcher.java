@@ -0,0 +1,622 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * @author blaisj1
+ * @brief Downloads an artifact and its POM from a Maven repository without
+ *        starting Maven. SNAPSHOT versions are resolved to their latest
+ *        unique file name through maven-metadata.xml, and each download is
+ *        verified against the repository's SHA-1 checksum when one exists.
+ *
+ *        With an ArtifactCache, files already on the node are copied (or, when
+ *        asked, hard linked) out of the cache instead. Releases are then served with no
+ *        network traffic at all unless revalidation is requested, in which
+ *        case only the repository's .sha1 is fetched to confirm the copy.
+ *
+ *        Large files are fetched as several HTTP Range requests in parallel,
+ *        each written into the preallocated file at its own offset. A single
+ *        TCP stream over the WAN cannot fill the link on its own.
+ */
+public class NexusArtifactFetcher {
+
+	private static final String METADATA = "maven-metadata.xml";
+	private static final String SNAPSHOT = "SNAPSHOT";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int CONNECT_TIMEOUT = 30000;
+	private static final int READ_TIMEOUT = 300000;
+	// Files at least this large are downloaded as parallel ranges.
+	private static final long RANGED_THRESHOLD = 16L * 1024 * 1024;
+	private static final long RANGE_SIZE = 4L * 1024 * 1024;
+	private static final int RANGED_CONNECTIONS = 4;
+
+	private final String repositoryUrl;
+	private final String authorization;
+	private final PrintStream logger;
+	private final ArtifactCache cache;
+	private final boolean revalidate;
+	private final boolean link;
+	private BandwidthThrottle throttle = new BandwidthThrottle(0);
+	private long rangedThreshold = RANGED_THRESHOLD;
+	private long rangeSize = RANGE_SIZE;
+
+	public NexusArtifactFetcher(String repositoryUrl, String username, String password, PrintStream logger) {
+		this(repositoryUrl, username, password, logger, null, false);
+	}
+
+	public NexusArtifactFetcher(String repositoryUrl, String username, String password, PrintStream logger, ArtifactCache cache, boolean revalidate) {
+		this(repositoryUrl, username, password, logger, cache, revalidate, false);
+	}
+
+	/**
+	 * @param link hard link the artifact out of the cache instead of copying
+	 *        it. The workspace file is then the cache's own copy, so nothing
+	 *        may change it in place.
+	 */
+	public NexusArtifactFetcher(String repositoryUrl, String username, String password, PrintStream logger, ArtifactCache cache, boolean revalidate, boolean link) {
+		this.repositoryUrl = repositoryUrl.endsWith("/") ? repositoryUrl.substring(0, repositoryUrl.length() - 1) : repositoryUrl;
+		this.authorization = NexusArtifactFetcher.basicAuthorization(username, password);
+		this.logger = logger;
+		this.cache = cache;
+		this.revalidate = revalidate;
+		this.link = link;
+	}
+
+	/**
+	 * Fetch the artifact as {artifactId}-{version}.{ext} (or the given name)
+	 * and its POM as pom.xml into the target directory, matching what the
+	 * maven-dependency-plugin copy goal produced.
+	 */
+	public void fetch(File targetDir, String groupId, String artifactId, String version, String extension, String name) throws IOException, InterruptedException {
+		String versionPath = this.repositoryUrl + "/" + groupId.replace('.', '/') + "/" + artifactId + "/" + version;
+		String base = versionPath + "/" + artifactId + "-" + this.resolveFileVersion(versionPath, version, extension);
+
+		if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+			throw new IOException("Unable to create directory " + targetDir);
+		}
+		String artifactName = (name == null || name.trim().length() == 0) ? artifactId + "-" + version + "." + extension : name.trim();
+
+		// Later build steps rewrite pom.xml in place, so it must never share the cache's copy.
+		this.fetchFile(base + "." + extension, new File(targetDir, artifactName), groupId + ":" + artifactId + ":" + extension);
+		this.fetchFile(base + ".pom", new File(targetDir, "pom.xml"), null);
+	}
+
+	/**
+	 * Share a bandwidth cap across every transfer this fetcher makes.
+	 */
+	public void setThrottle(BandwidthThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Change when files are fetched as ranges, and how large the ranges are.
+	 */
+	void setRanged(long threshold, long rangeSize) {
+		this.rangedThreshold = threshold;
+		this.rangeSize = rangeSize;
+	}
+
+	/**
+	 * Make sure the artifact and its POM are in the cache without placing
+	 * them anywhere, so a later fetch on this node finds them there.
+	 */
+	public void prefetch(String groupId, String artifactId, String version, String extension) throws IOException, InterruptedException {
+		String versionPath = this.repositoryUrl + "/" + groupId.replace('.', '/') + "/" + artifactId + "/" + version;
+		String base = versionPath + "/" + artifactId + "-" + this.resolveFileVersion(versionPath, version, extension);
+
+		String[][] files = { { base + "." + extension, groupId + ":" + artifactId + ":" + extension }, { base + ".pom", null } };
+		for (String[] file : files) {
+			ArtifactCache.Lock lock = this.cache.lockEntry(file[0]);
+			try {
+				String checksum = this.cachedChecksum(file[0]);
+				if (checksum == null) {
+					this.logger.println("Prefetching " + file[0]);
+					checksum = this.store(file[0], file[1]);
+				}
+				if (file[1] != null) {
+					this.cache.setLatest(file[1], checksum);
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Fetch through the cache when there is one. Only the artifact itself
+	 * (identified by artifactKey) is linked when linking was asked for, and
+	 * only it is rebuilt as a delta against the previous version of the same
+	 * artifact.
+	 */
+	private void fetchFile(String url, File destination, String artifactKey) throws IOException, InterruptedException {
+		boolean link = this.link && artifactKey != null;
+		if (this.cache == null) {
+			this.download(url, destination);
+			return;
+		}
+
+		ArtifactCache.Lock lock = this.cache.lockEntry(url);
+		try {
+			String checksum = this.cachedChecksum(url);
+			if (checksum != null && this.cache.materialize(checksum, destination, link)) {
+				this.logger.println("Using cached " + url + " (" + this.cache.record(true) + ")");
+			} else {
+				this.logger.println("Not cached: " + url + " (" + this.cache.record(false) + ")");
+				checksum = this.store(url, artifactKey);
+				if (!this.cache.materialize(checksum, destination, link)) {
+					// Another executor's store evicted it already; the cache is only an optimisation.
+					this.logger.println("Evicted before use: " + url + ".  Downloading it directly.");
+					this.download(url, destination);
+				}
+			}
+			if (artifactKey != null) {
+				this.cache.setLatest(artifactKey, checksum);
+			}
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * @return the SHA-1 of the cached copy of the url, or null if there is
+	 *         none. With revalidation the repository's checksum decides which
+	 *         copy counts.
+	 */
+	private String cachedChecksum(String url) throws IOException {
+		String checksum = this.revalidate ? this.getChecksum(url) : null;
+		if (checksum == null) {
+			checksum = this.cache.lookup(url);
+		}
+		return checksum != null && this.cache.getFile(checksum) != null ? checksum : null;
+	}
+
+	// Caller holds the url's entry lock.
+	private String store(String url, String artifactKey) throws IOException, InterruptedException {
+		File temp = this.cache.createTempFile();
+		try {
+			String checksum = artifactKey != null ? this.deltaTransfer(url, temp, artifactKey) : null;
+			if (checksum == null) {
+				checksum = this.transfer(url, temp);
+			}
+			this.cache.store(url, checksum, temp);
+			return checksum;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Rebuild the url from the newest cached version of the same artifact.
+	 *
+	 * @return the SHA-1 of the rebuilt file, or null if a full download is
+	 *         needed.
+	 */
+	private String deltaTransfer(String url, File temp, String artifactKey) throws IOException, InterruptedException {
+		String previous = this.cache.lookupLatest(artifactKey);
+		File previousFile = previous == null ? null : this.cache.getFile(previous);
+		if (previousFile == null) {
+			return null;
+		}
+		this.logger.println("Fetching " + url + " as a delta against cached " + previous);
+		try {
+			return new ZipDeltaDownloader(this, this.logger).download(url, previousFile, temp, this.getChecksum(url));
+		} catch (IOException e) {
+			// The previous version may have been evicted mid-read; a full download still works.
+			this.logger.println("Delta download failed: " + e.getMessage() + ".  Falling back to a full download.");
+			return null;
+		}
+	}
+
+	/**
+	 * @return the file version of the newest unique snapshot, or the version
+	 *         itself for releases and non-unique snapshots.
+	 */
+	String resolveFileVersion(String versionPath, String version, String extension) throws IOException {
+		if (!version.endsWith(SNAPSHOT)) {
+			return version;
+		}
+		byte[] bytes = this.get(versionPath + "/" + METADATA);
+		if (bytes == null) {
+			return version;
+		}
+
+		Document metadata;
+		try {
+			metadata = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+		} catch (Exception e) {
+			throw new IOException("Unable to parse " + versionPath + "/" + METADATA + ": " + e.getMessage());
+		}
+
+		// Maven 3 metadata lists the exact value per extension.
+		NodeList snapshotVersions = metadata.getElementsByTagName("snapshotVersion");
+		for (int i = 0; i < snapshotVersions.getLength(); i++) {
+			Element snapshotVersion = (Element) snapshotVersions.item(i);
+			if (extension.equals(NexusArtifactFetcher.getText(snapshotVersion, "extension")) && NexusArtifactFetcher.getText(snapshotVersion, "classifier") == null) {
+				String value = NexusArtifactFetcher.getText(snapshotVersion, "value");
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+
+		// Maven 2 metadata only records the newest timestamp and build number.
+		Element root = metadata.getDocumentElement();
+		String timestamp = NexusArtifactFetcher.getText(root, "timestamp");
+		String buildNumber = NexusArtifactFetcher.getText(root, "buildNumber");
+		if (timestamp == null || buildNumber == null) {
+			return version;
+		}
+		return version.substring(0, version.length() - SNAPSHOT.length()) + timestamp + "-" + buildNumber;
+	}
+
+	/**
+	 * Stream a file into place through a temporary file, verifying its SHA-1
+	 * against the repository's checksum as the bytes arrive.
+	 *
+	 * @return the SHA-1 of the downloaded file.
+	 */
+	String download(String url, File destination) throws IOException, InterruptedException {
+		File temp = new File(destination.getParentFile(), destination.getName() + ".part");
+		String checksum = this.transfer(url, temp);
+		if (destination.exists() && !destination.delete()) {
+			temp.delete();
+			throw new IOException("Unable to replace " + destination);
+		}
+		if (!temp.renameTo(destination)) {
+			throw new IOException("Unable to move " + temp + " to " + destination);
+		}
+		return checksum;
+	}
+
+	/**
+	 * Download a url into a file and check its SHA-1 against the repository's
+	 * checksum when one exists. Large files go through parallel ranges when
+	 * the server honours Range; everything else is a single stream.
+	 */
+	private String transfer(String url, File temp) throws IOException, InterruptedException {
+		this.logger.println("Downloading " + url);
+		long start = System.currentTimeMillis();
+
+		long length = this.probeRangeLength(url);
+		String checksum = null;
+		if (length >= this.rangedThreshold) {
+			checksum = this.rangedTransfer(url, temp, length);
+		}
+		if (checksum == null) {
+			checksum = this.streamTransfer(url, temp);
+			length = temp.length();
+		}
+
+		String expected = this.getChecksum(url);
+		if (expected != null && !expected.equalsIgnoreCase(checksum)) {
+			temp.delete();
+			throw new IOException("Checksum mismatch for " + url + ": expected " + expected + " but was " + checksum);
+		}
+		this.logger.println("Downloaded " + length + " bytes in " + (System.currentTimeMillis() - start) + "ms.");
+		return checksum;
+	}
+
+	/**
+	 * Ask for the first byte only; a 206 answer carries the full length in
+	 * its Content-Range header.
+	 *
+	 * @return the file length, or -1 if the server does not honour Range.
+	 */
+	long probeRangeLength(String url) throws IOException {
+		HttpURLConnection connection = this.open(url);
+		try {
+			connection.setRequestProperty("Range", "bytes=0-0");
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				return -1;
+			}
+			String contentRange = connection.getHeaderField("Content-Range");
+			int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+			if (slash < 0 || contentRange.endsWith("*")) {
+				return -1;
+			}
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Fetch the file as fixed-size ranges over several connections, writing
+	 * each range straight to its position in a preallocated file.
+	 *
+	 * @return the SHA-1 of the file, or null if the server stopped honouring
+	 *         Range and the caller should fall back to a single stream.
+	 */
+	private String rangedTransfer(String url, File temp, long length) throws IOException, InterruptedException {
+		this.logger.println("Fetching " + length + " bytes as " + this.rangeSize + " byte ranges over " + RANGED_CONNECTIONS + " connections.");
+
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try {
+			file.setLength(length);
+			List<long[]> ranges = new ArrayList<long[]>();
+			ranges.add(new long[] { 0, length - 1 });
+			if (!this.fetchRanges(url, file.getChannel(), ranges)) {
+				this.logger.println("Server ignored Range for " + url + ".  Falling back to a single stream.");
+				return null;
+			}
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+		return NexusArtifactFetcher.hash(temp);
+	}
+
+	/**
+	 * Fetch each inclusive {first, last} byte range of the url into the same
+	 * position of the channel, splitting ranges into rangeSize pieces shared
+	 * out over RANGED_CONNECTIONS connections.
+	 *
+	 * @return false if the server did not honour Range.
+	 */
+	boolean fetchRanges(final String url, final FileChannel channel, List<long[]> ranges) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(RANGED_CONNECTIONS);
+		try {
+			List<Future<Boolean>> pieces = new ArrayList<Future<Boolean>>();
+			for (long[] range : ranges) {
+				for (long offset = range[0]; offset <= range[1]; offset += this.rangeSize) {
+					final long first = offset;
+					final long last = Math.min(offset + this.rangeSize - 1, range[1]);
+					pieces.add(executor.submit(new Callable<Boolean>() {
+						public Boolean call() throws IOException {
+							return NexusArtifactFetcher.this.fetchRange(url, channel, first, last);
+						}
+					}));
+				}
+			}
+			boolean honoured = true;
+			for (Future<Boolean> piece : pieces) {
+				honoured &= piece.get().booleanValue();
+			}
+			return honoured;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Ranged download of " + url + " failed: " + cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the inclusive byte range of the url, or null if the server
+	 *         does not honour Range.
+	 */
+	byte[] getRange(String url, long first, long last) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (last + 1 - first));
+		HttpURLConnection connection = this.open(url);
+		try {
+			connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_OK) {
+				return null;
+			}
+			if (status != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException("Server returned HTTP " + status + " for " + url + " bytes " + first + "-" + last);
+			}
+			InputStream in = connection.getInputStream();
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					this.throttle.acquire(read);
+					bytes.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+		if (bytes.size() != last + 1 - first) {
+			throw new IOException("Expected " + (last + 1 - first) + " bytes of " + url + " but received " + bytes.size());
+		}
+		return bytes.toByteArray();
+	}
+
+	// Returns false if the server answered with something other than the requested range.
+	private boolean fetchRange(String url, FileChannel channel, long first, long last) throws IOException {
+		HttpURLConnection connection = this.open(url);
+		try {
+			connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_OK) {
+				return false;
+			}
+			if (status != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException("Server returned HTTP " + status + " for " + url + " bytes " + first + "-" + last);
+			}
+			String contentRange = connection.getHeaderField("Content-Range");
+			if (contentRange == null || !contentRange.startsWith("bytes " + first + "-" + last + "/")) {
+				return false;
+			}
+			InputStream in = connection.getInputStream();
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long position = first;
+				int read;
+				while (position <= last && (read = in.read(buffer, 0, (int) Math.min(buffer.length, last + 1 - position))) != -1) {
+					this.throttle.acquire(read);
+					ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+					while (bytes.hasRemaining()) {
+						position += channel.write(bytes, position);
+					}
+				}
+				if (position != last + 1) {
+					throw new IOException("Connection closed after " + (position - first) + " of " + (last + 1 - first) + " bytes of " + url);
+				}
+			} finally {
+				in.close();
+			}
+			return true;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	// Single stream download, hashing the bytes as they arrive.
+	private String streamTransfer(String url, File temp) throws IOException {
+		MessageDigest sha1 = NexusArtifactFetcher.sha1();
+		HttpURLConnection connection = this.open(url);
+		try {
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server returned HTTP " + status + " for " + url);
+			}
+			InputStream in = connection.getInputStream();
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					this.throttle.acquire(read);
+					out.write(buffer, 0, read);
+					sha1.update(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+		return NexusArtifactFetcher.toHex(sha1.digest());
+	}
+
+	/**
+	 * @return the repository's SHA-1 for the url, or null if it publishes none.
+	 */
+	String getChecksum(String url) throws IOException {
+		byte[] bytes = this.get(url + ".sha1");
+		if (bytes == null) {
+			return null;
+		}
+		// Checksum files may be followed by the file name.
+		String text = new String(bytes, "US-ASCII").trim();
+		int space = text.indexOf(' ');
+		return space > 0 ? text.substring(0, space) : text;
+	}
+
+	// Returns null when the repository does not have the requested file.
+	byte[] get(String url) throws IOException {
+		HttpURLConnection connection = this.open(url);
+		try {
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+				return null;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server returned HTTP " + status + " for " + url);
+			}
+			InputStream in = connection.getInputStream();
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	HttpURLConnection open(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setUseCaches(false);
+		if (this.authorization != null) {
+			connection.setRequestProperty("Authorization", this.authorization);
+		}
+		return connection;
+	}
+
+	private static String getText(Element parent, String tag) {
+		NodeList nodes = parent.getElementsByTagName(tag);
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+	}
+
+	static MessageDigest sha1() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Checksum algorithm unavailable: SHA-1");
+		}
+	}
+
+	// Ranges arrive out of order, so their file is hashed once it is complete.
+	static String hash(File file) throws IOException {
+		MessageDigest sha1 = NexusArtifactFetcher.sha1();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				sha1.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return NexusArtifactFetcher.toHex(sha1.digest());
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static String basicAuthorization(String username, String password) {
+		if (username == null) {
+			return null;
+		}
+		String credentials = username + ":" + (password == null ? "" : password);
+		try {
+			return "Basic " + DatatypeConverter.printBase64Binary(credentials.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author blaisj1
+ * @brief Rebuilds a new version of a zip archive (war, jar, ear) from a
+ *        previous version already on disk. Only the new archive's central
+ *        directory and the entries whose CRC or size changed are fetched;
+ *        every unchanged entry is copied from the previous version.
+ *
+ *        The result must match the repository's SHA-1 byte for byte, so
+ *        the caller falls back to a full download whenever this returns
+ *        null.
+ */
+public class ZipDeltaDownloader {
+
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int END_SIZE = 22;
+	private static final int CENTRAL_SIZE = 46;
+	private static final int LOCAL_SIZE = 30;
+	// The end record sits within the last 64K comment plus its own size.
+	private static final int MAX_TAIL = 0xFFFF + END_SIZE;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final NexusArtifactFetcher fetcher;
+	private final PrintStream logger;
+
+	public ZipDeltaDownloader(NexusArtifactFetcher fetcher, PrintStream logger) {
+		this.fetcher = fetcher;
+		this.logger = logger;
+	}
+
+	/**
+	 * Rebuild the archive at the url into temp from the previous version.
+	 *
+	 * @return the SHA-1 of the rebuilt file, or null if the delta could not
+	 *         be used (no Range support, not a zip, zip64, or a checksum
+	 *         mismatch).
+	 */
+	public String download(String url, File previous, File temp, String expectedSha1) throws IOException, InterruptedException {
+		long length = this.fetcher.probeRangeLength(url);
+		if (length < END_SIZE || expectedSha1 == null) {
+			return null;
+		}
+
+		// Fetch the tail, then the rest of the central directory if it did not fit.
+		long tailStart = Math.max(0, length - MAX_TAIL);
+		byte[] tail = this.fetcher.getRange(url, tailStart, length - 1);
+		long transferred = tail == null ? 0 : tail.length;
+		int end = tail == null ? -1 : ZipDeltaDownloader.findEnd(tail);
+		if (end < 0) {
+			return null;
+		}
+		long centralOffset = ZipDeltaDownloader.getInt(tail, end + 16);
+		if (ZipDeltaDownloader.getShort(tail, end + 10) == 0xFFFF || centralOffset == 0xFFFFFFFFL) {
+			return null;
+		}
+		if (centralOffset < tailStart) {
+			byte[] central = this.fetcher.getRange(url, centralOffset, tailStart - 1);
+			if (central == null) {
+				return null;
+			}
+			transferred += central.length;
+			byte[] joined = new byte[central.length + tail.length];
+			System.arraycopy(central, 0, joined, 0, central.length);
+			System.arraycopy(tail, 0, joined, central.length, tail.length);
+			tail = joined;
+			end += central.length;
+			tailStart = centralOffset;
+		}
+		List<Entry> entries = ZipDeltaDownloader.readCentral(tail, (int) (centralOffset - tailStart), end, centralOffset);
+		if (entries == null) {
+			return null;
+		}
+
+		Map<String, Entry> previousEntries = new HashMap<String, Entry>();
+		RandomAccessFile old = new RandomAccessFile(previous, "r");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try {
+			List<Entry> oldEntries = ZipDeltaDownloader.readCentral(old);
+			if (oldEntries == null) {
+				return null;
+			}
+			for (Entry entry : oldEntries) {
+				previousEntries.put(entry.name, entry);
+			}
+
+			file.setLength(length);
+			FileChannel channel = file.getChannel();
+			ZipDeltaDownloader.write(channel, ByteBuffer.wrap(tail, (int) (centralOffset - tailStart), tail.length - (int) (centralOffset - tailStart)), centralOffset);
+
+			// Copy unchanged entries now and collect contiguous ranges to fetch.
+			List<long[]> ranges = new ArrayList<long[]>();
+			long position = 0;
+			int reused = 0;
+			for (Entry entry : entries) {
+				// Anything before the first entry (a self-extracting stub) is always fetched.
+				if (entry.offset > position) {
+					ZipDeltaDownloader.addRange(ranges, position, entry.offset - 1);
+				}
+				Entry match = previousEntries.get(entry.name);
+				if (match != null && match.sameContent(entry)) {
+					ZipDeltaDownloader.copyEntry(old.getChannel(), match, channel, entry);
+					reused++;
+				} else {
+					ZipDeltaDownloader.addRange(ranges, entry.offset, entry.offset + entry.span - 1);
+				}
+				position = entry.offset + entry.span;
+			}
+			for (long[] range : ranges) {
+				transferred += range[1] + 1 - range[0];
+			}
+			if (!ranges.isEmpty() && !this.fetcher.fetchRanges(url, channel, ranges)) {
+				return null;
+			}
+			channel.force(false);
+			this.logger.println("Delta download reused " + reused + " of " + entries.size() + " entries and transferred " + transferred + " of " + length + " bytes (" + (length == 0 ? 0 : transferred * 100 / length) + "%).");
+		} finally {
+			file.close();
+			old.close();
+		}
+
+		String checksum = NexusArtifactFetcher.hash(temp);
+		if (!checksum.equalsIgnoreCase(expectedSha1)) {
+			this.logger.println("Rebuilt archive does not match the repository checksum.  Falling back to a full download.");
+			return null;
+		}
+		return checksum;
+	}
+
+	// Ranges are added in file order, so each one either extends the last or starts a new one.
+	private static void addRange(List<long[]> ranges, long first, long last) {
+		if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] + 1 == first) {
+			ranges.get(ranges.size() - 1)[1] = last;
+		} else {
+			ranges.add(new long[] { first, last });
+		}
+	}
+
+	/**
+	 * Copy an entry's local record from the previous archive, taking the
+	 * version, flags, method and timestamp from the new central directory
+	 * since rebuilt jars get fresh timestamps on identical content.
+	 */
+	private static void copyEntry(FileChannel from, Entry source, FileChannel to, Entry target) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(LOCAL_SIZE);
+		ZipDeltaDownloader.read(from, header, source.offset);
+		byte[] local = header.array();
+		if (ZipDeltaDownloader.getInt(local, 0) != LOCAL_SIGNATURE) {
+			throw new IOException("Corrupt local header for " + source.name + " in the previous archive.");
+		}
+		System.arraycopy(target.header, 0, local, 4, target.header.length);
+		ZipDeltaDownloader.write(to, ByteBuffer.wrap(local), target.offset);
+
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long copied = LOCAL_SIZE;
+		while (copied < target.span) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER_SIZE, target.span - copied));
+			ZipDeltaDownloader.read(from, buffer, source.offset + copied);
+			buffer.flip();
+			ZipDeltaDownloader.write(to, buffer, target.offset + copied);
+			copied += buffer.limit();
+		}
+	}
+
+	private static List<Entry> readCentral(RandomAccessFile file) throws IOException {
+		long length = file.length();
+		if (length < END_SIZE) {
+			return null;
+		}
+		long tailStart = Math.max(0, length - MAX_TAIL);
+		ByteBuffer tail = ByteBuffer.allocate((int) (length - tailStart));
+		ZipDeltaDownloader.read(file.getChannel(), tail, tailStart);
+		int end = ZipDeltaDownloader.findEnd(tail.array());
+		if (end < 0) {
+			return null;
+		}
+		long centralOffset = ZipDeltaDownloader.getInt(tail.array(), end + 16);
+		if (centralOffset == 0xFFFFFFFFL || centralOffset > tailStart + end) {
+			return null;
+		}
+		ByteBuffer central = ByteBuffer.allocate((int) (tailStart + end - centralOffset + END_SIZE));
+		ZipDeltaDownloader.read(file.getChannel(), central, centralOffset);
+		return ZipDeltaDownloader.readCentral(central.array(), 0, central.capacity() - END_SIZE, centralOffset);
+	}
+
+	/**
+	 * Parse central directory records in bytes[start, end). Each entry's span
+	 * runs from its local header to the next entry, or to the central
+	 * directory for the last one, so it includes any data descriptor.
+	 */
+	private static List<Entry> readCentral(byte[] bytes, int start, int end, long centralOffset) {
+		List<Entry> entries = new ArrayList<Entry>();
+		int position = start;
+		while (position < end) {
+			if (position + CENTRAL_SIZE > end || ZipDeltaDownloader.getInt(bytes, position) != CENTRAL_SIGNATURE) {
+				return null;
+			}
+			int nameLength = ZipDeltaDownloader.getShort(bytes, position + 28);
+			int extraLength = ZipDeltaDownloader.getShort(bytes, position + 30);
+			int commentLength = ZipDeltaDownloader.getShort(bytes, position + 32);
+			Entry entry = new Entry();
+			entry.header = new byte[10];
+			System.arraycopy(bytes, position + 6, entry.header, 0, entry.header.length);
+			entry.crc = ZipDeltaDownloader.getInt(bytes, position + 16);
+			entry.compressedSize = ZipDeltaDownloader.getInt(bytes, position + 20);
+			entry.size = ZipDeltaDownloader.getInt(bytes, position + 24);
+			entry.offset = ZipDeltaDownloader.getInt(bytes, position + 42);
+			try {
+				entry.name = new String(bytes, position + CENTRAL_SIZE, nameLength, "UTF-8");
+			} catch (IOException e) {
+				return null;
+			}
+			entries.add(entry);
+			position += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+		}
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.offset < b.offset ? -1 : (a.offset > b.offset ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < entries.size(); i++) {
+			long next = i + 1 < entries.size() ? entries.get(i + 1).offset : centralOffset;
+			entries.get(i).span = next - entries.get(i).offset;
+			if (entries.get(i).span < LOCAL_SIZE) {
+				return null;
+			}
+		}
+		return entries;
+	}
+
+	private static int findEnd(byte[] tail) {
+		for (int i = tail.length - END_SIZE; i >= 0; i--) {
+			if (ZipDeltaDownloader.getInt(tail, i) == END_SIGNATURE && i + END_SIZE + ZipDeltaDownloader.getShort(tail, i + 20) == tail.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of archive.");
+			}
+			position += read;
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static int getShort(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+	}
+
+	private static long getInt(byte[] bytes, int offset) {
+		return (getShort(bytes, offset) | ((long) getShort(bytes, offset + 2) << 16)) & 0xFFFFFFFFL;
+	}
+
+	private static class Entry {
+		private String name;
+		// Version needed, flags, method, time and date, as laid out in a local header.
+		private byte[] header;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private long offset;
+		private long span;
+
+		// Same compressed bytes, judged by what the central directory records.
+		boolean sameContent(Entry other) {
+			return this.crc == other.crc && this.compressedSize == other.compressedSize && this.size == other.size && this.span == other.span && this.header[4] == other.header[4] && this.header[5] == other.header[5];
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.jostens.hudson.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Stores, materializes and evicts files in a cache under a temporary
+ *        directory.
+ */
+public class ArtifactCacheTest extends TestCase {
+
+	private static final String URL = "http://nexus/content/repositories/releases/com/jostens/app/1.0/app-1.0.war";
+
+	private File root;
+	private File work;
+
+	protected void setUp() throws Exception {
+		this.root = ArtifactCacheTest.createTempDir("cache");
+		this.work = ArtifactCacheTest.createTempDir("work");
+	}
+
+	protected void tearDown() throws Exception {
+		ArtifactCacheTest.deleteRecursive(this.root);
+		ArtifactCacheTest.deleteRecursive(this.work);
+	}
+
+	public void testStoreThenMaterialize() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		assertNull(cache.lookup(URL));
+
+		this.store(cache, URL, "1111", "war bytes");
+		assertEquals("1111", cache.lookup(URL));
+
+		File copy = new File(this.work, "app.war");
+		assertTrue(cache.materialize("1111", copy, false));
+		assertEquals("war bytes", ArtifactCacheTest.read(copy));
+		File link = new File(this.work, "linked.war");
+		assertTrue(cache.materialize("1111", link, true));
+		assertEquals("war bytes", ArtifactCacheTest.read(link));
+		assertFalse(cache.materialize("2222", new File(this.work, "missing.war"), false));
+	}
+
+	public void testStoreOfSameContentKeepsOneObject() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		this.store(cache, URL, "1111", "war bytes");
+		File temp = this.store(cache, URL.replace("1.0", "1.0-copy"), "1111", "war bytes");
+		assertFalse(temp.exists());
+		assertEquals("1111", cache.lookup(URL.replace("1.0", "1.0-copy")));
+		assertNotNull(cache.getFile("1111"));
+	}
+
+	public void testObjectOverTheCapSurvivesItsOwnStore() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 4);
+		this.store(cache, URL, "1111", "larger than the cap");
+		assertNotNull(cache.getFile("1111"));
+		assertTrue(cache.materialize("1111", new File(this.work, "app.war"), false));
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 25);
+		this.store(cache, URL + "1", "1111", "0123456789");
+		this.store(cache, URL + "2", "2222", "0123456789");
+		cache.getFile("1111").setLastModified(System.currentTimeMillis() - 60000);
+		cache.getFile("2222").setLastModified(System.currentTimeMillis() - 30000);
+		// Using the oldest makes the other the least recently used.
+		assertTrue(cache.materialize("1111", new File(this.work, "app.war"), false));
+
+		this.store(cache, URL + "3", "3333", "0123456789");
+		assertNotNull(cache.getFile("1111"));
+		assertNull(cache.getFile("2222"));
+		assertNotNull(cache.getFile("3333"));
+	}
+
+	public void testLatestIsKeptApartFromUrls() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		assertNull(cache.lookupLatest("com.jostens:app:war"));
+		cache.setLatest("com.jostens:app:war", "1111");
+		assertEquals("1111", cache.lookupLatest("com.jostens:app:war"));
+		assertNull(cache.lookup("com.jostens:app:war"));
+	}
+
+	public void testRecordCountsHitsAndMisses() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		cache.record(false);
+		cache.record(true);
+		assertEquals("cache hits: 2, misses: 1", cache.record(true));
+		assertEquals("cache hits: 2, misses: 2", new ArtifactCache(this.root, 1024 * 1024).record(false));
+	}
+
+	public void testLockFilesAreDeletedOnRelease() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		ArtifactCache.Lock lock = cache.lockEntry(URL);
+		this.store(cache, URL, "1111", "war bytes");
+		cache.record(true);
+		assertEquals(1, new File(this.root, "locks").list().length);
+		lock.release();
+		assertEquals(0, new File(this.root, "locks").list().length);
+	}
+
+	/**
+	 * A lock file marked dead, as one whose holder died while deleting it, is
+	 * taken over rather than waited on forever.
+	 */
+	public void testDeadLockFileIsTakenOver() throws Exception {
+		ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-1").digest(URL.getBytes("UTF-8"))) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		File dead = new File(this.root, "locks/" + hex + ".lock");
+		ArtifactCacheTest.append(dead, "x");
+		cache.lockEntry(URL).release();
+		assertFalse(dead.exists());
+	}
+
+	public void testConcurrentStores() throws Exception {
+		final ArtifactCache cache = new ArtifactCache(this.root, 1024 * 1024);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Object>> stores = new ArrayList<Future<Object>>();
+			for (int i = 0; i < 32; i++) {
+				final int n = i;
+				stores.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						ArtifactCache.Lock lock = cache.lockEntry(URL + n);
+						try {
+							return ArtifactCacheTest.this.store(cache, URL + n, "ab" + (n % 4), "content " + (n % 4));
+						} finally {
+							lock.release();
+						}
+					}
+				}));
+			}
+			for (Future<Object> store : stores) {
+				store.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for (int i = 0; i < 32; i++) {
+			String sha1 = cache.lookup(URL + i);
+			assertEquals("ab" + (i % 4), sha1);
+			assertEquals("content " + (i % 4), ArtifactCacheTest.read(cache.getFile(sha1)));
+		}
+		assertEquals(0, new File(this.root, "locks").list().length);
+	}
+
+	// The cache trusts the caller's SHA-1, so the tests use short stand-ins.
+	private File store(ArtifactCache cache, String url, String sha1, String content) throws IOException, InterruptedException {
+		File temp = cache.createTempFile();
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		cache.store(url, sha1, temp);
+		return temp;
+	}
+
+	static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return dir;
+	}
+
+	static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				ArtifactCacheTest.deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+
+	static void append(File file, String content) throws IOException {
+		OutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] content = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while (offset < content.length && (read = in.read(content, offset, content.length - offset)) != -1) {
+				offset += read;
+			}
+			return new String(content, 0, offset, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
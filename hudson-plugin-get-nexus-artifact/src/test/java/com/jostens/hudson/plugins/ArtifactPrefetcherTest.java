@@ -0,0 +1,60 @@
+package com.jostens.hudson.plugins;
+
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Follows a prefetch's build through the queue by its item id, and
+ *        shares one bandwidth cap between all prefetches.
+ */
+public class ArtifactPrefetcherTest extends TestCase {
+
+	private static final long GRACE = 10000;
+
+	private ArtifactPrefetcher.Prefetch prefetch;
+
+	protected void setUp() throws Exception {
+		this.prefetch = new ArtifactPrefetcher.Prefetch(null, null, 0);
+	}
+
+	public void testWaitsForTheBuildToBeQueued() throws Exception {
+		assertFalse(this.prefetch.isAbandoned(-1, false, 1000));
+		assertFalse(this.prefetch.isAbandoned(-1, false, GRACE));
+	}
+
+	public void testAbandonedWhenTheBuildNeverAppears() throws Exception {
+		assertTrue(this.prefetch.isAbandoned(-1, false, GRACE + 1));
+	}
+
+	public void testKeepsRunningWhileItsItemIsQueued() throws Exception {
+		for (long now = 0; now < 5 * GRACE; now += 2000) {
+			assertFalse(this.prefetch.isAbandoned(42, false, now));
+		}
+	}
+
+	/**
+	 * Cancelling the build in the queue abandons the prefetch, whether or not
+	 * other builds of the project are queued or running.
+	 */
+	public void testAbandonedOnceItsItemLeavesWithoutStarting() throws Exception {
+		assertFalse(this.prefetch.isAbandoned(42, false, 4 * GRACE));
+		// An executor takes the item a moment before the build exists.
+		assertFalse(this.prefetch.isAbandoned(-1, false, 4 * GRACE + 2000));
+		assertTrue(this.prefetch.isAbandoned(-1, false, 5 * GRACE + 1));
+	}
+
+	public void testKeepsRunningOnceItsBuildStarts() throws Exception {
+		assertFalse(this.prefetch.isAbandoned(42, false, 2000));
+		assertFalse(this.prefetch.isAbandoned(-1, true, 4000));
+		// The build has finished and moved down the history; it still started.
+		assertFalse(this.prefetch.isAbandoned(-1, false, 4 * GRACE));
+	}
+
+	public void testPrefetchesShareOneThrottle() throws Exception {
+		BandwidthThrottle throttle = ArtifactPrefetcher.getThrottle(512 * 1024);
+		assertSame(throttle, ArtifactPrefetcher.getThrottle(512 * 1024));
+		assertEquals(512 * 1024, throttle.getBytesPerSecond());
+		// A new cap takes effect for the prefetches that start after it.
+		assertEquals(1024 * 1024, ArtifactPrefetcher.getThrottle(1024 * 1024).getBytesPerSecond());
+	}
+}
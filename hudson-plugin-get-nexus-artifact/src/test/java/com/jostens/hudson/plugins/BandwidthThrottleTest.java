@@ -0,0 +1,96 @@
+package com.jostens.hudson.plugins;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Holds transfers sharing a throttle to its cap between them, without
+ *        saving up idle time for a later burst.
+ */
+public class BandwidthThrottleTest extends TestCase {
+
+	private static final int CHUNK = 8 * 1024;
+
+	public void testUncappedNeverWaits() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(0);
+		long start = System.currentTimeMillis();
+		BandwidthThrottleTest.transfer(throttle, 64 * 1024 * 1024);
+		assertTrue(System.currentTimeMillis() - start < 500);
+	}
+
+	/**
+	 * Four transfers at once take as long as one carrying all their bytes.
+	 */
+	public void testSharedThrottleHoldsCombinedRate() throws Exception {
+		final BandwidthThrottle throttle = new BandwidthThrottle(512 * 1024);
+		final List<Exception> failures = new ArrayList<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						BandwidthThrottleTest.transfer(throttle, 128 * 1024);
+					} catch (Exception e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		long start = System.currentTimeMillis();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertEquals(failures.toString(), 0, failures.size());
+		assertTrue(String.valueOf(elapsed), elapsed >= 900);
+	}
+
+	/**
+	 * A single transfer has the whole cap to itself.
+	 */
+	public void testSingleTransferUsesWholeCap() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(512 * 1024);
+		long start = System.currentTimeMillis();
+		BandwidthThrottleTest.transfer(throttle, 128 * 1024);
+		assertTrue(System.currentTimeMillis() - start < 600);
+	}
+
+	public void testIdleTimeIsNotSavedUp() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(1024 * 1024);
+		throttle.acquire(1);
+		Thread.sleep(2500);
+		long start = System.currentTimeMillis();
+		// One second of credit covers the first megabyte; the second is paced.
+		BandwidthThrottleTest.transfer(throttle, 2 * 1024 * 1024);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(String.valueOf(elapsed), elapsed >= 800);
+	}
+
+	public void testInterruptedTransferIsAbandoned() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(0);
+		Thread.currentThread().interrupt();
+		try {
+			throttle.acquire(CHUNK);
+			fail("Expected the interrupted transfer to be abandoned.");
+		} catch (InterruptedIOException e) {
+			assertEquals("Transfer abandoned.", e.getMessage());
+		} finally {
+			Thread.interrupted();
+		}
+	}
+
+	private static void transfer(BandwidthThrottle throttle, int bytes) throws InterruptedIOException {
+		for (int sent = 0; sent < bytes; sent += CHUNK) {
+			throttle.acquire(CHUNK);
+		}
+	}
+}
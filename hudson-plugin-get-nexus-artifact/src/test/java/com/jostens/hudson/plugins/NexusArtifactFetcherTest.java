@@ -0,0 +1,257 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.xml.bind.DatatypeConverter;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Fetches artifacts from a stub Maven repository, with and without the
+ *        node's artifact cache, and as parallel ranges from a stub that
+ *        honours Range.
+ */
+public class NexusArtifactFetcherTest extends TestCase {
+
+	private static final String PATH = "/content/repositories/releases/com/jostens/app/";
+
+	private HttpServer server;
+	private StubRepository repository;
+	private ZipDeltaDownloaderTest.StubRangeServer ranged;
+	private ByteArrayOutputStream log;
+	private File cacheRoot;
+	private File target;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.repository = new StubRepository();
+		this.server.createContext("/", this.repository);
+		this.ranged = new ZipDeltaDownloaderTest.StubRangeServer();
+		this.server.createContext("/ranged/", this.ranged);
+		this.server.start();
+		this.log = new ByteArrayOutputStream();
+		this.cacheRoot = ArtifactCacheTest.createTempDir("cache");
+		this.target = ArtifactCacheTest.createTempDir("target");
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+		ArtifactCacheTest.deleteRecursive(this.cacheRoot);
+		ArtifactCacheTest.deleteRecursive(this.target);
+	}
+
+	public void testFetchesReleaseAndPom() throws Exception {
+		this.repository.artifact(PATH + "1.0/app-1.0.war", "war 1.0", true);
+		this.repository.artifact(PATH + "1.0/app-1.0.pom", "<project/>", true);
+
+		this.fetcher(null).fetch(this.target, "com.jostens", "app", "1.0", "war", null);
+		assertEquals("war 1.0", ArtifactCacheTest.read(new File(this.target, "app-1.0.war")));
+		assertEquals("<project/>", ArtifactCacheTest.read(new File(this.target, "pom.xml")));
+		assertFalse(new File(this.target, "app-1.0.war.part").exists());
+	}
+
+	public void testChecksumMismatchFails() throws Exception {
+		this.repository.artifact(PATH + "1.0/app-1.0.war", "war 1.0", false);
+		this.repository.put(PATH + "1.0/app-1.0.war.sha1", NexusArtifactFetcherTest.sha1("something else") + "  app-1.0.war");
+		try {
+			this.fetcher(null).fetch(this.target, "com.jostens", "app", "1.0", "war", "app.war");
+			fail("Expected a checksum mismatch.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+		}
+		assertFalse(new File(this.target, "app.war").exists());
+	}
+
+	public void testSnapshotPrefersSnapshotVersionForExtension() throws Exception {
+		// Maven 3 metadata: the war and pom of the newest build can carry different build numbers.
+		this.repository.put(PATH + "2.0-SNAPSHOT/maven-metadata.xml", "<metadata><versioning><snapshot><timestamp>20260101.120000</timestamp><buildNumber>7</buildNumber></snapshot>"
+				+ "<snapshotVersions><snapshotVersion><classifier>sources</classifier><extension>war</extension><value>2.0-20260101.120000-6</value></snapshotVersion>"
+				+ "<snapshotVersion><extension>war</extension><value>2.0-20260101.110000-5</value></snapshotVersion></snapshotVersions></versioning></metadata>");
+		NexusArtifactFetcher fetcher = this.fetcher(null);
+		String versionPath = this.url() + PATH + "2.0-SNAPSHOT";
+		assertEquals("2.0-20260101.110000-5", fetcher.resolveFileVersion(versionPath, "2.0-SNAPSHOT", "war"));
+		assertEquals("2.0-20260101.120000-7", fetcher.resolveFileVersion(versionPath, "2.0-SNAPSHOT", "pom"));
+		assertEquals("1.0", fetcher.resolveFileVersion(this.url() + PATH + "1.0", "1.0", "war"));
+	}
+
+	public void testSnapshotWithoutMetadataKeepsVersion() throws Exception {
+		assertEquals("3.0-SNAPSHOT", this.fetcher(null).resolveFileVersion(this.url() + PATH + "3.0-SNAPSHOT", "3.0-SNAPSHOT", "war"));
+	}
+
+	public void testCachedReleaseNeedsNoNetwork() throws Exception {
+		this.repository.artifact(PATH + "1.0/app-1.0.war", "war 1.0", true);
+		this.repository.artifact(PATH + "1.0/app-1.0.pom", "<project/>", true);
+		ArtifactCache cache = new ArtifactCache(this.cacheRoot, 1024 * 1024);
+		this.fetcher(cache).fetch(this.target, "com.jostens", "app", "1.0", "war", null);
+		int requests = this.repository.requests.size();
+
+		File second = new File(this.target, "second");
+		this.fetcher(cache).fetch(second, "com.jostens", "app", "1.0", "war", null);
+		assertEquals(requests, this.repository.requests.size());
+		assertEquals("war 1.0", ArtifactCacheTest.read(new File(second, "app-1.0.war")));
+		assertEquals("<project/>", ArtifactCacheTest.read(new File(second, "pom.xml")));
+		assertTrue(this.log.toString(), this.log.toString().contains("cache hits: 2, misses: 2"));
+	}
+
+	public void testCachedArtifactIsCopiedUnlessLinkingIsAsked() throws Exception {
+		this.repository.artifact(PATH + "1.0/app-1.0.war", "war 1.0", true);
+		this.repository.artifact(PATH + "1.0/app-1.0.pom", "<project/>", true);
+		ArtifactCache cache = new ArtifactCache(this.cacheRoot, 1024 * 1024);
+		this.fetcher(cache).fetch(this.target, "com.jostens", "app", "1.0", "war", null);
+		// Changed in place, as a later build step might.
+		ArtifactCacheTest.append(new File(this.target, "app-1.0.war"), " edited");
+
+		File second = new File(this.target, "second");
+		this.fetcher(cache).fetch(second, "com.jostens", "app", "1.0", "war", null);
+		assertEquals("war 1.0", ArtifactCacheTest.read(new File(second, "app-1.0.war")));
+	}
+
+	public void testRevalidationRefetchesChangedRelease() throws Exception {
+		this.repository.artifact(PATH + "1.0/app-1.0.war", "war 1.0", true);
+		this.repository.artifact(PATH + "1.0/app-1.0.pom", "<project/>", true);
+		ArtifactCache cache = new ArtifactCache(this.cacheRoot, 1024 * 1024);
+		this.fetcher(cache).fetch(this.target, "com.jostens", "app", "1.0", "war", null);
+
+		// Redeployed over the same release version.
+		this.repository.artifact(PATH + "1.0/app-1.0.war", "war 1.0 again", true);
+		File second = new File(this.target, "second");
+		new NexusArtifactFetcher(this.url() + "/content/repositories/releases", null, null, new PrintStream(this.log, true), cache, true).fetch(second, "com.jostens", "app", "1.0", "war", null);
+		assertEquals("war 1.0 again", ArtifactCacheTest.read(new File(second, "app-1.0.war")));
+	}
+
+	/**
+	 * Ranges that do not divide the file evenly, fetched four at a time and
+	 * written at their offsets, make up the whole file.
+	 */
+	public void testReassemblesRanges() throws Exception {
+		byte[] content = NexusArtifactFetcherTest.random(1000 * 1000);
+		this.ranged.put("/ranged/app.war", content, true);
+		this.ranged.put("/ranged/app.war.sha1", NexusArtifactFetcherTest.sha1(content).getBytes("US-ASCII"), false);
+		File destination = new File(this.target, "app.war");
+
+		assertEquals(NexusArtifactFetcherTest.sha1(content), this.rangedFetcher().download(this.url() + "/ranged/app.war", destination));
+		assertTrue(Arrays.equals(content, ZipDeltaDownloaderTest.read(destination)));
+		assertTrue(this.log.toString(), this.log.toString().contains("Fetching 1000000 bytes as 65000 byte ranges"));
+		// The probe, then 16 ranges.
+		assertEquals(17, this.ranged.ranges);
+	}
+
+	public void testSmallFileIsOneStream() throws Exception {
+		byte[] content = NexusArtifactFetcherTest.random(1000);
+		this.ranged.put("/ranged/app.war", content, true);
+		File destination = new File(this.target, "app.war");
+		this.rangedFetcher().download(this.url() + "/ranged/app.war", destination);
+		assertTrue(Arrays.equals(content, ZipDeltaDownloaderTest.read(destination)));
+		assertEquals(1, this.ranged.ranges);
+	}
+
+	public void testFallsBackWhenRangesComeBackWhole() throws Exception {
+		byte[] content = NexusArtifactFetcherTest.random(300 * 1000);
+		this.ranged.put("/ranged/app.war", content, true);
+		this.ranged.put("/ranged/app.war.sha1", NexusArtifactFetcherTest.sha1(content).getBytes("US-ASCII"), false);
+		this.ranged.probeOnly = true;
+		File destination = new File(this.target, "app.war");
+
+		this.rangedFetcher().download(this.url() + "/ranged/app.war", destination);
+		assertTrue(this.log.toString(), this.log.toString().contains("Server ignored Range for " + this.url() + "/ranged/app.war.  Falling back to a single stream."));
+		assertTrue(Arrays.equals(content, ZipDeltaDownloaderTest.read(destination)));
+	}
+
+	public void testRangedChecksumMismatchFails() throws Exception {
+		byte[] content = NexusArtifactFetcherTest.random(300 * 1000);
+		this.ranged.put("/ranged/app.war", content, true);
+		this.ranged.put("/ranged/app.war.sha1", NexusArtifactFetcherTest.sha1(new byte[0]).getBytes("US-ASCII"), false);
+		File destination = new File(this.target, "app.war");
+		try {
+			this.rangedFetcher().download(this.url() + "/ranged/app.war", destination);
+			fail("Expected a checksum mismatch.");
+		} catch (IOException e) {
+			assertEquals("Checksum mismatch for " + this.url() + "/ranged/app.war: expected " + NexusArtifactFetcherTest.sha1(new byte[0]) + " but was " + NexusArtifactFetcherTest.sha1(content), e.getMessage());
+		}
+		assertTrue(this.log.toString(), this.log.toString().contains("byte ranges"));
+		assertFalse(destination.exists());
+		assertFalse(new File(this.target, "app.war.part").exists());
+	}
+
+	private NexusArtifactFetcher rangedFetcher() {
+		NexusArtifactFetcher fetcher = this.fetcher(null);
+		fetcher.setRanged(64 * 1000, 65000);
+		return fetcher;
+	}
+
+	private NexusArtifactFetcher fetcher(ArtifactCache cache) {
+		return new NexusArtifactFetcher(this.url() + "/content/repositories/releases/", null, null, new PrintStream(this.log, true), cache, false);
+	}
+
+	private String url() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	private static String sha1(String content) throws Exception {
+		return NexusArtifactFetcherTest.sha1(content.getBytes("UTF-8"));
+	}
+
+	private static String sha1(byte[] content) throws Exception {
+		return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(content)).toLowerCase();
+	}
+
+	private static byte[] random(int length) {
+		byte[] content = new byte[length];
+		new Random(31).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Serves files by path, 404 for anything else, and ignores Range.
+	 */
+	private static final class StubRepository implements HttpHandler {
+
+		private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		final List<String> requests = new ArrayList<String>();
+
+		synchronized void put(String path, String content) throws IOException {
+			this.files.put(path, content.getBytes("UTF-8"));
+		}
+
+		void artifact(String path, String content, boolean checksum) throws Exception {
+			this.put(path, content);
+			if (checksum) {
+				this.put(path + ".sha1", NexusArtifactFetcherTest.sha1(content));
+			}
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			byte[] content;
+			synchronized (this) {
+				this.requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+				content = this.files.get(exchange.getRequestURI().getPath());
+			}
+			if (content == null) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			exchange.sendResponseHeaders(200, content.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
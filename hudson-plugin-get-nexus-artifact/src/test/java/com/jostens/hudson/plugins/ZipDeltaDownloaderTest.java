@@ -0,0 +1,224 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.bind.DatatypeConverter;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Rebuilds a new WAR from the previous one through a stub server that
+ *        honours Range, checking the result byte for byte and how little of
+ *        the new WAR crossed the network.
+ */
+public class ZipDeltaDownloaderTest extends TestCase {
+
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+	private HttpServer server;
+	private StubRangeServer files;
+	private ByteArrayOutputStream log;
+	private File dir;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.files = new StubRangeServer();
+		this.server.createContext("/", this.files);
+		this.server.start();
+		this.log = new ByteArrayOutputStream();
+		this.dir = ArtifactCacheTest.createTempDir("delta");
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+		ArtifactCacheTest.deleteRecursive(this.dir);
+	}
+
+	public void testRebuildsNewVersionFetchingOnlyChangedEntries() throws Exception {
+		byte[] v1 = ZipDeltaDownloaderTest.war(1, 1);
+		byte[] v2 = ZipDeltaDownloaderTest.war(2, 1);
+		File previous = this.file("app-1.0.war", v1);
+		this.files.put("/app-2.0.war", v2, true);
+
+		File temp = new File(this.dir, "app-2.0.war.part");
+		String sha1 = this.downloader().download(this.url("/app-2.0.war"), previous, temp, ZipDeltaDownloaderTest.sha1(v2));
+		assertEquals(ZipDeltaDownloaderTest.sha1(v2), sha1);
+		assertTrue(Arrays.equals(v2, ZipDeltaDownloaderTest.read(temp)));
+		// One of 20 equal entries changed, plus the central directory.
+		assertTrue(this.files.served + " of " + v2.length, this.files.served < v2.length / 4);
+	}
+
+	public void testChecksumMismatchIsNotUsed() throws Exception {
+		File previous = this.file("app-1.0.war", ZipDeltaDownloaderTest.war(1, 1));
+		this.files.put("/app-2.0.war", ZipDeltaDownloaderTest.war(2, 1), true);
+		assertNull(this.downloader().download(this.url("/app-2.0.war"), previous, new File(this.dir, "temp"), ZipDeltaDownloaderTest.sha1(new byte[1])));
+	}
+
+	public void testServerWithoutRangeIsNotUsed() throws Exception {
+		File previous = this.file("app-1.0.war", ZipDeltaDownloaderTest.war(1, 1));
+		byte[] v2 = ZipDeltaDownloaderTest.war(2, 1);
+		this.files.put("/app-2.0.war", v2, false);
+		assertNull(this.downloader().download(this.url("/app-2.0.war"), previous, new File(this.dir, "temp"), ZipDeltaDownloaderTest.sha1(v2)));
+	}
+
+	public void testNotAZipIsNotUsed() throws Exception {
+		File previous = this.file("app-1.0.war", ZipDeltaDownloaderTest.war(1, 1));
+		byte[] text = "not a zip archive, just some text long enough for an end record".getBytes("ISO-8859-1");
+		this.files.put("/app-2.0.war", text, true);
+		assertNull(this.downloader().download(this.url("/app-2.0.war"), previous, new File(this.dir, "temp"), ZipDeltaDownloaderTest.sha1(text)));
+	}
+
+	private ZipDeltaDownloader downloader() {
+		PrintStream logger = new PrintStream(this.log, true);
+		return new ZipDeltaDownloader(new NexusArtifactFetcher(this.url("/"), null, null, logger), logger);
+	}
+
+	private String url(String path) {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + path;
+	}
+
+	private File file(String name, byte[] content) throws IOException {
+		File file = new File(this.dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * 20 incompressible 32K entries; the one named by changed differs between
+	 * versions, as does index.jsp, whose length moves every entry after it.
+	 */
+	private static byte[] war(int version, int changed) throws IOException {
+		ByteArrayOutputStream war = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(war);
+		try {
+			ZipEntry index = new ZipEntry("index.jsp");
+			index.setTime(0);
+			zip.putNextEntry(index);
+			for (int i = 0; i < version; i++) {
+				zip.write(("version " + version + "\n").getBytes("ISO-8859-1"));
+			}
+			for (int i = 0; i < 20; i++) {
+				ZipEntry entry = new ZipEntry("WEB-INF/lib/lib" + i + ".jar");
+				entry.setTime(0);
+				zip.putNextEntry(entry);
+				byte[] content = new byte[32 * 1024];
+				new Random(i == changed ? i * 1000 + version : i).nextBytes(content);
+				zip.write(content);
+			}
+		} finally {
+			zip.close();
+		}
+		return war.toByteArray();
+	}
+
+	private static String sha1(byte[] content) throws Exception {
+		return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(content)).toLowerCase();
+	}
+
+	/**
+	 * Serves files whole, or by Range for those that honour it, counting the
+	 * bytes sent and the ranges served.
+	 */
+	static final class StubRangeServer implements HttpHandler {
+
+		private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		private final Set<String> ranged = new HashSet<String>();
+		long served;
+		int ranges;
+		// Honour only the one byte probe, then answer whole, as some proxies do.
+		boolean probeOnly;
+
+		synchronized void put(String path, byte[] content, boolean range) {
+			this.files.put(path, content);
+			if (range) {
+				this.ranged.add(path);
+			}
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			byte[] content;
+			boolean range;
+			synchronized (this) {
+				content = this.files.get(path);
+				range = this.ranged.contains(path);
+			}
+			if (content == null) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			int first = 0;
+			int last = content.length - 1;
+			int status = 200;
+			String header = exchange.getRequestHeaders().getFirst("Range");
+			Matcher matcher = header == null ? null : RANGE.matcher(header);
+			if (this.probeOnly && !"bytes=0-0".equals(header)) {
+				range = false;
+			}
+			if (range && matcher != null && matcher.matches()) {
+				first = Integer.parseInt(matcher.group(1));
+				last = Math.min(Integer.parseInt(matcher.group(2)), content.length - 1);
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+			}
+			int length = last - first + 1;
+			synchronized (this) {
+				this.served += length;
+				this.ranges += status == 206 ? 1 : 0;
+			}
+			exchange.sendResponseHeaders(status, length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(content, first, length);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			content.write(buffer, 0, read);
+		}
+		return content.toByteArray();
+	}
+
+	static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return ZipDeltaDownloaderTest.read(in);
+		} finally {
+			in.close();
+		}
+	}
+}
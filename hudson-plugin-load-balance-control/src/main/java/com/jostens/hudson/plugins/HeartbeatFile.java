@@ -0,0 +1,127 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * @author blaisj1
+ * @brief Puts heartbeat.gif into, or takes it out of, a web application's
+ *        root directory, as seen from wherever this runs; the builders run it
+ *        on the node rather than spawning a process for each change.
+ */
+public class HeartbeatFile {
+
+	public static final String HEARTBEAT_GIF = "heartbeat.gif";
+
+	// A file being served may be briefly held open against replacement.
+	private static final int RETRIES = 5;
+	private static final long RETRY_DELAY = 200;
+
+	/**
+	 * Write heartbeat.gif into the directory, putting the web application into
+	 * rotation. The GIF is written beside it and renamed into place, so the
+	 * load balancer never fetches half of one.
+	 */
+	public static void add(File webAppRoot) throws IOException {
+		byte[] gif = HeartbeatFile.load();
+		File file = new File(webAppRoot, HEARTBEAT_GIF);
+		File temp = new File(webAppRoot, HEARTBEAT_GIF + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(gif);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		if (temp.renameTo(file)) {
+			return;
+		}
+		// Windows will not rename over an existing file; one already in place needs no change.
+		if (file.isFile() && Arrays.equals(gif, HeartbeatFile.read(new FileInputStream(file)))) {
+			temp.delete();
+			return;
+		}
+		// Never delete the old one first: until the new one lands the node would look out of rotation.
+		for (int attempt = 0; attempt < RETRIES; attempt++) {
+			if (HeartbeatFile.replace(temp, file) || temp.renameTo(file)) {
+				return;
+			}
+			try {
+				Thread.sleep(RETRY_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		temp.delete();
+		throw new IOException("Unable to write " + file);
+	}
+
+	/**
+	 * Delete heartbeat.gif from the directory, taking the web application out
+	 * of rotation. Already gone is fine.
+	 */
+	public static void remove(File webAppRoot) throws IOException {
+		File file = new File(webAppRoot, HEARTBEAT_GIF);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to delete " + file);
+		}
+	}
+
+	/**
+	 * Move the file over the existing one in a single step with
+	 * java.nio.file.Files.move(ATOMIC_MOVE, REPLACE_EXISTING), which Windows
+	 * allows where renameTo does not. Looked up by reflection, as the plugin
+	 * still runs on Java 5 and 6, where this returns false.
+	 */
+	private static boolean replace(File source, File target) {
+		try {
+			Method toPath = File.class.getMethod("toPath");
+			Class<?> path = Class.forName("java.nio.file.Path");
+			Class<?> copyOption = Class.forName("java.nio.file.CopyOption");
+			Class<?> standardCopyOption = Class.forName("java.nio.file.StandardCopyOption");
+			Object options = Array.newInstance(copyOption, 2);
+			Array.set(options, 0, standardCopyOption.getField("ATOMIC_MOVE").get(null));
+			Array.set(options, 1, standardCopyOption.getField("REPLACE_EXISTING").get(null));
+			Method move = Class.forName("java.nio.file.Files").getMethod("move", path, path, options.getClass());
+			move.invoke(null, toPath.invoke(source), toPath.invoke(target), options);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static byte[] load() throws IOException {
+		InputStream in = HeartbeatFile.class.getClassLoader().getResourceAsStream(HEARTBEAT_GIF);
+		if (in == null) {
+			throw new IOException("Unable to find " + HEARTBEAT_GIF);
+		}
+		return HeartbeatFile.read(in);
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
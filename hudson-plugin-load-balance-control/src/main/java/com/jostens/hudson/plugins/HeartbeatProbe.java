@@ -0,0 +1,177 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author blaisj1
+ * @brief Waits for a load balancing change to show, instead of sleeping a
+ *        fixed time and hoping.
+ *
+ *        The URL is polled with a short, growing delay until it shows the
+ *        expected state. By default that is the heartbeat itself: a 2xx answer
+ *        means in rotation; any other answer, or none, means out of rotation.
+ *        That only shows what the load balancer will find at its next check,
+ *        not that it has checked. With an expected response pattern, the state
+ *        is seen when the body matches it instead, for admin pages that report
+ *        the pool member's status (e.g. "enabled" or "disabled").
+ *
+ *        Once out of rotation, a status page reporting active requests or
+ *        sessions can be polled the same way until that number drains to a
+ *        threshold, so in-flight work finishes before the application is
+ *        taken down.
+ */
+public class HeartbeatProbe {
+
+	private static final long INITIAL_DELAY = 250;
+	private static final long MAX_DELAY = 5000;
+	private static final int TIMEOUT = 10000;
+	// Enough of any status page to match against.
+	private static final int MAX_BODY = 64 * 1024;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final long timeoutMillis;
+	private final PrintStream logger;
+
+	public HeartbeatProbe(long timeoutMillis, PrintStream logger) {
+		this.timeoutMillis = timeoutMillis;
+		this.logger = logger;
+	}
+
+	/**
+	 * Poll the URL until it shows the expected state.
+	 *
+	 * @param inRotation whether the web application should now be in rotation.
+	 * @param expected a pattern the body must contain, or null to go by the
+	 *        status code.
+	 * @return milliseconds until the state was seen.
+	 * @throws IOException if the state is not seen within the timeout.
+	 */
+	public long await(String url, boolean inRotation, Pattern expected) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		long delay = INITIAL_DELAY;
+		int polls = 0;
+		String last;
+		while (true) {
+			polls++;
+			boolean seen;
+			try {
+				HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+				connection.setConnectTimeout(TIMEOUT);
+				connection.setReadTimeout(TIMEOUT);
+				connection.setUseCaches(false);
+				int status = connection.getResponseCode();
+				String body = HeartbeatProbe.read(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+				seen = expected != null ? expected.matcher(body).find() : (status >= 200 && status < 300) == inRotation;
+				last = "HTTP " + status;
+			} catch (IOException e) {
+				// Nothing answering is out of rotation as far as the load balancer is concerned.
+				seen = expected == null && !inRotation;
+				last = e.toString();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			if (seen) {
+				this.logger.println(url + " shows " + (inRotation ? "in" : "out of") + " rotation (" + last + ") after " + elapsed + "ms and " + polls + " polls.");
+				return elapsed;
+			}
+			long remaining = this.timeoutMillis - elapsed;
+			if (remaining <= 0) {
+				throw new IOException(url + " did not show " + (inRotation ? "in" : "out of") + " rotation within " + this.timeoutMillis + "ms; last answer: " + last);
+			}
+			Thread.sleep(Math.min(delay, remaining));
+			delay = Math.min(delay * 3 / 2, MAX_DELAY);
+		}
+	}
+
+	/**
+	 * Poll a status URL until the metric it reports drains to the threshold.
+	 * The metric is the sum of every match of the pattern in the body (its
+	 * first group, if it has one), e.g. one count per session age bucket.
+	 *
+	 * @return milliseconds until the metric was at or below the threshold.
+	 * @throws IOException if it is not within the timeout.
+	 */
+	public long awaitDrained(String url, Pattern metric, long threshold) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		long delay = INITIAL_DELAY;
+		long previous = -1;
+		String last;
+		while (true) {
+			try {
+				HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+				connection.setConnectTimeout(TIMEOUT);
+				connection.setReadTimeout(TIMEOUT);
+				connection.setUseCaches(false);
+				int status = connection.getResponseCode();
+				String body = HeartbeatProbe.read(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+				if (status < 200 || status >= 300) {
+					last = "HTTP " + status;
+				} else {
+					long value = HeartbeatProbe.sum(metric, body);
+					long elapsed = System.currentTimeMillis() - start;
+					if (value <= threshold) {
+						this.logger.println(url + " drained to " + value + " after " + elapsed + "ms.");
+						return elapsed;
+					}
+					if (value != previous) {
+						this.logger.println("  " + value + " active after " + elapsed + "ms; waiting for " + threshold + ".");
+						previous = value;
+					}
+					last = String.valueOf(value) + " active";
+				}
+			} catch (IOException e) {
+				last = e.toString();
+			}
+			long remaining = start + this.timeoutMillis - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new IOException(url + " did not drain to " + threshold + " within " + this.timeoutMillis + "ms; last answer: " + last);
+			}
+			Thread.sleep(Math.min(delay, remaining));
+			delay = Math.min(delay * 3 / 2, MAX_DELAY);
+		}
+	}
+
+	// No match counts as none active: Tomcat's session list has no lines once it is empty.
+	private static long sum(Pattern metric, String body) {
+		Matcher matcher = metric.matcher(body);
+		long sum = 0;
+		while (matcher.find()) {
+			String value = matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+			if (value == null) {
+				continue;
+			}
+			try {
+				sum += Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		return sum;
+	}
+
+	// Read to the end so the connection can be reused; keep only the start.
+	private static String read(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (body.size() < MAX_BODY) {
+					body.write(buffer, 0, Math.min(read, MAX_BODY - body.size()));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return body.toString("ISO-8859-1");
+	}
+}
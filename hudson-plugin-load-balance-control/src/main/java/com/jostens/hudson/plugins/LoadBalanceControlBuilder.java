@@ -2,40 +2,75 @@ package com.jostens.hudson.plugins;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
-import hudson.tasks.BatchFile;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.Builder;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
 public class LoadBalanceControlBuilder extends Builder {
 
-	private static final String HEARTBEAT_GIF = "heartbeat.gif";
-	private static final String removeHeartBeat = "del \"{webAppRootDirectory}\\" + HEARTBEAT_GIF + "\"";
 	private static final String HEARTBEAT_TYPE = "HEARTBEAT";
+	private static final String REST_POOL_TYPE = "REST_POOL";
 	private static final String ADD_ACTION = "ADD";
 	private static final String REMOVE_ACTION = "REMOVE";
+	// Seconds to wait for the load balancer when no timeout is given.
+	private static final long DEFAULT_HEARTBEAT_TIMEOUT = 120;
+	// Seconds between the load balancer's health checks when none is given.
+	private static final long DEFAULT_MONITOR_INTERVAL = 30;
+	// Seconds to wait for connections to drain when no timeout is given.
+	private static final long DEFAULT_DRAIN_TIMEOUT = 300;
 
 	private final String action;
 	private final String type;
 	private final String webAppRootDirectory;
+	private final String heartbeatUrl;
+	private final String expectedResponse;
+	private final String heartbeatTimeout;
+	private final String drainUrl;
+	private final String drainPattern;
+	private final String drainThreshold;
+	private final String drainTimeout;
+	private final String poolUrl;
+	private final String poolMembers;
+	private final String poolUsername;
+	private final String poolPassword;
+	private final String monitorInterval;
 	private EnvVars environmentVariables;
 
 	@DataBoundConstructor
-	public LoadBalanceControlBuilder(String action, String type, String webAppRootDirectory) {
+	public LoadBalanceControlBuilder(String action, String type, String webAppRootDirectory, String heartbeatUrl, String expectedResponse, String heartbeatTimeout, String drainUrl, String drainPattern, String drainThreshold, String drainTimeout, String poolUrl, String poolMembers, String poolUsername, String poolPassword, String monitorInterval) {
 		this.action = action;
 		this.type = type;
 		this.webAppRootDirectory = webAppRootDirectory;
+		this.heartbeatUrl = heartbeatUrl;
+		this.expectedResponse = expectedResponse;
+		this.heartbeatTimeout = heartbeatTimeout;
+		this.drainUrl = drainUrl;
+		this.drainPattern = drainPattern;
+		this.drainThreshold = drainThreshold;
+		this.drainTimeout = drainTimeout;
+		this.poolUrl = poolUrl;
+		this.poolMembers = poolMembers;
+		this.poolUsername = poolUsername;
+		this.poolPassword = poolPassword;
+		this.monitorInterval = monitorInterval;
 	}
 
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
@@ -63,13 +98,7 @@ public class LoadBalanceControlBuilder extends Builder {
 				listener.getLogger().println("ADDING LOAD BALANCING HEARTBEAT");
 				listener.getLogger().println("----------------------------------");
 
-				successFlag = this.addHeartBeat(listener);
-				
-				listener.getLogger().println("----------------------------------");
-				listener.getLogger().println("PAUSING FOR 30 SECONDS FOR F5");
-				listener.getLogger().println("----------------------------------");
-				
-				Thread.sleep(30000);
+				successFlag = this.toggleHeartBeat(launcher, listener, true) && this.awaitLoadBalancer(launcher, listener, true);
 			}
 
 			// HEARTBEAT.GIF - Remove from Load Balancing.
@@ -79,14 +108,41 @@ public class LoadBalanceControlBuilder extends Builder {
 				listener.getLogger().println("REMOVING LOAD BALANCING HEARTBEAT");
 				listener.getLogger().println("----------------------------------");
 
-				BatchFile command = new BatchFile(generateRemoveHeartBeatScript());
-				successFlag = command.perform(build, launcher, listener);
-				
+				successFlag = this.toggleHeartBeat(launcher, listener, false) && this.awaitLoadBalancer(launcher, listener, false);
+				if (successFlag) {
+					this.awaitDrained(launcher, listener);
+				}
+			}
+		} else if (REST_POOL_TYPE.equals(this.type)) {
+
+			List<String> members = LoadBalanceControlBuilder.split(this.environmentVariables.expand(this.poolMembers));
+			if (members.isEmpty()) {
+				listener.fatalError("No pool members given.");
+				return false;
+			}
+			LoadBalancerDriver driver = new RestPoolDriver(this.environmentVariables.expand(this.poolUrl), this.environmentVariables.expand(this.poolUsername), this.environmentVariables.expand(this.poolPassword));
+
+			// REST POOL - Add into Load Balancing.
+			if (ADD_ACTION.equals(this.action)) {
+
 				listener.getLogger().println("----------------------------------");
-				listener.getLogger().println("PAUSING FOR 30 SECONDS FOR F5");
+				listener.getLogger().println("ENABLING POOL MEMBERS");
 				listener.getLogger().println("----------------------------------");
-				
-				Thread.sleep(30000);				
+
+				successFlag = this.setEnabled(launcher, listener, driver, members, true);
+			}
+
+			// REST POOL - Remove from Load Balancing.
+			if (REMOVE_ACTION.equals(this.action)) {
+
+				listener.getLogger().println("----------------------------------");
+				listener.getLogger().println("DISABLING POOL MEMBERS");
+				listener.getLogger().println("----------------------------------");
+
+				successFlag = this.setEnabled(launcher, listener, driver, members, false);
+				if (successFlag) {
+					this.awaitDrained(launcher, listener);
+				}
 			}
 		} else {
 			listener.fatalError("Unsupported Load Balancing Type.");
@@ -97,44 +153,257 @@ public class LoadBalanceControlBuilder extends Builder {
 
 	}
 
-	private String generateRemoveHeartBeatScript() {
-		String command = LoadBalanceControlBuilder.removeHeartBeat;
-		command = command.replace("{webAppRootDirectory}", this.webAppRootDirectory);
+	/**
+	 * Wait for the load balancer to see the heartbeat change. Only a status
+	 * page matched against an expected response shows what the load balancer
+	 * itself has seen. The heartbeat file alone only shows that the change is
+	 * being served; the load balancer notices it at its next health check, so
+	 * without an expected response the wait always lasts the full monitor
+	 * interval from the change, and polling the heartbeat only checks the
+	 * change was made. The log says which of the two it is doing.
+	 */
+	private boolean awaitLoadBalancer(Launcher launcher, BuildListener listener, boolean inRotation) throws InterruptedException {
+		long changed = System.currentTimeMillis();
+		String url = this.environmentVariables.expand(this.heartbeatUrl);
+		String expected = this.environmentVariables.expand(this.expectedResponse);
+		boolean statusPage = expected != null && expected.trim().length() > 0;
+		if (url != null && url.trim().length() > 0) {
+			listener.getLogger().println("----------------------------------");
+			listener.getLogger().println(statusPage ? "WAITING FOR F5 TO SEE THE CHANGE" : "CHECKING THE HEARTBEAT CHANGE IS SERVED (F5 NOT CONFIRMED)");
+			listener.getLogger().println("----------------------------------");
+
+			long timeout = LoadBalanceControlBuilder.parseLong(this.environmentVariables.expand(this.heartbeatTimeout));
+			try {
+				// Probe from the node, which can reach the web application even when the master cannot.
+				launcher.getChannel().call(new AwaitHeartbeat(url.trim(), inRotation, expected, (timeout > 0 ? timeout : DEFAULT_HEARTBEAT_TIMEOUT) * 1000, listener));
+			} catch (IOException e) {
+				Util.displayIOException(e, listener);
+				e.printStackTrace(listener.fatalError("Load balancing change was not seen."));
+				return false;
+			}
+			if (statusPage) {
+				return true;
+			}
+		}
+
+		long interval = LoadBalanceControlBuilder.parseLong(this.environmentVariables.expand(this.monitorInterval));
+		interval = interval > 0 ? interval : DEFAULT_MONITOR_INTERVAL;
+		long remaining = interval * 1000 - (System.currentTimeMillis() - changed);
+		if (remaining > 0) {
+			listener.getLogger().println("----------------------------------");
+			listener.getLogger().println("PAUSING FOR " + ((remaining + 999) / 1000) + " SECONDS FOR F5");
+			listener.getLogger().println("----------------------------------");
+			listener.getLogger().println("Without an Expected Response nothing shows when F5 has seen the change, so the full " + interval + " second Monitor Interval from the change is waited out.");
+
+			Thread.sleep(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for the requests or sessions still on the web application to
+	 * finish, if a drain URL is given. Draining is best effort: past the
+	 * deadline the removal goes ahead anyway.
+	 */
+	private void awaitDrained(Launcher launcher, BuildListener listener) throws InterruptedException {
+		String url = this.environmentVariables.expand(this.drainUrl);
+		if (url == null || url.trim().length() == 0) {
+			return;
+		}
+
+		listener.getLogger().println("----------------------------------");
+		listener.getLogger().println("WAITING FOR CONNECTIONS TO DRAIN");
+		listener.getLogger().println("----------------------------------");
+
+		long timeout = LoadBalanceControlBuilder.parseLong(this.environmentVariables.expand(this.drainTimeout));
+		String pattern = this.environmentVariables.expand(this.drainPattern);
+		AwaitDrained awaitDrained = new AwaitDrained(url.trim(), pattern, LoadBalanceControlBuilder.parseLong(this.environmentVariables.expand(this.drainThreshold)), (timeout > 0 ? timeout : DEFAULT_DRAIN_TIMEOUT) * 1000, listener);
+		try {
+			long drained = launcher.getChannel().call(awaitDrained);
+			listener.getLogger().println("Drain time: " + drained + "ms.");
+		} catch (IOException e) {
+			listener.getLogger().println("Not drained; removing anyway. " + e.getMessage());
+		}
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
 
-		return this.environmentVariables.expand(command);
+	/**
+	 * Runs on the node: polls the heartbeat URL until it shows the change.
+	 */
+	static final class AwaitHeartbeat implements Callable<Long, IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String url;
+		private final boolean inRotation;
+		private final String expected;
+		private final long timeoutMillis;
+		private final TaskListener listener;
+
+		AwaitHeartbeat(String url, boolean inRotation, String expected, long timeoutMillis, TaskListener listener) {
+			this.url = url;
+			this.inRotation = inRotation;
+			this.expected = expected;
+			this.timeoutMillis = timeoutMillis;
+			this.listener = listener;
+		}
+
+		public Long call() throws IOException {
+			HeartbeatProbe probe = new HeartbeatProbe(this.timeoutMillis, this.listener.getLogger());
+			try {
+				Pattern pattern = this.expected == null || this.expected.trim().length() == 0 ? null : Pattern.compile(this.expected.trim());
+				return probe.await(this.url, this.inRotation, pattern);
+			} catch (PatternSyntaxException e) {
+				throw new IOException("Invalid expected response: " + e.getMessage());
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for " + this.url);
+			}
+		}
 	}
 
-	private Boolean addHeartBeat(BuildListener listener) {
+	/**
+	 * Runs on the node: polls the drain URL until its metric drains.
+	 */
+	static final class AwaitDrained implements Callable<Long, IOException> {
+
+		private static final long serialVersionUID = 1L;
+		// Every number on the page, for a page that reports just the count.
+		private static final String DEFAULT_PATTERN = "\\d+";
+
+		private final String url;
+		private final String pattern;
+		private final long threshold;
+		private final long timeoutMillis;
+		private final TaskListener listener;
+
+		AwaitDrained(String url, String pattern, long threshold, long timeoutMillis, TaskListener listener) {
+			this.url = url;
+			this.pattern = pattern;
+			this.threshold = threshold;
+			this.timeoutMillis = timeoutMillis;
+			this.listener = listener;
+		}
 
-		Boolean result = false;
-		File file = new File(this.environmentVariables.expand(this.webAppRootDirectory) + "\\" + HEARTBEAT_GIF);
+		public Long call() throws IOException {
+			HeartbeatProbe probe = new HeartbeatProbe(this.timeoutMillis, this.listener.getLogger());
+			try {
+				Pattern metric = Pattern.compile(this.pattern == null || this.pattern.trim().length() == 0 ? DEFAULT_PATTERN : this.pattern.trim());
+				return probe.awaitDrained(this.url, metric, this.threshold);
+			} catch (PatternSyntaxException e) {
+				throw new IOException("Invalid drain metric pattern: " + e.getMessage());
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for " + this.url);
+			}
+		}
+	}
+
+	/**
+	 * Change the members through the driver, on the node, and check that the
+	 * load balancer reports every one of them in the state asked for.
+	 */
+	private boolean setEnabled(Launcher launcher, BuildListener listener, LoadBalancerDriver driver, List<String> members, boolean enabled) throws InterruptedException {
 		try {
-			this.writeToFile(this.getClass().getClassLoader().getResourceAsStream(HEARTBEAT_GIF), file);
-			result = true;
+			long start = System.currentTimeMillis();
+			Map<String, Boolean> states = launcher.getChannel().call(new ChangePool(driver, members, enabled));
+			boolean confirmed = true;
+			for (String member : members) {
+				Boolean state = states.get(member);
+				listener.getLogger().println("  " + member + ": " + (state == null ? "not reported" : state ? "enabled" : "disabled"));
+				confirmed &= state != null && state == enabled;
+			}
+			if (!confirmed) {
+				listener.fatalError("The load balancer did not confirm every member " + (enabled ? "enabled." : "disabled."));
+				return false;
+			}
+			listener.getLogger().println("Confirmed " + members.size() + " members " + (enabled ? "enabled" : "disabled") + " in " + (System.currentTimeMillis() - start) + "ms.");
+			return true;
 		} catch (IOException e) {
 			Util.displayIOException(e, listener);
-			e.printStackTrace(listener.fatalError("Unable to write heatbeat.gif"));
-			result = false;
+			e.printStackTrace(listener.fatalError("Unable to change pool members."));
+			return false;
+		}
+	}
+
+	// One value per line, or comma separated.
+	private static List<String> split(String values) {
+		List<String> list = new ArrayList<String>();
+		if (values == null) {
+			return list;
+		}
+		for (String value : values.split("[\\r\\n,]+")) {
+			if (value.trim().length() > 0) {
+				list.add(value.trim());
+			}
 		}
-		return result;
+		return list;
 	}
 
-	private void writeToFile(InputStream input, File file) throws IOException {
+	/**
+	 * Runs on the node: changes all the members in one go through the driver.
+	 */
+	private static final class ChangePool implements Callable<Map<String, Boolean>, IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final LoadBalancerDriver driver;
+		private final List<String> members;
+		private final boolean enabled;
 
-		// write the inputStream to a FileOutputStream
-		OutputStream out = new FileOutputStream(file);
+		ChangePool(LoadBalancerDriver driver, List<String> members, boolean enabled) {
+			this.driver = driver;
+			this.members = new ArrayList<String>(members);
+			this.enabled = enabled;
+		}
 
-		int read = 0;
-		byte[] bytes = new byte[1024];
+		public Map<String, Boolean> call() throws IOException {
+			return new HashMap<String, Boolean>(this.driver.setEnabled(this.members, this.enabled));
+		}
+	}
 
-		while ((read = input.read(bytes)) != -1) {
-			out.write(bytes, 0, read);
+	/**
+	 * Add or remove heartbeat.gif on the node that holds the web application.
+	 */
+	private boolean toggleHeartBeat(Launcher launcher, BuildListener listener, boolean add) throws InterruptedException {
+		String webAppRoot = this.environmentVariables.expand(this.webAppRootDirectory);
+		try {
+			new FilePath(launcher.getChannel(), webAppRoot).act(new ToggleHeartbeat(add));
+			listener.getLogger().println((add ? "Wrote " : "Removed ") + HeartbeatFile.HEARTBEAT_GIF + (add ? " to " : " from ") + webAppRoot);
+			return true;
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to " + (add ? "write " : "remove ") + HeartbeatFile.HEARTBEAT_GIF));
+			return false;
 		}
+	}
+
+	/**
+	 * Runs on the node: writes or deletes heartbeat.gif in the directory.
+	 */
+	static final class ToggleHeartbeat implements FilePath.FileCallable<Void> {
 
-		input.close();
-		out.flush();
-		out.close();
+		private static final long serialVersionUID = 1L;
 
+		private final boolean add;
+
+		ToggleHeartbeat(boolean add) {
+			this.add = add;
+		}
+
+		public Void invoke(File webAppRoot, VirtualChannel channel) throws IOException, InterruptedException {
+			if (this.add) {
+				HeartbeatFile.add(webAppRoot);
+			} else {
+				HeartbeatFile.remove(webAppRoot);
+			}
+			return null;
+		}
 	}
 
 	public EnvVars getEnvironmentVariables() {
@@ -166,6 +435,90 @@ public class LoadBalanceControlBuilder extends Builder {
 		return webAppRootDirectory;
 	}
 
+	/**
+	 * @return the heartbeatUrl
+	 */
+	public String getHeartbeatUrl() {
+		return heartbeatUrl;
+	}
+
+	/**
+	 * @return the expectedResponse
+	 */
+	public String getExpectedResponse() {
+		return expectedResponse;
+	}
+
+	/**
+	 * @return the heartbeatTimeout
+	 */
+	public String getHeartbeatTimeout() {
+		return heartbeatTimeout;
+	}
+
+	/**
+	 * @return the drainUrl
+	 */
+	public String getDrainUrl() {
+		return drainUrl;
+	}
+
+	/**
+	 * @return the drainPattern
+	 */
+	public String getDrainPattern() {
+		return drainPattern;
+	}
+
+	/**
+	 * @return the drainThreshold
+	 */
+	public String getDrainThreshold() {
+		return drainThreshold;
+	}
+
+	/**
+	 * @return the drainTimeout
+	 */
+	public String getDrainTimeout() {
+		return drainTimeout;
+	}
+
+	/**
+	 * @return the poolUrl
+	 */
+	public String getPoolUrl() {
+		return poolUrl;
+	}
+
+	/**
+	 * @return the poolMembers
+	 */
+	public String getPoolMembers() {
+		return poolMembers;
+	}
+
+	/**
+	 * @return the poolUsername
+	 */
+	public String getPoolUsername() {
+		return poolUsername;
+	}
+
+	/**
+	 * @return the poolPassword
+	 */
+	public String getPoolPassword() {
+		return poolPassword;
+	}
+
+	/**
+	 * @return the monitorInterval
+	 */
+	public String getMonitorInterval() {
+		return monitorInterval;
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends Descriptor<Builder> {
 		public DescriptorImpl() {
@@ -177,7 +530,7 @@ public class LoadBalanceControlBuilder extends Builder {
 		}
 
 		public LoadBalanceControlBuilder newInstance(StaplerRequest req) throws Descriptor.FormException {
-			return new LoadBalanceControlBuilder(req.getParameter("action"), req.getParameter("type"), req.getParameter("webAppRootDirectory"));
+			return new LoadBalanceControlBuilder(req.getParameter("action"), req.getParameter("type"), req.getParameter("webAppRootDirectory"), req.getParameter("heartbeatUrl"), req.getParameter("expectedResponse"), req.getParameter("heartbeatTimeout"), req.getParameter("drainUrl"), req.getParameter("drainPattern"), req.getParameter("drainThreshold"), req.getParameter("drainTimeout"), req.getParameter("poolUrl"), req.getParameter("poolMembers"), req.getParameter("poolUsername"), req.getParameter("poolPassword"), req.getParameter("monitorInterval"));
 		}
 
 		public LoadBalanceControlBuilder newInstance(StaplerRequest req, JSONObject formData) throws Descriptor.FormException {
@@ -0,0 +1,26 @@
+package com.jostens.hudson.plugins;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author blaisj1
+ * @brief Puts pool members into or out of rotation by talking to the load
+ *        balancer itself, rather than through a heartbeat it polls.
+ *
+ *        Drivers are built on the master and run on the node, so they must be
+ *        serializable.
+ */
+public interface LoadBalancerDriver extends Serializable {
+
+	/**
+	 * Enable or disable the members, in as few calls as the load balancer
+	 * allows.
+	 *
+	 * @return each member's state as the load balancer reports it afterwards,
+	 *         true for in rotation; a member it does not report is absent.
+	 */
+	Map<String, Boolean> setEnabled(List<String> members, boolean enabled) throws IOException;
+}
@@ -0,0 +1,143 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.DatatypeConverter;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * @author blaisj1
+ * @brief Enables and disables pool members through a REST pool API, all the
+ *        members in one call, and confirms their state from the answer.
+ *
+ *        The members are changed with one PUT to {pool}/members of
+ *        {"members":[{"name":"host:port","state":"enabled"}, ...]}, with
+ *        "disabled" to take them out. The answer lists the members and their
+ *        states the same way; if it leaves any of ours out, their state is read
+ *        with a GET of {pool}/members.
+ */
+public class RestPoolDriver implements LoadBalancerDriver {
+
+	private static final long serialVersionUID = 1L;
+	public static final String ENABLED = "enabled";
+	public static final String DISABLED = "disabled";
+	private static final int TIMEOUT = 30000;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final String poolUrl;
+	private final String authorization;
+
+	/**
+	 * @param username for basic authentication, or null for none.
+	 */
+	public RestPoolDriver(String poolUrl, String username, String password) {
+		this.poolUrl = poolUrl.endsWith("/") ? poolUrl.substring(0, poolUrl.length() - 1) : poolUrl;
+		this.authorization = RestPoolDriver.basicAuthorization(username, password);
+	}
+
+	public Map<String, Boolean> setEnabled(List<String> members, boolean enabled) throws IOException {
+		JSONArray changes = new JSONArray();
+		for (String member : members) {
+			changes.add(new JSONObject().element("name", member).element("state", enabled ? ENABLED : DISABLED));
+		}
+		Map<String, Boolean> states = RestPoolDriver.parse(this.request("PUT", new JSONObject().element("members", changes).toString()));
+		if (!states.keySet().containsAll(members)) {
+			states = RestPoolDriver.parse(this.request("GET", null));
+		}
+
+		Map<String, Boolean> confirmed = new LinkedHashMap<String, Boolean>();
+		for (String member : members) {
+			if (states.containsKey(member)) {
+				confirmed.put(member, states.get(member));
+			}
+		}
+		return confirmed;
+	}
+
+	private String request(String method, String body) throws IOException {
+		String url = this.poolUrl + "/members";
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Accept", "application/json");
+		if (this.authorization != null) {
+			connection.setRequestProperty("Authorization", this.authorization);
+		}
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		if (in != null) {
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					answer.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if (status < 200 || status >= 300) {
+			throw new IOException(method + " " + url + " failed: HTTP " + status + " " + answer.toString("UTF-8"));
+		}
+		return answer.toString("UTF-8");
+	}
+
+	// Member name to whether it is enabled, for every member the answer lists.
+	private static Map<String, Boolean> parse(String answer) throws IOException {
+		Map<String, Boolean> states = new LinkedHashMap<String, Boolean>();
+		if (answer.trim().length() == 0) {
+			return states;
+		}
+		JSONArray members;
+		try {
+			members = JSONObject.fromObject(answer).optJSONArray("members");
+		} catch (JSONException e) {
+			throw new IOException("Unable to read pool members: " + e.getMessage());
+		}
+		if (members == null) {
+			return states;
+		}
+		for (int i = 0; i < members.size(); i++) {
+			JSONObject member = members.optJSONObject(i);
+			if (member != null && member.optString("name").length() > 0) {
+				states.put(member.optString("name"), ENABLED.equalsIgnoreCase(member.optString("state")));
+			}
+		}
+		return states;
+	}
+
+	private static String basicAuthorization(String username, String password) {
+		if (username == null || username.length() == 0) {
+			return null;
+		}
+		String credentials = username + ":" + (password == null ? "" : password);
+		try {
+			return "Basic " + DatatypeConverter.printBase64Binary(credentials.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
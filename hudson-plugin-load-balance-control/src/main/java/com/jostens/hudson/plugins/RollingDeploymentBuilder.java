@@ -0,0 +1,507 @@
+package com.jostens.hudson.plugins;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Builder;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * @author blaisj1
+ * @brief Rolls a deployment across a pool of servers a batch at a time: each
+ *        server in the batch is taken out of rotation, drained, deployed to by
+ *        the deploy command, checked for health and put back into rotation,
+ *        before the next batch starts. The servers in a batch are handled
+ *        concurrently; a batch with a failed server ends the roll out, leaving
+ *        the failed servers out of rotation.
+ *
+ *        After each heartbeat change the load balancer is given time to see
+ *        it: until a status URL reporting the load balancer's view matches the
+ *        expected response, or otherwise for one monitor interval, since the
+ *        heartbeat itself only shows what the next health check will find.
+ *
+ *        The per-server settings are templates in which {server} is replaced
+ *        by the server's name; the deploy command also gets it as %SERVER%.
+ */
+public class RollingDeploymentBuilder extends Builder {
+
+	private static final String SERVER_TOKEN = "{server}";
+	// Seconds to wait for each probe when no timeout is given.
+	private static final long DEFAULT_TIMEOUT = 300;
+	// Seconds between the load balancer's health checks when none is given.
+	private static final long DEFAULT_MONITOR_INTERVAL = 30;
+
+	private final String servers;
+	private final String batchSize;
+	private final String minimumInService;
+	private final String webAppRootDirectory;
+	private final String heartbeatUrl;
+	private final String drainUrl;
+	private final String drainPattern;
+	private final String deployCommand;
+	private final String healthUrl;
+	private final String timeout;
+	private final String statusUrl;
+	private final String outOfRotationResponse;
+	private final String inRotationResponse;
+	private final String monitorInterval;
+	private EnvVars environmentVariables;
+
+	@DataBoundConstructor
+	public RollingDeploymentBuilder(String servers, String batchSize, String minimumInService, String webAppRootDirectory, String heartbeatUrl, String drainUrl, String drainPattern, String deployCommand, String healthUrl, String timeout, String statusUrl, String outOfRotationResponse, String inRotationResponse, String monitorInterval) {
+		this.servers = servers;
+		this.batchSize = batchSize;
+		this.minimumInService = minimumInService;
+		this.webAppRootDirectory = webAppRootDirectory;
+		this.heartbeatUrl = heartbeatUrl;
+		this.drainUrl = drainUrl;
+		this.drainPattern = drainPattern;
+		this.deployCommand = deployCommand;
+		this.healthUrl = healthUrl;
+		this.timeout = timeout;
+		this.statusUrl = statusUrl;
+		this.outOfRotationResponse = outOfRotationResponse;
+		this.inRotationResponse = inRotationResponse;
+		this.monitorInterval = monitorInterval;
+	}
+
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+		try {
+			this.environmentVariables = build.getEnvironment(listener);
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to gather Hudson environment variables."));
+			return false;
+		}
+
+		List<String> pool = RollingDeploymentBuilder.split(this.environmentVariables.expand(this.servers));
+		if (pool.isEmpty()) {
+			listener.fatalError("No servers given.");
+			return false;
+		}
+		// Never take the pool below the floor; a batch of 1 is the least there is.
+		int batch = (int) Math.max(1, RollingDeploymentBuilder.parseLong(this.environmentVariables.expand(this.batchSize)));
+		int floor = (int) RollingDeploymentBuilder.parseLong(this.environmentVariables.expand(this.minimumInService));
+		batch = Math.min(batch, pool.size() - floor);
+		if (batch < 1) {
+			listener.fatalError("Unable to keep " + floor + " of " + pool.size() + " servers in service while deploying.");
+			return false;
+		}
+
+		String pattern = this.environmentVariables.expand(this.drainPattern);
+		if (!RollingDeploymentBuilder.isBlank(pattern)) {
+			try {
+				Pattern.compile(pattern.trim());
+			} catch (PatternSyntaxException e) {
+				listener.fatalError("Invalid drain metric pattern: " + e.getMessage());
+				return false;
+			}
+		}
+		FilePath workspace = build.getWorkspace();
+		if (workspace == null) {
+			listener.fatalError("No workspace to run the deploy command in.");
+			return false;
+		}
+
+		long seconds = RollingDeploymentBuilder.parseLong(this.environmentVariables.expand(this.timeout));
+		RollOut rollOut = new RollOut(pool, batch, launcher, workspace, this.environmentVariables, listener);
+		rollOut.webAppRootDirectory = this.environmentVariables.expand(this.webAppRootDirectory);
+		rollOut.heartbeatUrl = this.environmentVariables.expand(this.heartbeatUrl);
+		rollOut.drainUrl = this.environmentVariables.expand(this.drainUrl);
+		rollOut.drainPattern = pattern;
+		rollOut.deployCommand = this.deployCommand;
+		rollOut.healthUrl = this.environmentVariables.expand(this.healthUrl);
+		rollOut.timeoutMillis = (seconds > 0 ? seconds : DEFAULT_TIMEOUT) * 1000;
+		rollOut.statusUrl = this.environmentVariables.expand(this.statusUrl);
+		rollOut.outOfRotationResponse = this.environmentVariables.expand(this.outOfRotationResponse);
+		rollOut.inRotationResponse = this.environmentVariables.expand(this.inRotationResponse);
+		long interval = RollingDeploymentBuilder.parseLong(this.environmentVariables.expand(this.monitorInterval));
+		rollOut.monitorIntervalMillis = (interval > 0 ? interval : DEFAULT_MONITOR_INTERVAL) * 1000;
+		try {
+			rollOut.run();
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Rolling deployment stopped."));
+			return false;
+		}
+		return true;
+	}
+
+	// One value per line, or comma separated.
+	private static List<String> split(String values) {
+		List<String> list = new ArrayList<String>();
+		if (values == null) {
+			return list;
+		}
+		for (String value : values.split("[\\r\\n,]+")) {
+			if (value.trim().length() > 0) {
+				list.add(value.trim());
+			}
+		}
+		return list;
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	private static boolean isBlank(String value) {
+		return value == null || value.trim().length() == 0;
+	}
+
+	/**
+	 * Rolls the deployment across the pool, one batch at a time. It runs on the
+	 * master and does each step on the node, through the channel and the
+	 * launcher, so an aborted build interrupts the servers' threads and kills
+	 * any deploy command still running.
+	 */
+	private static final class RollOut {
+
+		private final List<String> pool;
+		private final int batchSize;
+		private final Launcher launcher;
+		private final FilePath workspace;
+		private final EnvVars environment;
+		private final BuildListener listener;
+		private String webAppRootDirectory;
+		private String heartbeatUrl;
+		private String drainUrl;
+		private String drainPattern;
+		private String deployCommand;
+		private String healthUrl;
+		private long timeoutMillis;
+		private String statusUrl;
+		private String outOfRotationResponse;
+		private String inRotationResponse;
+		private long monitorIntervalMillis;
+
+		RollOut(List<String> pool, int batchSize, Launcher launcher, FilePath workspace, EnvVars environment, BuildListener listener) {
+			this.pool = new ArrayList<String>(pool);
+			this.batchSize = batchSize;
+			this.launcher = launcher;
+			this.workspace = workspace;
+			this.environment = environment;
+			this.listener = listener;
+		}
+
+		void run() throws IOException, InterruptedException {
+			PrintStream logger = this.listener.getLogger();
+			long start = System.currentTimeMillis();
+			int batches = (this.pool.size() + this.batchSize - 1) / this.batchSize;
+			logger.println("Rolling out to " + this.pool.size() + " servers, " + this.batchSize + " at a time (" + batches + " batches).");
+			Map<String, String> results = new LinkedHashMap<String, String>();
+			ExecutorService executor = Executors.newFixedThreadPool(this.batchSize);
+			try {
+				for (int first = 0; first < this.pool.size(); first += this.batchSize) {
+					List<String> batch = this.pool.subList(first, Math.min(first + this.batchSize, this.pool.size()));
+					logger.println("----------------------------------");
+					logger.println("BATCH " + (first / this.batchSize + 1) + " OF " + batches + ": " + batch);
+					logger.println("----------------------------------");
+					if (!this.roll(batch, executor, results)) {
+						for (String server : this.pool.subList(first + batch.size(), this.pool.size())) {
+							results.put(server, "not attempted");
+						}
+						RollOut.report(logger, results);
+						throw new IOException("Batch " + (first / this.batchSize + 1) + " failed; servers after it were left alone.");
+					}
+				}
+			} finally {
+				// On abort this interrupts the servers' threads, which kills their deploy commands.
+				executor.shutdownNow();
+			}
+			RollOut.report(logger, results);
+			logger.println("Rolled out to " + this.pool.size() + " servers in " + (System.currentTimeMillis() - start) + "ms.");
+		}
+
+		/**
+		 * @return whether every server in the batch was deployed and put back.
+		 */
+		private boolean roll(List<String> batch, ExecutorService executor, Map<String, String> results) throws InterruptedException {
+			final PrintStream logger = this.listener.getLogger();
+			Map<String, Future<String>> servers = new LinkedHashMap<String, Future<String>>();
+			for (final String server : batch) {
+				servers.put(server, executor.submit(new java.util.concurrent.Callable<String>() {
+					public String call() throws IOException, InterruptedException {
+						// Buffer each server's log so concurrent servers do not interleave.
+						ByteArrayOutputStream log = new ByteArrayOutputStream();
+						TaskListener out = new StreamTaskListener(log);
+						try {
+							return RollOut.this.rollServer(server, out);
+						} finally {
+							out.getLogger().flush();
+							synchronized (logger) {
+								logger.println("[" + server + "]");
+								logger.print(log.toString());
+							}
+						}
+					}
+				}));
+			}
+			boolean success = true;
+			for (Map.Entry<String, Future<String>> server : servers.entrySet()) {
+				try {
+					results.put(server.getKey(), server.getValue().get());
+				} catch (ExecutionException e) {
+					success = false;
+					results.put(server.getKey(), "FAILED, left out of rotation - " + e.getCause());
+				}
+			}
+			return success;
+		}
+
+		/**
+		 * Out of rotation, drain, deploy, check health, back into rotation.
+		 *
+		 * @return the time each stage took.
+		 */
+		private String rollServer(String server, TaskListener listener) throws IOException, InterruptedException {
+			PrintStream logger = listener.getLogger();
+			VirtualChannel channel = this.launcher.getChannel();
+			FilePath webAppRoot = new FilePath(channel, RollOut.fill(this.webAppRootDirectory, server));
+			StringBuilder timings = new StringBuilder();
+			long start = System.currentTimeMillis();
+
+			webAppRoot.act(new LoadBalanceControlBuilder.ToggleHeartbeat(false));
+			logger.println("Removed " + HeartbeatFile.HEARTBEAT_GIF + " from " + webAppRoot.getRemote());
+			this.awaitLoadBalancer(server, false, listener);
+			if (!RollingDeploymentBuilder.isBlank(this.drainUrl)) {
+				try {
+					channel.call(new LoadBalanceControlBuilder.AwaitDrained(RollOut.fill(this.drainUrl, server), this.drainPattern, 0, this.timeoutMillis, listener));
+				} catch (IOException e) {
+					logger.println("Not drained; deploying anyway. " + e.getMessage());
+				}
+			}
+			start = RollOut.lap(timings, "out", start);
+
+			if (!RollingDeploymentBuilder.isBlank(this.deployCommand)) {
+				this.deploy(server, logger);
+			}
+			start = RollOut.lap(timings, "deploy", start);
+
+			if (!RollingDeploymentBuilder.isBlank(this.healthUrl)) {
+				channel.call(new LoadBalanceControlBuilder.AwaitHeartbeat(RollOut.fill(this.healthUrl, server), true, null, this.timeoutMillis, listener));
+			}
+			start = RollOut.lap(timings, "healthy", start);
+
+			webAppRoot.act(new LoadBalanceControlBuilder.ToggleHeartbeat(true));
+			logger.println("Wrote " + HeartbeatFile.HEARTBEAT_GIF + " to " + webAppRoot.getRemote());
+			this.awaitLoadBalancer(server, true, listener);
+			RollOut.lap(timings, "in", start);
+			return timings.toString();
+		}
+
+		/**
+		 * Wait for the load balancer to see the heartbeat change: until the
+		 * status URL matches the expected response, or otherwise for the rest
+		 * of one monitor interval after the heartbeat is seen to change.
+		 */
+		private void awaitLoadBalancer(String server, boolean inRotation, TaskListener listener) throws IOException, InterruptedException {
+			VirtualChannel channel = this.launcher.getChannel();
+			long changed = System.currentTimeMillis();
+			if (!RollingDeploymentBuilder.isBlank(this.heartbeatUrl)) {
+				channel.call(new LoadBalanceControlBuilder.AwaitHeartbeat(RollOut.fill(this.heartbeatUrl, server), inRotation, null, this.timeoutMillis, listener));
+			}
+			String expected = inRotation ? this.inRotationResponse : this.outOfRotationResponse;
+			if (!RollingDeploymentBuilder.isBlank(this.statusUrl) && !RollingDeploymentBuilder.isBlank(expected)) {
+				channel.call(new LoadBalanceControlBuilder.AwaitHeartbeat(RollOut.fill(this.statusUrl, server), inRotation, RollOut.fill(expected, server), this.timeoutMillis, listener));
+				return;
+			}
+			long remaining = this.monitorIntervalMillis - (System.currentTimeMillis() - changed);
+			if (remaining > 0) {
+				listener.getLogger().println("Pausing " + remaining + "ms, the rest of the monitor interval, for F5.");
+				Thread.sleep(remaining);
+			}
+		}
+
+		/**
+		 * Runs the deploy command as a script in the workspace, through the
+		 * node's launcher with the build's environment and SERVER set, failing
+		 * on a non-zero exit code.
+		 */
+		private void deploy(String server, PrintStream logger) throws IOException, InterruptedException {
+			boolean unix = this.launcher.isUnix();
+			String contents = RollOut.fill(this.deployCommand, server).replaceAll("\r?\n", unix ? "\n" : "\r\n");
+			FilePath script = this.workspace.createTextTempFile("rolling-deploy", unix ? ".sh" : ".bat", contents, false);
+			try {
+				String[] command = unix ? new String[] { "sh", "-e", script.getRemote() } : new String[] { "cmd", "/c", "call", script.getRemote() };
+				EnvVars environment = new EnvVars(this.environment);
+				environment.put("SERVER", server);
+				int exitCode = this.launcher.launch().cmds(command).envs(environment).stdout(logger).pwd(this.workspace).join();
+				if (exitCode != 0) {
+					throw new IOException("Deploy command exited with " + exitCode);
+				}
+			} finally {
+				script.delete();
+			}
+		}
+
+		private static String fill(String template, String server) {
+			return template == null ? null : template.replace(SERVER_TOKEN, server);
+		}
+
+		private static long lap(StringBuilder timings, String stage, long start) {
+			long now = System.currentTimeMillis();
+			timings.append(timings.length() == 0 ? "" : ", ").append(stage).append(" ").append(now - start).append("ms");
+			return now;
+		}
+
+		private static void report(PrintStream logger, Map<String, String> results) {
+			logger.println("Rolling deployment results:");
+			for (Map.Entry<String, String> result : results.entrySet()) {
+				logger.println("  " + result.getKey() + ": " + result.getValue());
+			}
+		}
+	}
+
+	public EnvVars getEnvironmentVariables() {
+		return this.environmentVariables;
+	}
+
+	public void setEnvironmentVariables(EnvVars environmentVariables) {
+		this.environmentVariables = environmentVariables;
+	}
+
+	/**
+	 * @return the servers
+	 */
+	public String getServers() {
+		return servers;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public String getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the minimumInService
+	 */
+	public String getMinimumInService() {
+		return minimumInService;
+	}
+
+	/**
+	 * @return the webAppRootDirectory
+	 */
+	public String getWebAppRootDirectory() {
+		return webAppRootDirectory;
+	}
+
+	/**
+	 * @return the heartbeatUrl
+	 */
+	public String getHeartbeatUrl() {
+		return heartbeatUrl;
+	}
+
+	/**
+	 * @return the drainUrl
+	 */
+	public String getDrainUrl() {
+		return drainUrl;
+	}
+
+	/**
+	 * @return the drainPattern
+	 */
+	public String getDrainPattern() {
+		return drainPattern;
+	}
+
+	/**
+	 * @return the deployCommand
+	 */
+	public String getDeployCommand() {
+		return deployCommand;
+	}
+
+	/**
+	 * @return the healthUrl
+	 */
+	public String getHealthUrl() {
+		return healthUrl;
+	}
+
+	/**
+	 * @return the timeout
+	 */
+	public String getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the statusUrl
+	 */
+	public String getStatusUrl() {
+		return statusUrl;
+	}
+
+	/**
+	 * @return the outOfRotationResponse
+	 */
+	public String getOutOfRotationResponse() {
+		return outOfRotationResponse;
+	}
+
+	/**
+	 * @return the inRotationResponse
+	 */
+	public String getInRotationResponse() {
+		return inRotationResponse;
+	}
+
+	/**
+	 * @return the monitorInterval
+	 */
+	public String getMonitorInterval() {
+		return monitorInterval;
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<Builder> {
+		public DescriptorImpl() {
+			super(RollingDeploymentBuilder.class);
+		}
+
+		public String getDisplayName() {
+			return "Rolling Deployment";
+		}
+
+		public RollingDeploymentBuilder newInstance(StaplerRequest req) throws Descriptor.FormException {
+			return new RollingDeploymentBuilder(req.getParameter("servers"), req.getParameter("batchSize"), req.getParameter("minimumInService"), req.getParameter("webAppRootDirectory"), req.getParameter("heartbeatUrl"), req.getParameter("drainUrl"), req.getParameter("drainPattern"), req.getParameter("deployCommand"), req.getParameter("healthUrl"), req.getParameter("timeout"), req.getParameter("statusUrl"), req.getParameter("outOfRotationResponse"), req.getParameter("inRotationResponse"), req.getParameter("monitorInterval"));
+		}
+
+		public RollingDeploymentBuilder newInstance(StaplerRequest req, JSONObject formData) throws Descriptor.FormException {
+			return (RollingDeploymentBuilder) req.bindJSON(RollingDeploymentBuilder.class, formData);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Puts heartbeat.gif into, and takes it out of, a web application
+ *        root in a temporary directory.
+ */
+public class HeartbeatFileTest extends TestCase {
+
+	private File webAppRoot;
+	private File heartbeat;
+
+	protected void setUp() throws Exception {
+		this.webAppRoot = File.createTempFile("webapp", "");
+		if (!this.webAppRoot.delete() || !this.webAppRoot.mkdirs()) {
+			throw new IOException("Unable to create " + this.webAppRoot);
+		}
+		this.heartbeat = new File(this.webAppRoot, HeartbeatFile.HEARTBEAT_GIF);
+	}
+
+	protected void tearDown() throws Exception {
+		File[] children = this.webAppRoot.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+		this.webAppRoot.delete();
+	}
+
+	public void testAddWritesTheGif() throws Exception {
+		HeartbeatFile.add(this.webAppRoot);
+		this.assertOnlyHeartbeat();
+	}
+
+	public void testAddAgainLeavesTheGifInPlace() throws Exception {
+		HeartbeatFile.add(this.webAppRoot);
+		HeartbeatFile.add(this.webAppRoot);
+		this.assertOnlyHeartbeat();
+	}
+
+	public void testAddReplacesAnotherFile() throws Exception {
+		OutputStream out = new FileOutputStream(this.heartbeat);
+		try {
+			out.write("not a gif".getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		HeartbeatFile.add(this.webAppRoot);
+		this.assertOnlyHeartbeat();
+	}
+
+	public void testRemoveDeletesTheGif() throws Exception {
+		HeartbeatFile.add(this.webAppRoot);
+		HeartbeatFile.remove(this.webAppRoot);
+		assertEquals(0, this.webAppRoot.list().length);
+	}
+
+	public void testRemoveWhenAbsentIsFine() throws Exception {
+		HeartbeatFile.remove(this.webAppRoot);
+		assertFalse(this.heartbeat.exists());
+	}
+
+	/**
+	 * heartbeat.gif holds the plugin's GIF, and no temporary file is left
+	 * beside it.
+	 */
+	private void assertOnlyHeartbeat() throws IOException {
+		assertEquals(Arrays.asList(HeartbeatFile.HEARTBEAT_GIF), Arrays.asList(this.webAppRoot.list()));
+		assertTrue(Arrays.equals(HeartbeatFileTest.read(HeartbeatFile.class.getClassLoader().getResourceAsStream(HeartbeatFile.HEARTBEAT_GIF)), HeartbeatFileTest.read(new FileInputStream(this.heartbeat))));
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
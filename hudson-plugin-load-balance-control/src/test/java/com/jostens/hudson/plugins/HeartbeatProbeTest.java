@@ -0,0 +1,160 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Polls a stub web server standing in for the heartbeat, the load
+ *        balancer's status page and the session count page.
+ */
+public class HeartbeatProbeTest extends TestCase {
+
+	private HttpServer server;
+	private StubPage page;
+	private ByteArrayOutputStream log;
+	private HeartbeatProbe probe;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.page = new StubPage();
+		this.server.createContext("/", this.page);
+		this.server.start();
+		this.log = new ByteArrayOutputStream();
+		this.probe = new HeartbeatProbe(5000, new PrintStream(this.log, true));
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+	}
+
+	public void testHeartbeatServedIsInRotation() throws Exception {
+		this.page.answer(200, "GIF89a");
+		this.probe.await(this.url(), true, null);
+		assertEquals(1, this.page.polls());
+	}
+
+	public void testHeartbeatMissingIsOutOfRotation() throws Exception {
+		this.page.answer(200, "GIF89a");
+		this.page.answer(200, "GIF89a");
+		this.page.answer(404, "Not Found");
+		this.probe.await(this.url(), false, null);
+		assertEquals(3, this.page.polls());
+	}
+
+	public void testNothingAnsweringIsOutOfRotation() throws Exception {
+		this.probe.await("http://127.0.0.1:" + HeartbeatProbeTest.freePort() + "/heartbeat.gif", false, null);
+	}
+
+	public void testNothingAnsweringNeverMatchesExpectedResponse() throws Exception {
+		HeartbeatProbe quick = new HeartbeatProbe(500, new PrintStream(this.log, true));
+		try {
+			quick.await("http://127.0.0.1:" + HeartbeatProbeTest.freePort() + "/status", false, Pattern.compile("disabled"));
+			fail("Expected a timeout.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("did not show out of rotation"));
+		}
+	}
+
+	public void testExpectedResponseWaitsForStatusPage() throws Exception {
+		// The status page answers 200 throughout; only its body shows the change.
+		this.page.answer(200, "member web1 state=enabled");
+		this.page.answer(200, "member web1 state=enabled");
+		this.page.answer(200, "member web1 state=disabled");
+		this.probe.await(this.url(), false, Pattern.compile("state=disabled"));
+		assertEquals(3, this.page.polls());
+	}
+
+	public void testTimeoutReportsLastAnswer() throws Exception {
+		HeartbeatProbe quick = new HeartbeatProbe(500, new PrintStream(this.log, true));
+		this.page.answer(503, "Service Unavailable");
+		try {
+			quick.await(this.url(), true, null);
+			fail("Expected a timeout.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("HTTP 503"));
+		}
+	}
+
+	public void testDrainedSumsEveryMatch() throws Exception {
+		this.page.answer(200, "<td>4</td><td>3</td>");
+		this.page.answer(200, "<td>2</td><td>1</td>");
+		this.page.answer(200, "<td>0</td><td>1</td>");
+		this.probe.awaitDrained(this.url(), Pattern.compile("<td>(\\d+)</td>"), 1);
+		assertEquals(3, this.page.polls());
+		assertTrue(this.log.toString(), this.log.toString().contains("7 active"));
+	}
+
+	public void testDrainedWithNoMatchIsEmpty() throws Exception {
+		this.page.answer(200, "<table></table>");
+		this.probe.awaitDrained(this.url(), Pattern.compile("\\d+"), 0);
+		assertEquals(1, this.page.polls());
+	}
+
+	public void testDrainedIgnoresErrorPages() throws Exception {
+		this.page.answer(500, "0");
+		this.page.answer(200, "0");
+		this.probe.awaitDrained(this.url(), Pattern.compile("\\d+"), 0);
+		assertEquals(2, this.page.polls());
+	}
+
+	private String url() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/page";
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Answers each poll with the next queued answer, repeating the last one.
+	 */
+	private static final class StubPage implements HttpHandler {
+
+		private final List<Integer> statuses = new ArrayList<Integer>();
+		private final List<String> bodies = new ArrayList<String>();
+		private int polls;
+
+		synchronized void answer(int status, String body) {
+			this.statuses.add(status);
+			this.bodies.add(body);
+		}
+
+		synchronized int polls() {
+			return this.polls;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			int status;
+			byte[] body;
+			synchronized (this) {
+				int next = Math.min(this.polls++, this.statuses.size() - 1);
+				status = this.statuses.get(next);
+				body = this.bodies.get(next).getBytes("UTF-8");
+			}
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
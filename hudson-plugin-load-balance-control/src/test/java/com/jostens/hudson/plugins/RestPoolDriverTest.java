@@ -0,0 +1,138 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * @author blaisj1
+ * @brief Drives a stub pool API, checking that all the members change in one
+ *        call and that their state is read from the answer.
+ */
+public class RestPoolDriverTest extends TestCase {
+
+	private HttpServer server;
+	private StubPool pool;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.pool = new StubPool();
+		this.server.createContext("/pools/web/members", this.pool);
+		this.server.start();
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+	}
+
+	public void testChangesEveryMemberInOneCall() throws Exception {
+		this.pool.answer(200, "{\"members\":[{\"name\":\"web1:80\",\"state\":\"disabled\"},{\"name\":\"web2:80\",\"state\":\"disabled\"}]}");
+		Map<String, Boolean> states = this.driver(null, null).setEnabled(Arrays.asList("web1:80", "web2:80"), false);
+
+		assertEquals(Arrays.asList("PUT"), this.pool.methods);
+		JSONArray members = JSONObject.fromObject(this.pool.bodies.get(0)).getJSONArray("members");
+		assertEquals(2, members.size());
+		assertEquals("web1:80", members.getJSONObject(0).getString("name"));
+		assertEquals(RestPoolDriver.DISABLED, members.getJSONObject(1).getString("state"));
+		assertEquals(Boolean.FALSE, states.get("web1:80"));
+		assertEquals(Boolean.FALSE, states.get("web2:80"));
+	}
+
+	public void testReadsStateWhenAnswerLeavesMembersOut() throws Exception {
+		this.pool.answer(204, "");
+		this.pool.answer(200, "{\"members\":[{\"name\":\"web1:80\",\"state\":\"enabled\"},{\"name\":\"web3:80\",\"state\":\"disabled\"}]}");
+		Map<String, Boolean> states = this.driver(null, null).setEnabled(Arrays.asList("web1:80", "web2:80"), true);
+
+		assertEquals(Arrays.asList("PUT", "GET"), this.pool.methods);
+		assertEquals(Boolean.TRUE, states.get("web1:80"));
+		// Neither ours nor reported.
+		assertFalse(states.containsKey("web2:80"));
+		assertFalse(states.containsKey("web3:80"));
+	}
+
+	public void testSendsBasicAuthorization() throws Exception {
+		this.pool.answer(200, "{\"members\":[{\"name\":\"web1:80\",\"state\":\"enabled\"}]}");
+		this.driver("admin", "secret").setEnabled(Arrays.asList("web1:80"), true);
+		assertEquals("Basic YWRtaW46c2VjcmV0", this.pool.authorizations.get(0));
+	}
+
+	public void testErrorAnswerFails() throws Exception {
+		this.pool.answer(409, "member is locked");
+		try {
+			this.driver(null, null).setEnabled(Arrays.asList("web1:80"), false);
+			fail("Expected the error answer to fail.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("HTTP 409 member is locked"));
+		}
+	}
+
+	public void testUnreadableAnswerFails() throws Exception {
+		this.pool.answer(200, "<html>login</html>");
+		try {
+			this.driver(null, null).setEnabled(Arrays.asList("web1:80"), false);
+			fail("Expected the answer not to parse.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Unable to read pool members"));
+		}
+	}
+
+	private RestPoolDriver driver(String username, String password) {
+		return new RestPoolDriver("http://127.0.0.1:" + this.server.getAddress().getPort() + "/pools/web/", username, password);
+	}
+
+	/**
+	 * Records each request and answers it with the next queued answer.
+	 */
+	private static final class StubPool implements HttpHandler {
+
+		private final List<Integer> statuses = new ArrayList<Integer>();
+		private final List<String> answers = new ArrayList<String>();
+		final List<String> methods = new ArrayList<String>();
+		final List<String> bodies = new ArrayList<String>();
+		final List<String> authorizations = new ArrayList<String>();
+
+		void answer(int status, String body) {
+			this.statuses.add(status);
+			this.answers.add(body);
+		}
+
+		public synchronized void handle(HttpExchange exchange) throws IOException {
+			this.methods.add(exchange.getRequestMethod());
+			this.authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			InputStream in = exchange.getRequestBody();
+			try {
+				byte[] buffer = new byte[1024];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					body.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+			this.bodies.add(body.toString("UTF-8"));
+
+			int next = Math.min(this.methods.size() - 1, this.statuses.size() - 1);
+			byte[] answer = this.answers.get(next).getBytes("UTF-8");
+			exchange.sendResponseHeaders(this.statuses.get(next), answer.length == 0 ? -1 : answer.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(answer);
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
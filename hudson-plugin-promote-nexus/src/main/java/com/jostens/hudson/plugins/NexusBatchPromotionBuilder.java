@@ -0,0 +1,412 @@
+package com.jostens.hudson.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.model.AbstractBuild;
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import hudson.tasks.Builder;
+
+/**
+ * @author blaisj1
+ * @brief Hudson build step plugin to promote a release train of snapshots to
+ *        a Nexus release repository concurrently. Completed promotions are
+ *        recorded in a ledger in the build directory, and the ledger is
+ *        carried forward so a re-run only promotes what is left. The
+ *        promotions run on the build node, as the single promotion does; the
+ *        ledger stays with the build on the master.
+ */
+public class NexusBatchPromotionBuilder extends Builder {
+
+	// Ledger of completed promotions, one coordinate per line.
+	private static final String LEDGER = "promotion-ledger.txt";
+	private static final int DEFAULT_PARALLELISM = 4;
+	private static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
+
+	private final String manifest;
+	private final String sourceRepositoryUrl;
+	private final String sourceRepositoryId;
+	private final String repositoryUrl;
+	private final String repositoryId;
+	private final String parallelism;
+	private EnvVars environmentVariables;
+
+	@DataBoundConstructor
+	public NexusBatchPromotionBuilder(String manifest, String sourceRepositoryUrl, String sourceRepositoryId, String repositoryUrl, String repositoryId, String parallelism) {
+		this.manifest = manifest;
+		this.sourceRepositoryUrl = sourceRepositoryUrl;
+		this.sourceRepositoryId = sourceRepositoryId;
+		this.repositoryUrl = repositoryUrl;
+		this.repositoryId = repositoryId;
+		this.parallelism = parallelism;
+	}
+
+	// This is where you 'build' the project.
+	// All build logic should be placed within this method.
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+		final PrintStream logger = listener.getLogger();
+
+		// Gather Hudson environment variables.
+		try {
+			this.environmentVariables = build.getEnvironment(listener);
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to gather Hudson environment variables."));
+			return false;
+		}
+
+		final String releaseRepository = this.environmentVariables.expand(this.repositoryUrl);
+		File ledgerFile = new File(build.getRootDir(), LEDGER);
+		Set<String> completed;
+		try {
+			// Carry forward before anything that can fail, so a build that dies early still passes the ledger on.
+			File previousLedger = null;
+			for (AbstractBuild<?, ?> previous = build.getPreviousBuild(); previous != null && previousLedger == null; previous = previous.getPreviousBuild()) {
+				File candidate = new File(previous.getRootDir(), LEDGER);
+				if (candidate.isFile()) {
+					previousLedger = candidate;
+				}
+			}
+			completed = NexusBatchPromotionBuilder.carryForward(ledgerFile, previousLedger);
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to carry the promotion ledger forward."));
+			return false;
+		}
+
+		List<Promotion> promotions;
+		try {
+			promotions = NexusBatchPromotionBuilder.parseManifest(this.environmentVariables.expand(this.manifest));
+		} catch (IOException e) {
+			e.printStackTrace(listener.fatalError("Unable to prepare release train promotion."));
+			return false;
+		}
+
+		int threads = NexusBatchPromotionBuilder.parseInt(this.environmentVariables.expand(this.parallelism), DEFAULT_PARALLELISM);
+		logger.println("Promoting " + promotions.size() + " artifacts with " + threads + " concurrent pipelines...");
+		long start = System.currentTimeMillis();
+
+		try {
+			OutputStream ledger = new FileOutputStream(ledgerFile, true);
+			try {
+				// Run on the node, with its settings.xml; each completed promotion is appended to the ledger here as it finishes.
+				PromoteTrain train = new PromoteTrain(this.environmentVariables.expand(this.sourceRepositoryUrl), this.environmentVariables.expand(this.sourceRepositoryId), releaseRepository, this.environmentVariables.expand(this.repositoryId), promotions, completed, threads, new RemoteOutputStream(ledger), listener);
+				promotions = launcher.getChannel().call(train);
+			} finally {
+				ledger.close();
+			}
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Release train promotion failed."));
+			return false;
+		}
+
+		// Report per-artifact timings.
+		boolean successFlag = true;
+		logger.println("----------------------------------");
+		logger.println(String.format("%-60s %-10s %10s", "ARTIFACT", "STATUS", "TIME (ms)"));
+		for (Promotion promotion : promotions) {
+			logger.println(String.format("%-60s %-10s %10d", promotion, promotion.status, promotion.elapsed));
+			if (!"PROMOTED".equals(promotion.status) && !"SKIPPED".equals(promotion.status)) {
+				successFlag = false;
+			}
+		}
+		logger.println("----------------------------------");
+		logger.println("Release train promotion finished in " + (System.currentTimeMillis() - start) + "ms.");
+		return successFlag;
+	}
+
+	/**
+	 * Each manifest line is groupId:artifactId:extension:snapshotVersion with
+	 * an optional :releaseVersion. The release version defaults to the
+	 * snapshot version without -SNAPSHOT. Blank lines and lines starting with
+	 * # are ignored.
+	 */
+	static List<Promotion> parseManifest(String text) throws IOException {
+		List<Promotion> promotions = new ArrayList<Promotion>();
+		BufferedReader reader = new BufferedReader(new StringReader(text == null ? "" : text));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split(":");
+			if (parts.length < 4 || parts.length > 5) {
+				throw new IOException("Invalid manifest entry [" + line + "].  Expected groupId:artifactId:extension:snapshotVersion[:releaseVersion]");
+			}
+			Promotion promotion = new Promotion();
+			promotion.groupId = parts[0].trim();
+			promotion.artifactId = parts[1].trim();
+			promotion.extension = parts[2].trim();
+			promotion.snapshotVersion = parts[3].trim();
+			if (parts.length == 5) {
+				promotion.releaseVersion = parts[4].trim();
+			} else if (promotion.snapshotVersion.endsWith(SNAPSHOT_SUFFIX)) {
+				promotion.releaseVersion = promotion.snapshotVersion.substring(0, promotion.snapshotVersion.length() - SNAPSHOT_SUFFIX.length());
+			} else {
+				promotion.releaseVersion = promotion.snapshotVersion;
+			}
+			promotions.add(promotion);
+		}
+		return promotions;
+	}
+
+	/**
+	 * Merge the previous build's ledger into this build's, and write the
+	 * result out at once.
+	 *
+	 * @param previousLedger the ledger of the nearest earlier build that has
+	 *        one, or null.
+	 * @return every promotion already completed.
+	 */
+	static Set<String> carryForward(File ledgerFile, File previousLedger) throws IOException {
+		Set<String> completed = new HashSet<String>();
+		if (previousLedger != null) {
+			NexusBatchPromotionBuilder.readLedger(previousLedger, completed);
+		}
+		NexusBatchPromotionBuilder.readLedger(ledgerFile, completed);
+		Writer ledger = new FileWriter(ledgerFile, false);
+		try {
+			for (String entry : completed) {
+				ledger.write(entry + "\n");
+			}
+		} finally {
+			ledger.close();
+		}
+		return completed;
+	}
+
+	private static void readLedger(File file, Set<String> entries) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					entries.add(line.trim());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Runs on the node: promotes every manifest entry the ledger does not
+	 * list yet, a few at a time, and returns the entries with their status.
+	 */
+	static final class PromoteTrain implements Callable<List<Promotion>, IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String sourceRepositoryUrl;
+		private final String sourceRepositoryId;
+		private final String releaseRepository;
+		private final String repositoryId;
+		private final List<Promotion> promotions;
+		private final Set<String> completed;
+		private final int threads;
+		private final OutputStream ledger;
+		private final BuildListener listener;
+
+		/**
+		 * @param ledger where each completed promotion's key is appended; it
+		 *        is closed when the train is done.
+		 */
+		PromoteTrain(String sourceRepositoryUrl, String sourceRepositoryId, String releaseRepository, String repositoryId, List<Promotion> promotions, Set<String> completed, int threads, OutputStream ledger, BuildListener listener) {
+			this.sourceRepositoryUrl = sourceRepositoryUrl;
+			this.sourceRepositoryId = sourceRepositoryId;
+			this.releaseRepository = releaseRepository;
+			this.repositoryId = repositoryId;
+			this.promotions = new ArrayList<Promotion>(promotions);
+			this.completed = new HashSet<String>(completed);
+			this.threads = threads;
+			this.ledger = ledger;
+			this.listener = listener;
+		}
+
+		public List<Promotion> call() throws IOException {
+			final PrintStream logger = this.listener.getLogger();
+			final Writer ledger = new OutputStreamWriter(this.ledger);
+			try {
+				NexusUploader source = NexusPromotionBuilder.createUploader(this.sourceRepositoryId, "Reading", logger);
+				NexusUploader uploader = NexusPromotionBuilder.createUploader(this.repositoryId, "Promoting", logger);
+				final NexusStreamPromoter promoter = new NexusStreamPromoter(this.sourceRepositoryUrl, this.releaseRepository, source, uploader, logger);
+
+				ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, this.threads));
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				try {
+					for (final Promotion promotion : this.promotions) {
+						final String key = promotion.getKey(this.releaseRepository);
+						if (this.completed.contains(key)) {
+							promotion.status = "SKIPPED";
+							continue;
+						}
+						futures.add(executor.submit(new Runnable() {
+							public void run() {
+								long begin = System.currentTimeMillis();
+								try {
+									promoter.promote(promotion.groupId, promotion.artifactId, promotion.snapshotVersion, promotion.releaseVersion, promotion.extension);
+									synchronized (ledger) {
+										ledger.write(key + "\n");
+										ledger.flush();
+									}
+									promotion.status = "PROMOTED";
+								} catch (Exception e) {
+									promotion.status = "FAILED";
+									logger.println("Promotion of " + promotion + " failed: " + e.getMessage());
+								} finally {
+									promotion.elapsed = System.currentTimeMillis() - begin;
+								}
+							}
+						}));
+					}
+					for (Future<?> future : futures) {
+						future.get();
+					}
+				} catch (ExecutionException e) {
+					throw new IOException("Release train promotion failed: " + e.getCause());
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while promoting the release train.");
+				} finally {
+					executor.shutdownNow();
+				}
+			} finally {
+				ledger.close();
+			}
+			return this.promotions;
+		}
+	}
+
+	static final class Promotion implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String groupId;
+		private String artifactId;
+		private String extension;
+		private String snapshotVersion;
+		private String releaseVersion;
+		private volatile String status = "NOT RUN";
+		private volatile long elapsed;
+
+		/**
+		 * @return PROMOTED, SKIPPED, FAILED or NOT RUN
+		 */
+		String getStatus() {
+			return this.status;
+		}
+
+		// Release versions are immutable, so a promotion is identified by its release coordinate.
+		String getKey(String releaseRepository) {
+			return releaseRepository + "|" + this.groupId + ":" + this.artifactId + ":" + this.extension + ":" + this.releaseVersion;
+		}
+
+		@Override
+		public String toString() {
+			return this.groupId + ":" + this.artifactId + ":" + this.extension + ":" + this.releaseVersion;
+		}
+	}
+
+	public EnvVars getEnvironmentVariables() {
+		return environmentVariables;
+	}
+
+	public void setEnvironmentVariables(EnvVars environmentVariables) {
+		this.environmentVariables = environmentVariables;
+	}
+
+	public String getManifest() {
+		return manifest;
+	}
+
+	public String getSourceRepositoryUrl() {
+		return sourceRepositoryUrl;
+	}
+
+	public String getSourceRepositoryId() {
+		return sourceRepositoryId;
+	}
+
+	public String getRepositoryUrl() {
+		return repositoryUrl;
+	}
+
+	public String getRepositoryId() {
+		return repositoryId;
+	}
+
+	public String getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @brief The descriptor inner class is responsible for communicating
+	 *        between the jelly configuration files, and the plugin class.
+	 */
+	// The @Extension annotation registers the outer class as a plugin.
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<Builder> {
+
+		public DescriptorImpl() {
+			super(NexusBatchPromotionBuilder.class);
+		}
+
+		// This is the name shown on the Hudson project configuration page.
+		// [Build Step dropdown menu].
+		public String getDisplayName() {
+			return "Promote Nexus Release Train";
+		}
+
+		// Retrieves values from jelly to create a new instance of our builder.
+		public NexusBatchPromotionBuilder newInstance(StaplerRequest req) throws FormException {
+			return new NexusBatchPromotionBuilder(req.getParameter("batch.manifest"), req.getParameter("batch.sourceRepositoryUrl"), req.getParameter("batch.sourceRepositoryId"), req.getParameter("batch.repositoryUrl"), req.getParameter("batch.repositoryId"), req.getParameter("batch.parallelism"));
+		}
+
+		// This utilizes the @DataBoundConstructor annotation to automatically
+		// gather our form data, and call our builder constructor.
+		public NexusBatchPromotionBuilder newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+			return (NexusBatchPromotionBuilder) req.bindJSON(NexusBatchPromotionBuilder.class, formData);
+		}
+
+	}
+}
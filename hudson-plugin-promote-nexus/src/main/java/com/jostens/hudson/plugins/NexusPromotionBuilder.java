@@ -1,6 +1,7 @@
 package com.jostens.hudson.plugins;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 import net.sf.json.JSONObject;
@@ -13,6 +14,7 @@ import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.AbstractBuild;
+import hudson.remoting.Callable;
 import hudson.tasks.Builder;
 import hudson.tasks.BatchFile;
 
@@ -28,20 +30,35 @@ public class NexusPromotionBuilder extends Builder {
 	// Maven command to deploy the release artifact to a repository.
 	private static final String promoteArtifact = "mvn org.apache.maven.plugins:maven-deploy-plugin:2.5:deploy-file -Durl={repoUrl} -DrepositoryId={repodId} -DpomFile=.\\target\\pom.xml -Dfile=.\\target\\{artifactId}-{releaseVersion}.{ext} -DuniqueVersion=false";
 
+	// Upload retry policy for transient failures.
+	private static final int UPLOAD_ATTEMPTS = 5;
+	private static final long UPLOAD_INITIAL_BACKOFF = 2000;
+	private static final long UPLOAD_MAX_BACKOFF = 60000;
+
 	private final String artifactId;
 	private final String releaseVersion;
 	private final String type;
 	private final String repositoryUrl;
 	private final String repositoryId;
+	private final boolean streamPromotion;
+	private final String groupId;
+	private final String snapshotVersion;
+	private final String sourceRepositoryUrl;
+	private final String sourceRepositoryId;
 	private EnvVars environmentVariables;
 
 	@DataBoundConstructor
-	public NexusPromotionBuilder(String artifactId, String releaseVersion, String type, String repositoryUrl, String repositoryId) {
+	public NexusPromotionBuilder(String artifactId, String releaseVersion, String type, String repositoryUrl, String repositoryId, String streamPromotion, String groupId, String snapshotVersion, String sourceRepositoryUrl, String sourceRepositoryId) {
 		this.artifactId = artifactId;
 		this.releaseVersion = releaseVersion;
 		this.type = type;
 		this.repositoryUrl = repositoryUrl;
 		this.repositoryId = repositoryId;
+		this.streamPromotion = Boolean.parseBoolean(streamPromotion);
+		this.groupId = groupId;
+		this.snapshotVersion = snapshotVersion;
+		this.sourceRepositoryUrl = sourceRepositoryUrl;
+		this.sourceRepositoryId = sourceRepositoryId;
 	}
 
 	// This is where you 'build' the project.
@@ -61,6 +78,11 @@ public class NexusPromotionBuilder extends Builder {
 			return false;
 		}
 
+		// Stream straight from the source repository, bypassing the workspace and Maven.
+		if (this.streamPromotion) {
+			return this.streamArtifact(launcher, listener);
+		}
+
 		// Generate the windows batch scripts to run.
 		String setVersionCommand = this.generateSetVersionScript();
 		String promoteArtifactCommand = this.generatePromoteArtifactScript();
@@ -80,6 +102,88 @@ public class NexusPromotionBuilder extends Builder {
 		return true;
 	}
 
+	private boolean streamArtifact(Launcher launcher, BuildListener listener) throws InterruptedException {
+		PrintStream logger = listener.getLogger();
+		try {
+			logger.println("Running: Stream Promotion to Release Repository...");
+			// Run on the node, as mvn deploy-file did, so its settings.xml and network are used.
+			launcher.getChannel().call(new StreamPromotion(this.environmentVariables.expand(this.sourceRepositoryUrl), this.environmentVariables.expand(this.sourceRepositoryId), this.environmentVariables.expand(this.repositoryUrl), this.environmentVariables.expand(this.repositoryId), this.environmentVariables.expand(this.groupId), this.environmentVariables.expand(this.artifactId), this.environmentVariables.expand(this.snapshotVersion), this.environmentVariables.expand(this.releaseVersion), this.environmentVariables.expand(this.type), listener));
+			logger.println("Successful.");
+			return true;
+		} catch (IOException e) {
+			logger.println("Failed.");
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Unable to promote artifact to " + this.repositoryUrl));
+			return false;
+		}
+	}
+
+	/**
+	 * Runs on the node: streams the snapshot from the source repository to
+	 * the release repository, authenticating with each repository's own
+	 * server entry in the node's settings.xml.
+	 */
+	private static final class StreamPromotion implements Callable<Void, IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String sourceRepositoryUrl;
+		private final String sourceRepositoryId;
+		private final String repositoryUrl;
+		private final String repositoryId;
+		private final String groupId;
+		private final String artifactId;
+		private final String snapshotVersion;
+		private final String releaseVersion;
+		private final String type;
+		private final BuildListener listener;
+
+		StreamPromotion(String sourceRepositoryUrl, String sourceRepositoryId, String repositoryUrl, String repositoryId, String groupId, String artifactId, String snapshotVersion, String releaseVersion, String type, BuildListener listener) {
+			this.sourceRepositoryUrl = sourceRepositoryUrl;
+			this.sourceRepositoryId = sourceRepositoryId;
+			this.repositoryUrl = repositoryUrl;
+			this.repositoryId = repositoryId;
+			this.groupId = groupId;
+			this.artifactId = artifactId;
+			this.snapshotVersion = snapshotVersion;
+			this.releaseVersion = releaseVersion;
+			this.type = type;
+			this.listener = listener;
+		}
+
+		public Void call() throws IOException {
+			PrintStream logger = this.listener.getLogger();
+			NexusUploader source = NexusPromotionBuilder.createUploader(this.sourceRepositoryId, "Reading", logger);
+			NexusUploader uploader = NexusPromotionBuilder.createUploader(this.repositoryId, "Promoting", logger);
+			try {
+				new NexusStreamPromoter(this.sourceRepositoryUrl, this.repositoryUrl, source, uploader, logger).promote(this.groupId, this.artifactId, this.snapshotVersion, this.releaseVersion, this.type);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while promoting " + this.artifactId + ".");
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Read the repository's server entry from the settings.xml of the JVM
+	 * this runs in. A blank repository id means the repository is used
+	 * anonymously.
+	 */
+	static NexusUploader createUploader(String repoId, String action, PrintStream logger) throws IOException {
+		MavenServerCredentials credentials = null;
+		if (repoId != null && repoId.trim().length() > 0) {
+			try {
+				credentials = MavenServerCredentials.lookup(repoId.trim());
+			} catch (Exception e) {
+				throw new IOException("Unable to read settings.xml: " + e.getMessage());
+			}
+			if (credentials == null) {
+				logger.println("No server entry for [" + repoId + "] found in settings.xml.  " + action + " without credentials.");
+			}
+		}
+		return new NexusUploader(credentials == null ? null : credentials.getUsername(), credentials == null ? null : credentials.getPassword(), logger, UPLOAD_ATTEMPTS, UPLOAD_INITIAL_BACKOFF, UPLOAD_MAX_BACKOFF, false);
+	}
+
 	private String generateSetVersionScript() {
 		String command = NexusPromotionBuilder.setVersion;
 		command = command.replace("{releaseVersion}", releaseVersion);
@@ -126,6 +230,26 @@ public class NexusPromotionBuilder extends Builder {
 		return releaseVersion;
 	}
 
+	public boolean isStreamPromotion() {
+		return streamPromotion;
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public String getSnapshotVersion() {
+		return snapshotVersion;
+	}
+
+	public String getSourceRepositoryUrl() {
+		return sourceRepositoryUrl;
+	}
+
+	public String getSourceRepositoryId() {
+		return sourceRepositoryId;
+	}
+
 	/**
 	 * @brief The descriptor inner class is responsible for communicating
 	 *        between the jelly configuration files, and the plugin class.
@@ -146,7 +270,7 @@ public class NexusPromotionBuilder extends Builder {
 
 		// Retrieves values from jelly to create a new instance of our builder.
 		public NexusPromotionBuilder newInstance(StaplerRequest req) throws FormException {
-			return new NexusPromotionBuilder(req.getParameter("promote.artifactId"), req.getParameter("promote.releaseVersion"), req.getParameter("promote.type"), req.getParameter("promote.repositoryUrl"), req.getParameter("promote.repositoryId"));
+			return new NexusPromotionBuilder(req.getParameter("promote.artifactId"), req.getParameter("promote.releaseVersion"), req.getParameter("promote.type"), req.getParameter("promote.repositoryUrl"), req.getParameter("promote.repositoryId"), req.getParameter("promote.streamPromotion"), req.getParameter("promote.groupId"), req.getParameter("promote.snapshotVersion"), req.getParameter("promote.sourceRepositoryUrl"), req.getParameter("promote.sourceRepositoryId"));
 		}
 
 		// This utilizes the @DataBoundConstructor annotation to automatically
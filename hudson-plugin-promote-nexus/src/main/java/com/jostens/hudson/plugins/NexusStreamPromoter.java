@@ -0,0 +1,431 @@
+package com.jostens.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * @author blaisj1
+ * @brief Promotes a snapshot to a release by streaming it from the source
+ *        repository straight into a PUT on the release repository. The
+ *        artifact bytes never touch the local disk, and the POM is held in
+ *        memory just long enough to rewrite its version tag.
+ *
+ *        Reads from the source repository go through their own connection
+ *        factory, so the release repository's credentials are only ever sent
+ *        to the release repository.
+ *
+ *        The artifact's MD5 and SHA-1 are computed as it streams past and
+ *        checked against the source's own checksum files before its last
+ *        bytes are handed to the upload, so a corrupt read never completes a
+ *        release.
+ */
+public class NexusStreamPromoter {
+
+	private static final String METADATA = "maven-metadata.xml";
+	private static final String SNAPSHOT = "SNAPSHOT";
+	private static final String[] CHECKSUMS = { "md5", "sha1" };
+	private static final String[] ALGORITHMS = { "MD5", "SHA-1" };
+
+	private final String sourceRepositoryUrl;
+	private final String releaseRepositoryUrl;
+	private final NexusUploader source;
+	private final NexusUploader uploader;
+	private final PrintStream logger;
+	// One lock per artifact level metadata file, so concurrent promotions of one artifact do not lose versions.
+	private final Map<String, Object> metadataLocks = new HashMap<String, Object>();
+
+	/**
+	 * @param source opens reads against the source repository, with that
+	 *        repository's credentials.
+	 * @param uploader writes to, and reads metadata from, the release
+	 *        repository.
+	 */
+	public NexusStreamPromoter(String sourceRepositoryUrl, String releaseRepositoryUrl, NexusUploader source, NexusUploader uploader, PrintStream logger) {
+		this.sourceRepositoryUrl = NexusStreamPromoter.trimSlash(sourceRepositoryUrl);
+		this.releaseRepositoryUrl = NexusStreamPromoter.trimSlash(releaseRepositoryUrl);
+		this.source = source;
+		this.uploader = uploader;
+		this.logger = logger;
+	}
+
+	public void promote(String groupId, String artifactId, String snapshotVersion, String releaseVersion, String extension) throws IOException, InterruptedException {
+		String groupPath = groupId.replace('.', '/');
+		String sourceVersionPath = this.sourceRepositoryUrl + "/" + groupPath + "/" + artifactId + "/" + snapshotVersion;
+		String sourceBase = sourceVersionPath + "/" + artifactId + "-" + this.resolveFileVersion(sourceVersionPath, snapshotVersion, extension);
+		String releaseArtifactPath = this.releaseRepositoryUrl + "/" + groupPath + "/" + artifactId;
+		String releaseBase = releaseArtifactPath + "/" + releaseVersion + "/" + artifactId + "-" + releaseVersion;
+
+		// Stream the artifact from the source repository into the release repository.
+		String sourceArtifact = sourceBase + "." + extension;
+		String releaseArtifact = releaseBase + "." + extension;
+		String[] expected = new String[CHECKSUMS.length];
+		for (int i = 0; i < CHECKSUMS.length; i++) {
+			byte[] sourceChecksum = this.fetch(this.source, sourceArtifact + "." + CHECKSUMS[i]);
+			// Checksum files may be followed by the file name.
+			expected[i] = sourceChecksum == null ? null : new String(sourceChecksum, "US-ASCII").trim().split("\\s+")[0].toLowerCase();
+		}
+		RemoteContent content = new RemoteContent(sourceArtifact, expected);
+		this.logger.println("Streaming " + sourceArtifact + " to " + releaseArtifact);
+		long start = System.currentTimeMillis();
+		this.uploader.upload(content, artifactId + "." + extension, releaseArtifact);
+		this.logger.println("Streamed " + content.length() + " bytes in " + (System.currentTimeMillis() - start) + "ms.");
+
+		// The upload only completes once every byte was read and checked, so the checksums computed in flight apply.
+		for (int i = 0; i < CHECKSUMS.length; i++) {
+			this.uploader.upload(content.getChecksum(i).getBytes("US-ASCII"), CHECKSUMS[i], releaseArtifact + "." + CHECKSUMS[i]);
+		}
+
+		// Rewrite the POM's version in memory and upload it.
+		byte[] pom = this.fetch(this.source, sourceBase + ".pom");
+		if (pom == null) {
+			throw new IOException("Unable to find POM " + sourceBase + ".pom");
+		}
+		this.uploadWithChecksums(NexusStreamPromoter.setPomVersion(pom, releaseVersion), "pom.xml", releaseBase + ".pom");
+
+		// Register the release in the artifact level metadata, one read-modify-write at a time.
+		String metadataUrl = releaseArtifactPath + "/" + METADATA;
+		synchronized (this.getMetadataLock(metadataUrl)) {
+			this.updateMetadata(metadataUrl, groupId, artifactId, releaseVersion);
+		}
+	}
+
+	/**
+	 * Unique snapshots are stored as {version}-{timestamp}-{buildNumber},
+	 * resolved the same way as NexusArtifactFetcher does.
+	 *
+	 * @return the file version of the newest unique snapshot, or the version
+	 *         itself for releases and non-unique snapshots.
+	 */
+	private String resolveFileVersion(String versionPath, String version, String extension) throws IOException {
+		if (!version.endsWith(SNAPSHOT)) {
+			return version;
+		}
+		Document metadata = this.fetchMetadata(this.source, versionPath + "/" + METADATA);
+		if (metadata == null) {
+			return version;
+		}
+
+		// Maven 3 metadata lists the exact value per extension.
+		NodeList snapshotVersions = metadata.getElementsByTagNameNS("*", "snapshotVersion");
+		for (int i = 0; i < snapshotVersions.getLength(); i++) {
+			Element snapshotVersion = (Element) snapshotVersions.item(i);
+			if (extension.equals(NexusStreamPromoter.getText(snapshotVersion, "extension")) && NexusStreamPromoter.getText(snapshotVersion, "classifier") == null) {
+				String value = NexusStreamPromoter.getText(snapshotVersion, "value");
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+
+		// Maven 2 metadata only records the newest timestamp and build number.
+		Element root = metadata.getDocumentElement();
+		String timestamp = NexusStreamPromoter.getText(root, "timestamp");
+		String buildNumber = NexusStreamPromoter.getText(root, "buildNumber");
+		if (timestamp == null || buildNumber == null) {
+			return version;
+		}
+		return version.substring(0, version.length() - SNAPSHOT.length()) + timestamp + "-" + buildNumber;
+	}
+
+	private Object getMetadataLock(String url) {
+		synchronized (this.metadataLocks) {
+			Object lock = this.metadataLocks.get(url);
+			if (lock == null) {
+				lock = new Object();
+				this.metadataLocks.put(url, lock);
+			}
+			return lock;
+		}
+	}
+
+	private void updateMetadata(String url, String groupId, String artifactId, String version) throws IOException, InterruptedException {
+		Document metadata = this.fetchMetadata(this.uploader, url);
+		if (metadata == null) {
+			try {
+				metadata = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			} catch (Exception e) {
+				throw new IOException("Unable to create repository metadata: " + e.getMessage());
+			}
+			Element root = metadata.createElement("metadata");
+			metadata.appendChild(root);
+			NexusStreamPromoter.getOrCreate(metadata, root, "groupId").setTextContent(groupId);
+			NexusStreamPromoter.getOrCreate(metadata, root, "artifactId").setTextContent(artifactId);
+		}
+
+		Element versioning = NexusStreamPromoter.getOrCreate(metadata, metadata.getDocumentElement(), "versioning");
+		Element versions = NexusStreamPromoter.getOrCreate(metadata, versioning, "versions");
+		boolean listed = false;
+		NodeList existing = versions.getElementsByTagName("version");
+		for (int i = 0; i < existing.getLength(); i++) {
+			if (version.equals(existing.item(i).getTextContent().trim())) {
+				listed = true;
+			}
+		}
+		if (!listed) {
+			Element element = metadata.createElement("version");
+			element.setTextContent(version);
+			versions.appendChild(element);
+		}
+		NexusStreamPromoter.getOrCreate(metadata, versioning, "latest").setTextContent(version);
+		NexusStreamPromoter.getOrCreate(metadata, versioning, "release").setTextContent(version);
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		NexusStreamPromoter.getOrCreate(metadata, versioning, "lastUpdated").setTextContent(format.format(new Date()));
+
+		this.uploadWithChecksums(NexusStreamPromoter.serialize(metadata), METADATA, url);
+	}
+
+	private void uploadWithChecksums(byte[] bytes, String name, String url) throws IOException, InterruptedException {
+		this.logger.println("Uploading " + url);
+		this.uploader.upload(bytes, name, url);
+		for (int i = 0; i < CHECKSUMS.length; i++) {
+			MessageDigest digest = NexusStreamPromoter.digest(ALGORITHMS[i]);
+			String checksum = NexusStreamPromoter.toHex(digest.digest(bytes));
+			this.uploader.upload(checksum.getBytes("US-ASCII"), CHECKSUMS[i], url + "." + CHECKSUMS[i]);
+		}
+	}
+
+	// Returns null when the repository does not have the requested file.
+	private byte[] fetch(NexusUploader repository, String url) throws IOException {
+		HttpURLConnection connection = repository.open(url, "GET");
+		try {
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+				return null;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server returned HTTP " + status + " for " + url);
+			}
+			InputStream in = connection.getInputStream();
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private Document fetchMetadata(NexusUploader repository, String url) throws IOException {
+		byte[] bytes = this.fetch(repository, url);
+		return bytes == null ? null : NexusStreamPromoter.parse(bytes, url);
+	}
+
+	/**
+	 * Set the project's own version tag, adding one when the version was
+	 * inherited from a parent POM.
+	 */
+	static byte[] setPomVersion(byte[] pom, String version) throws IOException {
+		Document doc = NexusStreamPromoter.parse(pom, "pom.xml");
+		NexusStreamPromoter.getOrCreate(doc, doc.getDocumentElement(), "version").setTextContent(version);
+		return NexusStreamPromoter.serialize(doc);
+	}
+
+	private static Document parse(byte[] bytes, String name) throws IOException {
+		try {
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+		} catch (Exception e) {
+			throw new IOException("Unable to parse " + name + ": " + e.getMessage());
+		}
+	}
+
+	private static byte[] serialize(Document doc) throws IOException {
+		try {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			transformer.transform(new DOMSource(doc), new StreamResult(out));
+			return out.toByteArray();
+		} catch (Exception e) {
+			throw new IOException("Unable to write XML document: " + e.getMessage());
+		}
+	}
+
+	private static Element getOrCreate(Document doc, Element parent, String name) {
+		NodeList children = parent.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			String childName = children.item(i).getLocalName() != null ? children.item(i).getLocalName() : children.item(i).getNodeName();
+			if (name.equals(childName)) {
+				return (Element) children.item(i);
+			}
+		}
+		Element child = doc.createElementNS(parent.getNamespaceURI(), name);
+		parent.appendChild(child);
+		return child;
+	}
+
+	private static String getText(Element parent, String tag) {
+		NodeList nodes = parent.getElementsByTagNameNS("*", tag);
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+	}
+
+	private static MessageDigest digest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Checksum algorithm unavailable: " + algorithm);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static String trimSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	/**
+	 * An artifact in the source repository. Promotions never resume an upload
+	 * part way through, so every retry reads it again from the start; the
+	 * checksums are computed as the bytes stream past. The read that brings
+	 * in the last bytes checks them against the expected checksums before
+	 * returning them, and fails instead on a mismatch, so the upload never
+	 * sends the whole of a bad artifact.
+	 */
+	private class RemoteContent implements NexusUploader.Content {
+
+		private final String url;
+		private final String[] expected;
+		private long length = -1;
+		private MessageDigest[] digests;
+		private String[] checksums;
+
+		/**
+		 * @param expected the source's checksum per algorithm, or null where
+		 *        it has none.
+		 */
+		RemoteContent(String url, String[] expected) {
+			this.url = url;
+			this.expected = expected;
+		}
+
+		public long length() throws IOException {
+			if (this.length < 0) {
+				HttpURLConnection connection = NexusStreamPromoter.this.source.open(this.url, "HEAD");
+				int status = connection.getResponseCode();
+				String contentLength = connection.getHeaderField("Content-Length");
+				connection.disconnect();
+				if (status == HttpURLConnection.HTTP_OK && contentLength != null) {
+					this.length = Long.parseLong(contentLength.trim());
+				}
+				if (this.length < 0) {
+					throw new IOException("Unable to determine the size of " + this.url + " (HTTP " + status + ")");
+				}
+			}
+			return this.length;
+		}
+
+		public InputStream open(long offset) throws IOException {
+			if (offset != 0) {
+				throw new IOException("Unable to resume reading " + this.url + " at byte " + offset);
+			}
+			final long length = this.length();
+			final HttpURLConnection connection = NexusStreamPromoter.this.source.open(this.url, "GET");
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				connection.disconnect();
+				throw new IOException("Server returned HTTP " + status + " for " + this.url);
+			}
+
+			this.checksums = null;
+			this.digests = new MessageDigest[ALGORITHMS.length];
+			for (int i = 0; i < ALGORITHMS.length; i++) {
+				this.digests[i] = NexusStreamPromoter.digest(ALGORITHMS[i]);
+			}
+
+			return new FilterInputStream(connection.getInputStream()) {
+				private long position;
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return this.read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int read = super.read(b, off, len);
+					if (read == -1) {
+						if (this.position != length) {
+							throw new IOException("Read " + this.position + " of " + length + " bytes of " + RemoteContent.this.url);
+						}
+						if (RemoteContent.this.checksums == null) {
+							// An empty artifact has no last bytes to check them with.
+							RemoteContent.this.verify();
+						}
+						return read;
+					}
+					for (MessageDigest digest : RemoteContent.this.digests) {
+						digest.update(b, off, read);
+					}
+					this.position += read;
+					if (this.position > length) {
+						throw new IOException(RemoteContent.this.url + " is longer than its " + length + " bytes.");
+					}
+					if (this.position == length) {
+						// The last bytes are still ours: check them before the upload sends them.
+						RemoteContent.this.verify();
+					}
+					return read;
+				}
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					connection.disconnect();
+				}
+			};
+		}
+
+		private void verify() throws IOException {
+			String[] checksums = new String[ALGORITHMS.length];
+			for (int i = 0; i < ALGORITHMS.length; i++) {
+				checksums[i] = NexusStreamPromoter.toHex(this.digests[i].digest());
+				if (this.expected[i] != null && !this.expected[i].equals(checksums[i])) {
+					throw new IOException("The " + CHECKSUMS[i] + " of " + this.url + " is " + checksums[i] + ", but the source repository has " + this.expected[i]);
+				}
+			}
+			this.checksums = checksums;
+		}
+
+		// Only called after a successful upload, which read and checked every byte.
+		String getChecksum(int index) {
+			return this.checksums[index];
+		}
+	}
+}
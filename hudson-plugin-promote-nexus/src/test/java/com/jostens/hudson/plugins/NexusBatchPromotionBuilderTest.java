@@ -0,0 +1,151 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.StreamBuildListener;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Parses release train manifests, carries the promotion ledger
+ *        forward between builds, and runs a train against a stub repository.
+ */
+public class NexusBatchPromotionBuilderTest extends TestCase {
+
+	private File dir;
+	private HttpServer server;
+	private NexusStreamPromoterTest.StubRepository repository;
+
+	protected void setUp() throws Exception {
+		this.dir = File.createTempFile("builds", "");
+		if (!this.dir.delete() || !this.dir.mkdirs()) {
+			throw new IOException("Unable to create " + this.dir);
+		}
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.repository = new NexusStreamPromoterTest.StubRepository();
+		this.server.createContext("/", this.repository);
+		this.server.start();
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+		File[] children = this.dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+		this.dir.delete();
+	}
+
+	public void testParsesManifest() throws Exception {
+		List<NexusBatchPromotionBuilder.Promotion> promotions = NexusBatchPromotionBuilder.parseManifest("# release train\n\ncom.jostens:app:war:1.0-SNAPSHOT\n com.jostens:lib:jar:2.0-SNAPSHOT:2.0.1 \ncom.jostens:tool:jar:3.0\n");
+		assertEquals(3, promotions.size());
+		assertEquals("com.jostens:app:war:1.0", promotions.get(0).toString());
+		assertEquals("com.jostens:lib:jar:2.0.1", promotions.get(1).toString());
+		assertEquals("com.jostens:tool:jar:3.0", promotions.get(2).toString());
+		assertEquals("http://repo|com.jostens:app:war:1.0", promotions.get(0).getKey("http://repo"));
+		assertEquals(0, NexusBatchPromotionBuilder.parseManifest(null).size());
+	}
+
+	public void testRejectsMalformedManifestLine() throws Exception {
+		try {
+			NexusBatchPromotionBuilder.parseManifest("com.jostens:app:war");
+			fail("Expected the line to be refused.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid manifest entry [com.jostens:app:war]"));
+		}
+	}
+
+	/**
+	 * The nearest earlier ledger is found by the caller, possibly several
+	 * builds back; it is merged with what this build already recorded and
+	 * written out before anything else happens.
+	 */
+	public void testCarriesLedgerForward() throws Exception {
+		File previous = new File(this.dir, "previous.txt");
+		this.write(previous, "repo|a:a:jar:1", "repo|b:b:jar:1");
+		File ledger = new File(this.dir, "ledger.txt");
+		this.write(ledger, "repo|c:c:jar:1");
+
+		Set<String> completed = NexusBatchPromotionBuilder.carryForward(ledger, previous);
+		Set<String> expected = new TreeSet<String>(Arrays.asList("repo|a:a:jar:1", "repo|b:b:jar:1", "repo|c:c:jar:1"));
+		assertEquals(expected, new TreeSet<String>(completed));
+		assertEquals(expected, this.read(ledger));
+	}
+
+	public void testFirstBuildStartsAnEmptyLedger() throws Exception {
+		File ledger = new File(this.dir, "ledger.txt");
+		assertEquals(0, NexusBatchPromotionBuilder.carryForward(ledger, null).size());
+		// A later build scanning back finds this one.
+		assertTrue(ledger.isFile());
+	}
+
+	public void testPromotesWhatIsLeftAndRecordsIt() throws Exception {
+		for (String artifactId : Arrays.asList("app", "lib")) {
+			this.repository.put("/snapshots/com/jostens/" + artifactId + "/1.0/" + artifactId + "-1.0.war", artifactId.getBytes("UTF-8"));
+			this.repository.put("/snapshots/com/jostens/" + artifactId + "/1.0/" + artifactId + "-1.0.pom", "<project><version>1.0</version></project>".getBytes("UTF-8"));
+		}
+		String releases = this.url("/releases");
+		List<NexusBatchPromotionBuilder.Promotion> promotions = NexusBatchPromotionBuilder.parseManifest("com.jostens:app:war:1.0\ncom.jostens:lib:war:1.0\ncom.jostens:done:war:1.0\ncom.jostens:missing:war:1.0\n");
+		Set<String> completed = new HashSet<String>(Collections.singleton(releases + "|com.jostens:done:war:1.0"));
+		ByteArrayOutputStream ledger = new ByteArrayOutputStream();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+		List<NexusBatchPromotionBuilder.Promotion> result = new NexusBatchPromotionBuilder.PromoteTrain(this.url("/snapshots"), "", releases, "", promotions, completed, 2, ledger, new StreamBuildListener(log)).call();
+
+		List<String> statuses = new ArrayList<String>();
+		for (NexusBatchPromotionBuilder.Promotion promotion : result) {
+			statuses.add(promotion.getStatus());
+		}
+		assertEquals(Arrays.asList("PROMOTED", "PROMOTED", "SKIPPED", "FAILED"), statuses);
+		assertEquals("app", new String(this.repository.get("/releases/com/jostens/app/1.0/app-1.0.war"), "UTF-8"));
+		assertEquals("lib", new String(this.repository.get("/releases/com/jostens/lib/1.0/lib-1.0.war"), "UTF-8"));
+		// Only the promotions this train completed are appended.
+		assertEquals(new TreeSet<String>(Arrays.asList(releases + "|com.jostens:app:war:1.0", releases + "|com.jostens:lib:war:1.0")), new TreeSet<String>(Arrays.asList(ledger.toString().split("\n"))));
+		assertTrue(log.toString(), log.toString().contains("Promotion of com.jostens:missing:war:1.0 failed"));
+	}
+
+	private String url(String path) {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + path;
+	}
+
+	private void write(File file, String... lines) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			for (String line : lines) {
+				out.write(line + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private Set<String> read(File file) throws IOException {
+		Set<String> lines = new TreeSet<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+}
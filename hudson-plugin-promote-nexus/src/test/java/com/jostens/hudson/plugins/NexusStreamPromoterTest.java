@@ -0,0 +1,198 @@
+package com.jostens.hudson.plugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * @author blaisj1
+ * @brief Promotes snapshots between two stub repositories, checking what
+ *        reaches the release repository, and that an artifact whose bytes do
+ *        not match the source's checksums never does.
+ */
+public class NexusStreamPromoterTest extends TestCase {
+
+	private static final String SOURCE = "/snapshots/com/jostens/app/1.0-SNAPSHOT";
+	private static final String RELEASE = "/releases/com/jostens/app";
+
+	private HttpServer server;
+	private StubRepository repository;
+	private ByteArrayOutputStream log;
+	private byte[] war;
+
+	protected void setUp() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.repository = new StubRepository();
+		this.server.createContext("/", this.repository);
+		this.server.start();
+		this.log = new ByteArrayOutputStream();
+		this.war = new byte[300 * 1024];
+		new Random(7).nextBytes(this.war);
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.pom", "<project><artifactId>app</artifactId><version>1.0-SNAPSHOT</version></project>".getBytes("UTF-8"));
+	}
+
+	protected void tearDown() throws Exception {
+		this.server.stop(0);
+	}
+
+	public void testPromotesNewestUniqueSnapshot() throws Exception {
+		this.maven3Metadata();
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war", this.war);
+		// Checksum files as some tools write them, followed by the file name.
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war.sha1", (NexusStreamPromoterTest.digest("SHA-1", this.war).toUpperCase() + "  app.war\n").getBytes("US-ASCII"));
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war.md5", NexusStreamPromoterTest.digest("MD5", this.war).getBytes("US-ASCII"));
+		this.promoter(1).promote("com.jostens", "app", "1.0-SNAPSHOT", "1.0", "war");
+
+		assertTrue(Arrays.equals(this.war, this.repository.get(RELEASE + "/1.0/app-1.0.war")));
+		assertEquals(NexusStreamPromoterTest.digest("SHA-1", this.war), this.text(RELEASE + "/1.0/app-1.0.war.sha1"));
+		assertEquals(NexusStreamPromoterTest.digest("MD5", this.war), this.text(RELEASE + "/1.0/app-1.0.war.md5"));
+		String pom = this.text(RELEASE + "/1.0/app-1.0.pom");
+		assertTrue(pom, pom.contains("<version>1.0</version>"));
+		assertEquals(NexusStreamPromoterTest.digest("SHA-1", this.repository.get(RELEASE + "/1.0/app-1.0.pom")), this.text(RELEASE + "/1.0/app-1.0.pom.sha1"));
+		String metadata = this.text(RELEASE + "/maven-metadata.xml");
+		assertTrue(metadata, metadata.contains("<version>1.0</version>"));
+		assertTrue(metadata, metadata.contains("<release>1.0</release>"));
+	}
+
+	public void testResolvesMaven2SnapshotMetadata() throws Exception {
+		this.repository.put(SOURCE + "/maven-metadata.xml", "<metadata><versioning><snapshot><timestamp>20260101.120000</timestamp><buildNumber>3</buildNumber></snapshot></versioning></metadata>".getBytes("UTF-8"));
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war", this.war);
+		this.promoter(1).promote("com.jostens", "app", "1.0-SNAPSHOT", "1.0", "war");
+		assertTrue(Arrays.equals(this.war, this.repository.get(RELEASE + "/1.0/app-1.0.war")));
+	}
+
+	public void testComputesChecksumsTheSourceLacks() throws Exception {
+		this.maven3Metadata();
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war", this.war);
+		this.promoter(1).promote("com.jostens", "app", "1.0-SNAPSHOT", "1.0", "war");
+		assertEquals(NexusStreamPromoterTest.digest("SHA-1", this.war), this.text(RELEASE + "/1.0/app-1.0.war.sha1"));
+		assertEquals(NexusStreamPromoterTest.digest("MD5", this.war), this.text(RELEASE + "/1.0/app-1.0.war.md5"));
+	}
+
+	public void testMismatchedChecksumNeverCompletesRelease() throws Exception {
+		this.maven3Metadata();
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war", this.war);
+		byte[] other = this.war.clone();
+		other[other.length - 1]++;
+		String expected = NexusStreamPromoterTest.digest("SHA-1", other);
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war.sha1", expected.getBytes("US-ASCII"));
+		try {
+			this.promoter(2).promote("com.jostens", "app", "1.0-SNAPSHOT", "1.0", "war");
+			fail("Expected the checksum mismatch to fail the promotion.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("but the source repository has " + expected));
+		}
+		// Both attempts were cut off before their last bytes.
+		assertTrue(this.log.toString(), this.log.toString().contains("attempt 2 of 2"));
+		assertNull(this.repository.get(RELEASE + "/1.0/app-1.0.war"));
+		assertNull(this.repository.get(RELEASE + "/1.0/app-1.0.war.sha1"));
+		assertNull(this.repository.get(RELEASE + "/1.0/app-1.0.pom"));
+		assertNull(this.repository.get(RELEASE + "/maven-metadata.xml"));
+	}
+
+	public void testPromotesEmptyArtifact() throws Exception {
+		this.maven3Metadata();
+		this.repository.put(SOURCE + "/app-1.0-20260101.120000-3.war", new byte[0]);
+		this.promoter(1).promote("com.jostens", "app", "1.0-SNAPSHOT", "1.0", "war");
+		assertEquals(0, this.repository.get(RELEASE + "/1.0/app-1.0.war").length);
+		assertEquals(NexusStreamPromoterTest.digest("SHA-1", new byte[0]), this.text(RELEASE + "/1.0/app-1.0.war.sha1"));
+	}
+
+	private void maven3Metadata() throws IOException {
+		this.repository.put(SOURCE + "/maven-metadata.xml", ("<metadata><versioning><snapshot><timestamp>20251231.000000</timestamp><buildNumber>2</buildNumber></snapshot><snapshotVersions>"
+				+ "<snapshotVersion><classifier>sources</classifier><extension>war</extension><value>1.0-20251231.000000-2</value></snapshotVersion>"
+				+ "<snapshotVersion><extension>war</extension><value>1.0-20260101.120000-3</value></snapshotVersion>"
+				+ "<snapshotVersion><extension>pom</extension><value>1.0-20260101.120000-3</value></snapshotVersion>"
+				+ "</snapshotVersions></versioning></metadata>").getBytes("UTF-8"));
+	}
+
+	private NexusStreamPromoter promoter(int attempts) {
+		PrintStream logger = new PrintStream(this.log, true);
+		NexusUploader source = new NexusUploader(null, null, logger, attempts, 1, 5, false);
+		NexusUploader uploader = new NexusUploader(null, null, logger, attempts, 1, 5, false);
+		String base = "http://127.0.0.1:" + this.server.getAddress().getPort();
+		return new NexusStreamPromoter(base + "/snapshots/", base + "/releases", source, uploader, logger);
+	}
+
+	private String text(String path) throws IOException {
+		byte[] content = this.repository.get(path);
+		assertNotNull(path, content);
+		return new String(content, "UTF-8");
+	}
+
+	private static String digest(String algorithm, byte[] content) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance(algorithm).digest(content)) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Serves files on GET and HEAD, and stores a PUT only once its whole body
+	 * has arrived.
+	 */
+	static final class StubRepository implements HttpHandler {
+
+		private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+
+		synchronized void put(String path, byte[] content) {
+			this.files.put(path, content);
+		}
+
+		synchronized byte[] get(String path) {
+			return this.files.get(path);
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			// Throws when the client goes away part way through the body.
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+
+			if ("PUT".equals(exchange.getRequestMethod())) {
+				synchronized (this) {
+					String length = exchange.getRequestHeaders().getFirst("Content-Length");
+					if (length != null && Integer.parseInt(length) == body.size()) {
+						this.files.put(path, body.toByteArray());
+					}
+				}
+				exchange.sendResponseHeaders(201, -1);
+				exchange.close();
+				return;
+			}
+
+			byte[] content = this.get(path);
+			if (content == null) {
+				exchange.sendResponseHeaders(404, -1);
+			} else if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+				exchange.sendResponseHeaders(200, -1);
+			} else if (content.length == 0) {
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				exchange.sendResponseHeaders(200, content.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(content);
+			}
+			exchange.close();
+		}
+	}
+}